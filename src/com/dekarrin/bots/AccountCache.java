@@ -0,0 +1,210 @@
+package com.dekarrin.bots;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which NickServ account each nick is logged in as, so that a
+ * WHOIS does not have to be sent for every command a user gives. Only nicks
+ * that are logged in are remembered; a nick that is not logged in may log in
+ * at any time without the bot seeing it, so it is always looked up again.
+ * Entries expire after a fixed time, and must be invalidated whenever the
+ * user that holds a nick could have changed. The bot can only tell that for
+ * nicks that share a channel with it, so no other nick may be stored.
+ * 
+ * <p>When the server reports account changes as they happen, accounts can
+ * instead be tracked. A tracked nick never expires and may be tracked as not
+ * logged in, so that no lookup is needed for it at all.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class AccountCache {
+	
+	/**
+	 * Stored as the account of a tracked nick that is not logged in.
+	 */
+	private static final String NO_ACCOUNT = "";
+	
+	private static class Entry {
+		
+		public final String account;
+		
+		public final long expires;
+		
+		public Entry(final String account, final long expires) {
+			this.account = account;
+			this.expires = expires;
+		}
+	}
+	
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	
+	private final AtomicLong generation = new AtomicLong();
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	private final ConcurrentMap<String, String> tracked = new ConcurrentHashMap<String, String>();
+	
+	private volatile long ttl;
+	
+	/**
+	 * Creates a new AccountCache.
+	 * 
+	 * @param ttl The number of milliseconds that an entry is valid for. If this
+	 * is 0, nothing is cached.
+	 */
+	public AccountCache(final long ttl) {
+		this.ttl = ttl;
+	}
+	
+	/**
+	 * Forgets every entry.
+	 */
+	public void clear() {
+		generation.incrementAndGet();
+		entries.clear();
+		tracked.clear();
+	}
+	
+	/**
+	 * Gets the account that a nick is logged in as.
+	 * 
+	 * @param nick The nick. Case-insensitive.
+	 * @return The account, or null if the nick is not in the cache.
+	 */
+	public String get(final String nick) {
+		final String key = nick.toLowerCase();
+		final String account = tracked.get(key);
+		if (account != null) {
+			hits.incrementAndGet();
+			return account.equals(AccountCache.NO_ACCOUNT) ? null : account;
+		}
+		final Entry e = entries.get(key);
+		if (e != null && e.expires - System.currentTimeMillis() > 0) {
+			hits.incrementAndGet();
+			return e.account;
+		}
+		if (e != null) {
+			entries.remove(key, e);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+	
+	/**
+	 * Gets the current generation of the cache. This changes whenever an
+	 * entry is invalidated, and must be read before the account for a nick is
+	 * looked up so that {@link #put(String, String, long)} can tell whether the
+	 * result is still valid.
+	 * 
+	 * @return The generation.
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+	
+	/**
+	 * Gets the number of lookups that were answered from the cache.
+	 * 
+	 * @return The number of hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * Gets the number of lookups that were not answered from the cache.
+	 * 
+	 * @return The number of misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Forgets the entry for a nick.
+	 * 
+	 * @param nick The nick. Case-insensitive.
+	 */
+	public void invalidate(final String nick) {
+		generation.incrementAndGet();
+		entries.remove(nick.toLowerCase());
+		tracked.remove(nick.toLowerCase());
+	}
+	
+	/**
+	 * Checks whether the account of a nick is being tracked. If it is,
+	 * {@link #get(String)} is authoritative even when it returns null.
+	 * 
+	 * @param nick The nick. Case-insensitive.
+	 * @return Whether it is.
+	 */
+	public boolean isTracked(final String nick) {
+		return tracked.containsKey(nick.toLowerCase());
+	}
+	
+	/**
+	 * Moves the entry for a nick to a new nick. A user keeps the same account
+	 * when changing nicks, so a tracked account follows the user; an untracked
+	 * one is dropped instead.
+	 * 
+	 * @param oldNick The old nick. Case-insensitive.
+	 * @param newNick The new nick. Case-insensitive.
+	 */
+	public void rename(final String oldNick, final String newNick) {
+		final String account = tracked.get(oldNick.toLowerCase());
+		invalidate(oldNick);
+		invalidate(newNick);
+		if (account != null) {
+			tracked.put(newNick.toLowerCase(), account);
+		}
+	}
+	
+	/**
+	 * Remembers the account that a nick is logged in as. Nothing is stored if
+	 * any entry has been invalidated since the given generation, because the
+	 * nick could have changed hands while it was being looked up.
+	 * 
+	 * @param nick The nick. Case-insensitive.
+	 * @param account The account. If this is null, nothing is stored.
+	 * @param since The generation that was read before the lookup started.
+	 */
+	public void put(final String nick, final String account, final long since) {
+		final long t = ttl;
+		if (account == null || t <= 0) {
+			return;
+		}
+		final String key = nick.toLowerCase();
+		entries.put(key, new Entry(account, System.currentTimeMillis() + t));
+		if (generation.get() != since) {
+			entries.remove(key);
+		}
+	}
+	
+	/**
+	 * Sets how long entries are valid for. Entries that are already in the
+	 * cache keep their old expiry time.
+	 * 
+	 * @param ttl The number of milliseconds that an entry is valid for. If this
+	 * is 0, nothing more is cached.
+	 */
+	public void setTtl(final long ttl) {
+		this.ttl = ttl;
+	}
+	
+	/**
+	 * Tracks the account of a nick. The entry is kept until the nick is
+	 * invalidated, and is used in place of any cached entry.
+	 * 
+	 * @param nick The nick. Case-insensitive.
+	 * @param account The account, or null if the nick is not logged in.
+	 */
+	public void track(final String nick, final String account) {
+		final String key = nick.toLowerCase();
+		tracked.put(key, (account != null) ? account : AccountCache.NO_ACCOUNT);
+		entries.remove(key);
+	}
+}
@@ -0,0 +1,696 @@
+package com.dekarrin.bots;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds a balance for each player, safe for use from many threads at once.
+ * Players are spread over a number of stripes by the hash of their name, and
+ * each stripe is a separate open-addressing table with its own lock, so
+ * threads working on different players rarely wait for each other. Balances
+ * are stored as primitive longs.
+ * 
+ * <p>Every change is made while holding the lock for the player's stripe,
+ * and the listener is told about it before the lock is released. The
+ * listener therefore sees the changes to each player in the order that they
+ * were made. If the listener throws an exception, the change is taken back
+ * before the exception is passed on, so the store never holds a change that
+ * the listener could not accept.
+ * 
+ * <p>The store can be given a source to load players from and a limit on
+ * how many players it keeps in memory. A player that is not in memory is
+ * loaded from the source the first time it is used, and once a stripe holds
+ * more than its share of the limit, the players that have gone longest
+ * without being used are dropped from memory. Recently used players are
+ * found with the clock algorithm, which approximates least-recently-used
+ * order with a single bit per player. A dropped player must be available
+ * from the source again, so the listener must make every change available
+ * from the source before it returns.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class BalanceStore {
+	
+	/**
+	 * The ways that a balance can change.
+	 */
+	public enum Change {
+		
+		/**
+		 * An amount was added to the balance by {@link BalanceStore#add} or
+		 * {@link BalanceStore#bet}.
+		 */
+		ADDED,
+		
+		/**
+		 * The player was added, by {@link BalanceStore#putIfAbsent} or by
+		 * {@link BalanceStore#put} for a player with no balance.
+		 */
+		JOINED,
+		
+		/**
+		 * The player received money in a transfer.
+		 */
+		RECEIVED,
+		
+		/**
+		 * The player sent money in a transfer.
+		 */
+		SENT,
+		
+		/**
+		 * The balance of a player was set by {@link BalanceStore#put}.
+		 */
+		SET,
+		
+		/**
+		 * A change that the listener was told about was taken back, because
+		 * the listener refused a later part of the same transfer.
+		 */
+		UNDONE
+	}
+	
+	/**
+	 * Decides how much a bet wins or loses.
+	 */
+	public interface Bet {
+		
+		/**
+		 * Called with the balance that is bet against. This is called while
+		 * the player's stripe is locked, so it must not use the store.
+		 * 
+		 * @param balance The balance. Always above zero.
+		 * @return The amount won, or a negative amount that was lost.
+		 */
+		public long amount(long balance);
+	}
+	
+	/**
+	 * Is told about every change to a balance.
+	 */
+	public interface Listener {
+		
+		/**
+		 * Called when a player's balance changes. This is called while the
+		 * player's stripe is locked, so it must not use the store. Throwing a
+		 * RuntimeException refuses the change, and the balance is put back as
+		 * it was. A change that is {@link Change#UNDONE} must not be refused.
+		 * 
+		 * @param change How the balance changed.
+		 * @param name The name of the player.
+		 * @param delta The amount that the balance changed by.
+		 * @param balance The new balance.
+		 */
+		public void balanceChanged(Change change, String name, long delta,
+				long balance);
+	}
+	
+	/**
+	 * Provides the balances of players that are not in memory.
+	 */
+	public interface Source {
+		
+		/**
+		 * Loads a player's balance. This is called while the player's stripe
+		 * is locked, so it must not use the store.
+		 * 
+		 * @param name The name of the player.
+		 * @return The balance, or null if the player has none.
+		 */
+		public Long load(String name);
+	}
+	
+	/**
+	 * Is shown each player in memory by {@link BalanceStore#forEach}.
+	 */
+	public interface Visitor {
+		
+		/**
+		 * Called for each player.
+		 * 
+		 * @param name The name of the player.
+		 * @param balance The balance.
+		 */
+		public void visit(String name, long balance);
+	}
+	
+	/**
+	 * A single open-addressing table. Slots are found by linear probing.
+	 */
+	private static class Stripe {
+		
+		/**
+		 * The next slot that the clock looks at when a player must be
+		 * dropped.
+		 */
+		public int hand = 0;
+		
+		public String[] keys = new String[BalanceStore.INITIAL_CAPACITY];
+		
+		/**
+		 * Whether each slot has been used since the clock last passed it.
+		 */
+		public boolean[] referenced = new boolean[BalanceStore.INITIAL_CAPACITY];
+		
+		public int size = 0;
+		
+		public long[] values = new long[BalanceStore.INITIAL_CAPACITY];
+		
+		/**
+		 * Finds the slot that holds a name, or the empty slot where it would
+		 * go.
+		 */
+		public int slot(final String name, final int hash) {
+			final int mask = keys.length - 1;
+			int i = hash & mask;
+			while (keys[i] != null && !keys[i].equals(name)) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+		
+		/**
+		 * Stores a balance in an empty slot, growing the table first if it is
+		 * too full.
+		 * 
+		 * @return The slot that the balance was stored in.
+		 */
+		public int insert(final String name, final int hash, final long value) {
+			if ((size + 1) * 4 > keys.length * 3) {
+				final String[] oldKeys = keys;
+				final long[] oldValues = values;
+				final boolean[] oldReferenced = referenced;
+				keys = new String[oldKeys.length * 2];
+				values = new long[oldKeys.length * 2];
+				referenced = new boolean[oldKeys.length * 2];
+				for (int i = 0; i < oldKeys.length; i++) {
+					if (oldKeys[i] != null) {
+						final int j = slot(oldKeys[i], BalanceStore.hash(oldKeys[i]));
+						keys[j] = oldKeys[i];
+						values[j] = oldValues[i];
+						referenced[j] = oldReferenced[i];
+					}
+				}
+				hand = 0;
+			}
+			final int i = slot(name, hash);
+			keys[i] = name;
+			values[i] = value;
+			referenced[i] = true;
+			size++;
+			return i;
+		}
+		
+		/**
+		 * Empties a slot. Any players after it that would be found sooner
+		 * with the slot empty are moved back, so that no gap is left in the
+		 * middle of a run of slots.
+		 */
+		public void remove(int i) {
+			final int mask = keys.length - 1;
+			keys[i] = null;
+			referenced[i] = false;
+			size--;
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (keys[j] == null) {
+					return;
+				}
+				final int home = BalanceStore.hash(keys[j]) & mask;
+				// the player at j stays if its home slot is after the gap
+				final boolean stays = (i <= j) ? (i < home && home <= j)
+						: (i < home || home <= j);
+				if (!stays) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					referenced[i] = referenced[j];
+					keys[j] = null;
+					referenced[j] = false;
+					i = j;
+				}
+			}
+		}
+		
+		/**
+		 * Drops players until no more than a number are left.
+		 * 
+		 * @return The number of players dropped.
+		 */
+		public int trim(final int limit) {
+			int dropped = 0;
+			while (size > limit) {
+				if (hand >= keys.length) {
+					hand = 0;
+				}
+				if (keys[hand] == null) {
+					hand++;
+				} else if (referenced[hand]) {
+					referenced[hand] = false;
+					hand++;
+				} else {
+					// another player may be moved into this slot, so the hand
+					// stays where it is
+					remove(hand);
+					dropped++;
+				}
+			}
+			return dropped;
+		}
+	}
+	
+	/**
+	 * Number of slots in each stripe when it is created. Must be a power of
+	 * two.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+	
+	/**
+	 * Number of bits of the hash that pick the stripe.
+	 */
+	private static final int STRIPE_BITS = 4;
+	
+	private static final int STRIPE_COUNT = 1 << STRIPE_BITS;
+	
+	private final AtomicLong evictions = new AtomicLong();
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private volatile Listener listener = null;
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	private volatile Source source = null;
+	
+	/**
+	 * The most players that each stripe keeps in memory.
+	 */
+	private volatile int stripeLimit = Integer.MAX_VALUE;
+	
+	private final Stripe[] stripes;
+	
+	/**
+	 * Creates a new, empty BalanceStore.
+	 */
+	public BalanceStore() {
+		stripes = new Stripe[STRIPE_COUNT];
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+	
+	private static int hash(final String name) {
+		// short names have small hash codes, so the bits are spread upwards
+		// before the high bits are used to pick a stripe
+		final int h = name.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * Adds to a player's balance. The balance never goes below zero; a loss
+	 * larger than the balance leaves it at zero.
+	 * 
+	 * @param name The name of the player.
+	 * @param amount The amount to add. May be negative.
+	 * @return The new balance.
+	 * @throws IllegalArgumentException If the player has no balance.
+	 */
+	public long add(final String name, final long amount) {
+		final int h = hash(name);
+		final Stripe s = stripeFor(h);
+		synchronized (s) {
+			final int i = find(s, name, h);
+			if (i < 0) {
+				throw new IllegalArgumentException("No balance for " + name);
+			}
+			final long old = s.values[i];
+			final long balance = Math.max(0, old + amount);
+			s.values[i] = balance;
+			try {
+				changed(Change.ADDED, name, balance - old, balance);
+			} catch (final RuntimeException e) {
+				s.values[i] = old;
+				throw e;
+			}
+			trim(s);
+			return balance;
+		}
+	}
+	
+	/**
+	 * Bets against a player's balance in a single step, so that the amount is
+	 * decided from the same balance that it is added to. A player whose
+	 * balance is zero cannot bet. The balance never goes below zero; a loss
+	 * larger than the balance leaves it at zero.
+	 * 
+	 * @param name The name of the player.
+	 * @param bet Decides the amount won or lost.
+	 * @return The amount that the balance actually changed by, followed by
+	 * the new balance, or null if the player had nothing to bet.
+	 * @throws IllegalArgumentException If the player has no balance.
+	 */
+	public long[] bet(final String name, final Bet bet) {
+		final int h = hash(name);
+		final Stripe s = stripeFor(h);
+		synchronized (s) {
+			final int i = find(s, name, h);
+			if (i < 0) {
+				throw new IllegalArgumentException("No balance for " + name);
+			}
+			final long old = s.values[i];
+			if (old <= 0) {
+				trim(s);
+				return null;
+			}
+			final long balance = Math.max(0, old + bet.amount(old));
+			s.values[i] = balance;
+			try {
+				changed(Change.ADDED, name, balance - old, balance);
+			} catch (final RuntimeException e) {
+				s.values[i] = old;
+				throw e;
+			}
+			trim(s);
+			return new long[] {balance - old, balance};
+		}
+	}
+	
+	/**
+	 * Checks whether a player has a balance.
+	 * 
+	 * @param name The name of the player.
+	 * @return Whether the player does.
+	 */
+	public boolean contains(final String name) {
+		final int h = hash(name);
+		final Stripe s = stripeFor(h);
+		synchronized (s) {
+			final boolean found = find(s, name, h) >= 0;
+			trim(s);
+			return found;
+		}
+	}
+	
+	/**
+	 * Gets a player's balance.
+	 * 
+	 * @param name The name of the player.
+	 * @param missing The value to return if the player has no balance.
+	 * @return The balance.
+	 */
+	public long get(final String name, final long missing) {
+		final int h = hash(name);
+		final Stripe s = stripeFor(h);
+		synchronized (s) {
+			final int i = find(s, name, h);
+			final long balance = (i < 0) ? missing : s.values[i];
+			trim(s);
+			return balance;
+		}
+	}
+	
+	/**
+	 * Calls a visitor with every player that is in memory. Each stripe is
+	 * locked while its players are visited, so the visitor must not use the
+	 * store.
+	 * 
+	 * @param visitor The visitor.
+	 */
+	public void forEach(final Visitor visitor) {
+		for (final Stripe s : stripes) {
+			synchronized (s) {
+				for (int i = 0; i < s.keys.length; i++) {
+					if (s.keys[i] != null) {
+						visitor.visit(s.keys[i], s.values[i]);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Gets the number of players that have been dropped from memory.
+	 * 
+	 * @return The number of evictions.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	/**
+	 * Gets the number of times that a player was found in memory.
+	 * 
+	 * @return The number of hits.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * Gets the number of times that a player had to be looked for in the
+	 * source.
+	 * 
+	 * @return The number of misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Sets a player's balance, adding the player if needed.
+	 * 
+	 * @param name The name of the player.
+	 * @param balance The new balance.
+	 */
+	public void put(final String name, final long balance) {
+		final int h = hash(name);
+		final Stripe s = stripeFor(h);
+		synchronized (s) {
+			final int i = find(s, name, h);
+			if (i < 0) {
+				joined(s, name, h, balance);
+			} else {
+				final long old = s.values[i];
+				s.values[i] = balance;
+				try {
+					changed(Change.SET, name, balance - old, balance);
+				} catch (final RuntimeException e) {
+					s.values[i] = old;
+					throw e;
+				}
+			}
+			trim(s);
+		}
+	}
+	
+	/**
+	 * Adds a player with a balance if the player does not have one yet.
+	 * 
+	 * @param name The name of the player.
+	 * @param balance The starting balance.
+	 * @return Whether the player was added.
+	 */
+	public boolean putIfAbsent(final String name, final long balance) {
+		final int h = hash(name);
+		final Stripe s = stripeFor(h);
+		synchronized (s) {
+			final boolean absent = find(s, name, h) < 0;
+			if (absent) {
+				joined(s, name, h, balance);
+			}
+			trim(s);
+			return absent;
+		}
+	}
+	
+	/**
+	 * Sets the most players that are kept in memory. The limit is divided
+	 * evenly among the stripes, and only takes effect once a source has been
+	 * set.
+	 * 
+	 * @param limit The limit, or 0 for none.
+	 */
+	public void setLimit(final int limit) {
+		if (limit <= 0) {
+			stripeLimit = Integer.MAX_VALUE;
+		} else {
+			stripeLimit = Math.max(1, (limit + STRIPE_COUNT - 1) / STRIPE_COUNT);
+		}
+	}
+	
+	/**
+	 * Sets the listener that is told about changes. Balances that are already
+	 * stored are not reported to it.
+	 * 
+	 * @param listener The listener, or null for none.
+	 */
+	public void setListener(final Listener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Sets where players that are not in memory are loaded from.
+	 * 
+	 * @param source The source, or null for none. Without a source, players
+	 * are never dropped from memory.
+	 */
+	public void setSource(final Source source) {
+		this.source = source;
+	}
+	
+	/**
+	 * Gets the number of players that are in memory.
+	 * 
+	 * @return The number of players.
+	 */
+	public int size() {
+		int size = 0;
+		for (final Stripe s : stripes) {
+			synchronized (s) {
+				size += s.size;
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Moves money from one player to another in a single step, so that no
+	 * other change to either balance can happen in between.
+	 * 
+	 * @param from The name of the player giving the money.
+	 * @param to The name of the player receiving it.
+	 * @param amount The amount to move.
+	 * @return Whether the money was moved. It is not if the giver does not
+	 * have enough or either player has no balance.
+	 * @throws IllegalArgumentException If the amount is negative.
+	 */
+	public boolean transfer(final String from, final String to,
+			final long amount) {
+		if (amount < 0) {
+			throw new IllegalArgumentException("Cannot transfer a negative amount");
+		}
+		final int hFrom = hash(from);
+		final int hTo = hash(to);
+		final Stripe a = stripeFor(hFrom);
+		final Stripe b = stripeFor(hTo);
+		// always lock the stripes in the same order so that two transfers in
+		// opposite directions cannot deadlock
+		final Stripe first = (stripeIndex(hFrom) <= stripeIndex(hTo)) ? a : b;
+		final Stripe second = (first == a) ? b : a;
+		synchronized (first) {
+			synchronized (second) {
+				try {
+					// loading the receiver can grow the table that holds the
+					// giver, so the giver is looked up again afterwards
+					if (find(a, from, hFrom) < 0 || find(b, to, hTo) < 0) {
+						return false;
+					}
+					final int i = a.slot(from, hFrom);
+					final int j = b.slot(to, hTo);
+					if (a.values[i] < amount) {
+						return false;
+					}
+					if (from.equals(to)) {
+						return true;
+					}
+					a.values[i] -= amount;
+					b.values[j] += amount;
+					boolean sent = false;
+					try {
+						changed(Change.SENT, from, -amount, a.values[i]);
+						sent = true;
+						changed(Change.RECEIVED, to, amount, b.values[j]);
+					} catch (final RuntimeException e) {
+						a.values[i] += amount;
+						b.values[j] -= amount;
+						if (sent) {
+							changed(Change.UNDONE, from, amount, a.values[i]);
+						}
+						throw e;
+					}
+					return true;
+				} finally {
+					trim(a);
+					if (b != a) {
+						trim(b);
+					}
+				}
+			}
+		}
+	}
+	
+	private void changed(final Change change, final String name,
+			final long delta, final long balance) {
+		final Listener l = listener;
+		if (l != null) {
+			l.balanceChanged(change, name, delta, balance);
+		}
+	}
+	
+	/**
+	 * Finds the slot that holds a player, loading the player from the source
+	 * if needed. Must be called while holding the lock on the stripe.
+	 * 
+	 * @return The slot, or -1 if the player has no balance.
+	 */
+	private int find(final Stripe s, final String name, final int hash) {
+		final int i = s.slot(name, hash);
+		if (s.keys[i] != null) {
+			s.referenced[i] = true;
+			hits.incrementAndGet();
+			return i;
+		}
+		final Source src = source;
+		if (src == null) {
+			return -1;
+		}
+		misses.incrementAndGet();
+		final Long balance = src.load(name);
+		if (balance == null) {
+			return -1;
+		}
+		return s.insert(name, hash, balance);
+	}
+	
+	/**
+	 * Adds a player to a stripe and tells the listener, removing the player
+	 * again if the listener refuses. Must be called while holding the lock on
+	 * the stripe.
+	 */
+	private void joined(final Stripe s, final String name, final int hash,
+			final long balance) {
+		final int i = s.insert(name, hash, balance);
+		try {
+			changed(Change.JOINED, name, balance, balance);
+		} catch (final RuntimeException e) {
+			s.remove(i);
+			throw e;
+		}
+	}
+	
+	private Stripe stripeFor(final int hash) {
+		return stripes[stripeIndex(hash)];
+	}
+	
+	/**
+	 * Picks a stripe from the high bits of a hash, leaving the low bits to
+	 * pick the slot within the stripe.
+	 */
+	private static int stripeIndex(final int hash) {
+		return hash >>> (32 - STRIPE_BITS);
+	}
+	
+	/**
+	 * Drops players from a stripe until it is within its limit. This is only
+	 * done once an operation is finished with the stripe, so that no player
+	 * it is using is dropped in the middle of it. Must be called while
+	 * holding the lock on the stripe.
+	 */
+	private void trim(final Stripe s) {
+		if (source != null) {
+			final int dropped = s.trim(stripeLimit);
+			if (dropped > 0) {
+				evictions.addAndGet(dropped);
+			}
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package com.dekarrin.bots;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Negotiates IRCv3 capabilities with the server. Negotiation is started with
+ * CAP LS as soon as the server sends its first line, which is normally before
+ * registration has finished; in that case the server holds registration until
+ * CAP END is sent. If registration has already finished by the time the
+ * server answers, the capabilities are still requested but CAP END is not
+ * sent.
+ * 
+ * <p>If credentials are given and the server offers it, the bot also logs in
+ * with SASL PLAIN before registration finishes, so that it is already
+ * identified when it connects. SASL is never attempted after registration.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class CapNegotiator {
+	
+	/**
+	 * The capabilities that SmartBot makes use of.
+	 */
+	private static final String[] WANTED = {"account-notify", "extended-join",
+			"account-tag"};
+	
+	/**
+	 * Largest number of characters of data sent in a single AUTHENTICATE.
+	 */
+	private static final int SASL_CHUNK_SIZE = 400;
+	
+	private volatile boolean authenticated = false;
+	
+	private final Set<String> enabled = Collections.synchronizedSet(new HashSet<String>());
+	
+	private boolean ended = false;
+	
+	private final StringBuilder offered = new StringBuilder();
+	
+	private volatile boolean registered = false;
+	
+	private String saslAccount = null;
+	
+	private boolean saslActive = false;
+	
+	private char[] saslPassword = null;
+	
+	private volatile boolean started = false;
+	
+	/**
+	 * Starts negotiation.
+	 * 
+	 * @return The line to send to the server.
+	 */
+	public String begin() {
+		started = true;
+		return "CAP LS 302";
+	}
+	
+	/**
+	 * Handles a CAP message from the server.
+	 * 
+	 * @param msg The message. Its parameters are the target, the subcommand,
+	 * an optional "*" that marks a reply continued on another line, and the
+	 * list of capabilities.
+	 * @return The lines to send to the server in reply.
+	 */
+	public List<String> handle(final IRCMessage msg) {
+		final List<String> reply = new ArrayList<String>();
+		final List<String> params = msg.getParams();
+		if (params.size() < 3) {
+			return reply;
+		}
+		final String sub = params.get(1).toUpperCase();
+		final String caps = params.get(params.size() - 1);
+		final boolean more = (params.size() > 3 && params.get(2).equals("*"));
+		if (sub.equals("LS")) {
+			offered.append(caps).append(' ');
+			if (!more) {
+				final String req = wanted(offered.toString());
+				offered.setLength(0);
+				if (req.length() > 0) {
+					reply.add("CAP REQ :" + req);
+				} else {
+					end(reply);
+				}
+			}
+		} else if (sub.equals("NEW")) {
+			final String req = wanted(caps);
+			if (req.length() > 0) {
+				reply.add("CAP REQ :" + req);
+			}
+		} else if (sub.equals("ACK")) {
+			for (final String cap : caps.split(" ")) {
+				if (cap.startsWith("-")) {
+					enabled.remove(cap.substring(1));
+				} else if (cap.length() > 0) {
+					enabled.add(cap);
+					if (cap.equals("sasl") && !registered) {
+						saslActive = true;
+					}
+				}
+			}
+			if (!more && saslActive) {
+				reply.add("AUTHENTICATE PLAIN");
+			} else if (!more) {
+				end(reply);
+			}
+		} else if (sub.equals("DEL")) {
+			for (final String cap : caps.split(" ")) {
+				enabled.remove(cap);
+			}
+		} else if (sub.equals("NAK")) {
+			end(reply);
+		}
+		return reply;
+	}
+	
+	/**
+	 * Handles an AUTHENTICATE message from the server. The server sends an
+	 * empty one, "+", when it is ready for the credentials.
+	 * 
+	 * @param msg The message.
+	 * @return The lines to send to the server in reply. These contain the
+	 * password and must not be logged.
+	 */
+	public List<String> handleAuthenticate(final IRCMessage msg) {
+		final List<String> reply = new ArrayList<String>();
+		final List<String> params = msg.getParams();
+		if (saslActive && params.size() > 0 && params.get(0).equals("+")) {
+			final String data = saslPayload();
+			int pos = 0;
+			do {
+				final int end = Math.min(pos + CapNegotiator.SASL_CHUNK_SIZE,
+						data.length());
+				reply.add("AUTHENTICATE " + data.substring(pos, end));
+				pos = end;
+			} while (pos < data.length());
+			if (data.length() % CapNegotiator.SASL_CHUNK_SIZE == 0) {
+				reply.add("AUTHENTICATE +");
+			}
+		}
+		return reply;
+	}
+	
+	/**
+	 * Handles a SASL numeric from the server. Once SASL succeeds or fails,
+	 * negotiation is finished.
+	 * 
+	 * @param code The numeric; one of 900 to 908.
+	 * @return The lines to send to the server in reply.
+	 */
+	public List<String> handleSaslReply(final int code) {
+		final List<String> reply = new ArrayList<String>();
+		if (code == 900) {
+			// RPL_LOGGEDIN
+			authenticated = true;
+		} else if (code == 903 || code == 907) {
+			// RPL_SASLSUCCESS, ERR_SASLALREADY
+			authenticated = true;
+			finishSasl(reply);
+		} else if (code == 902 || code == 904 || code == 905 || code == 906
+				|| code == 908) {
+			// nick locked, failed, too long, aborted, wrong mechanisms
+			finishSasl(reply);
+		}
+		return reply;
+	}
+	
+	/**
+	 * Checks whether the bot logged in with SASL on this connection.
+	 * 
+	 * @return Whether it did.
+	 */
+	public boolean isAuthenticated() {
+		return authenticated;
+	}
+	
+	/**
+	 * Checks whether a SASL login is in progress.
+	 * 
+	 * @return Whether it is.
+	 */
+	public boolean isAuthenticating() {
+		return saslActive;
+	}
+	
+	/**
+	 * Checks whether a capability has been enabled.
+	 * 
+	 * @param cap The name of the capability.
+	 * @return Whether it has.
+	 */
+	public boolean isEnabled(final String cap) {
+		return enabled.contains(cap);
+	}
+	
+	/**
+	 * Checks whether negotiation has been started on this connection.
+	 * 
+	 * @return Whether it has.
+	 */
+	public boolean isStarted() {
+		return started;
+	}
+	
+	/**
+	 * Forgets everything about the current connection.
+	 */
+	public void reset() {
+		authenticated = false;
+		enabled.clear();
+		offered.setLength(0);
+		ended = false;
+		registered = false;
+		saslAccount = null;
+		saslActive = false;
+		saslPassword = null;
+		started = false;
+	}
+	
+	/**
+	 * Sets the credentials to log in with over SASL on this connection.
+	 * 
+	 * @param account The account to log in as.
+	 * @param password The password. The array is read when the server asks
+	 * for it, and is not modified.
+	 */
+	public void setCredentials(final String account, final char[] password) {
+		saslAccount = account;
+		saslPassword = password;
+	}
+	
+	/**
+	 * Records that the server has finished registering the bot, after which
+	 * CAP END is no longer needed.
+	 */
+	public void setRegistered() {
+		registered = true;
+	}
+	
+	/**
+	 * Finishes negotiation by adding CAP END to a reply, if the server is
+	 * still waiting for it.
+	 * 
+	 * @param reply The lines to send.
+	 */
+	private void end(final List<String> reply) {
+		if (!ended && !registered) {
+			reply.add("CAP END");
+		}
+		ended = true;
+	}
+	
+	/**
+	 * Ends a SASL login and finishes negotiation.
+	 * 
+	 * @param reply The lines to send.
+	 */
+	private void finishSasl(final List<String> reply) {
+		if (saslActive) {
+			saslActive = false;
+			end(reply);
+		}
+	}
+	
+	/**
+	 * Builds the base64 encoded SASL PLAIN message. The authorization and
+	 * authentication identities are both the account.
+	 * 
+	 * @return The encoded message.
+	 */
+	private String saslPayload() {
+		final char[] msg = new char[(saslAccount.length() * 2)
+				+ saslPassword.length + 2];
+		saslAccount.getChars(0, saslAccount.length(), msg, 0);
+		msg[saslAccount.length()] = '\0';
+		saslAccount.getChars(0, saslAccount.length(), msg,
+				saslAccount.length() + 1);
+		msg[(saslAccount.length() * 2) + 1] = '\0';
+		System.arraycopy(saslPassword, 0, msg, (saslAccount.length() * 2) + 2,
+				saslPassword.length);
+		final ByteBuffer buf = Charset.forName("UTF-8").encode(
+				CharBuffer.wrap(msg));
+		final byte[] bytes = new byte[buf.remaining()];
+		buf.get(bytes);
+		final String encoded = Base64.getEncoder().encodeToString(bytes);
+		Arrays.fill(msg, '\0');
+		Arrays.fill(bytes, (byte) 0);
+		if (buf.hasArray()) {
+			Arrays.fill(buf.array(), (byte) 0);
+		}
+		return encoded;
+	}
+	
+	/**
+	 * Picks the capabilities that SmartBot wants out of a list offered by the
+	 * server.
+	 * 
+	 * @param caps The offered capabilities, separated by spaces. Each may have
+	 * a value after an equals sign.
+	 * @return The wanted capabilities that are offered, separated by spaces.
+	 */
+	private String wanted(final String caps) {
+		final StringBuilder sb = new StringBuilder();
+		for (final String cap : caps.split(" ")) {
+			final int eq = cap.indexOf('=');
+			final String name = (eq >= 0) ? cap.substring(0, eq) : cap;
+			if (name.equals("sasl") && saslPassword != null && !registered
+					&& (eq < 0 || cap.substring(eq + 1).contains("PLAIN"))) {
+				if (sb.length() > 0) {
+					sb.append(' ');
+				}
+				sb.append(name);
+			}
+			for (final String w : CapNegotiator.WANTED) {
+				if (w.equals(name) && !enabled.contains(name)) {
+					if (sb.length() > 0) {
+						sb.append(' ');
+					}
+					sb.append(name);
+				}
+			}
+		}
+		return sb.toString();
+	}
+}
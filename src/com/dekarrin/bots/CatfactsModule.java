@@ -79,7 +79,7 @@ public class CatfactsModule extends Module {
 	
 	@Override
 	public boolean onMessage(String channel, String sender, String login, String hostname, String message) {
-		if (Math.random() < odds) {
+		if (bot.getRandom().nextDouble() < odds) {
 			URL url = null;
 			String fact = "";
 			try {
@@ -0,0 +1,106 @@
+package com.dekarrin.bots;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps command names to the modules that define them, so that a command
+ * given without a module name can be routed with a single lookup. A
+ * CommandIndex is immutable; a new one must be built whenever the set of
+ * enabled modules changes.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class CommandIndex {
+	
+	/**
+	 * The modules that a single command name could refer to.
+	 */
+	public static class Route {
+		
+		private final String moduleList;
+		
+		private final Module[] modules;
+		
+		private Route(final List<Module> modules) {
+			this.modules = modules.toArray(new Module[modules.size()]);
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < this.modules.length; i++) {
+				sb.append(this.modules[i].getName());
+				if ((i + 1) < this.modules.length) {
+					sb.append(", ");
+				}
+			}
+			moduleList = sb.toString();
+		}
+		
+		/**
+		 * Gets the module that the command is routed to. If the route is
+		 * ambiguous, this is the first module that defines the command.
+		 * 
+		 * @return The module.
+		 */
+		public Module getModule() {
+			return modules[0];
+		}
+		
+		/**
+		 * Gets the names of all modules that define the command, as a comma
+		 * separated list suitable for showing to a user.
+		 * 
+		 * @return The list of names.
+		 */
+		public String getModuleList() {
+			return moduleList;
+		}
+		
+		/**
+		 * Checks whether more than one module defines the command.
+		 * 
+		 * @return Whether it does.
+		 */
+		public boolean isAmbiguous() {
+			return (modules.length > 1);
+		}
+	}
+	
+	private final Map<String, Route> routes;
+	
+	/**
+	 * Builds an index of all commands in the given modules.
+	 * 
+	 * @param modules The modules to index, in the order that they should be
+	 * listed in when a command is ambiguous.
+	 */
+	public CommandIndex(final Collection<Module> modules) {
+		final Map<String, List<Module>> owners = new HashMap<String, List<Module>>();
+		for (final Module mod : modules) {
+			for (final String command : mod.getCommandNames()) {
+				List<Module> list = owners.get(command);
+				if (list == null) {
+					list = new ArrayList<Module>();
+					owners.put(command, list);
+				}
+				list.add(mod);
+			}
+		}
+		routes = new HashMap<String, Route>();
+		for (final Map.Entry<String, List<Module>> e : owners.entrySet()) {
+			routes.put(e.getKey(), new Route(e.getValue()));
+		}
+	}
+	
+	/**
+	 * Finds the modules that define a command.
+	 * 
+	 * @param command The name of the command. Case-insensitive.
+	 * @return The route for the command, or null if no indexed module defines
+	 * it.
+	 */
+	public Route get(final String command) {
+		return routes.get(command.toUpperCase());
+	}
+}
@@ -0,0 +1,120 @@
+package com.dekarrin.bots;
+
+/**
+ * Splits lines of text into commands. This replaces the chain of
+ * toUpperCase(), trim(), replaceAll() and split() calls that was previously
+ * done on every line, none of which is needed for the common case of a line
+ * that is not a command at all.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+final class CommandTokenizer {
+	
+	private static final String[] EMPTY_COMMAND = {""};
+	
+	private CommandTokenizer() {}
+	
+	/**
+	 * Finds where the command starts in a channel message. A message is a
+	 * command if it starts with the bot's nick followed by a colon, or with
+	 * the prepend character. The nick is matched case-insensitively.
+	 * 
+	 * @param message The message.
+	 * @param nick The bot's current nick.
+	 * @param usePrependChar Whether the prepend character marks commands.
+	 * @param prependChar The prepend character.
+	 * @return The index of the first character after the prefix, or -1 if
+	 * the message is not a command.
+	 */
+	public static int commandStart(final String message, final String nick,
+			final boolean usePrependChar, final char prependChar) {
+		final int len = nick.length();
+		if (message.length() > len && message.charAt(len) == ':'
+				&& message.regionMatches(true, 0, nick, 0, len)) {
+			return len + 1;
+		} else if (usePrependChar && message.length() > 0
+				&& message.charAt(0) == prependChar) {
+			return 1;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Collapses runs of spaces into a single space and removes leading and
+	 * trailing whitespace.
+	 * 
+	 * @param text The text to normalize.
+	 * @return The normalized text. If nothing needed to change, this is the
+	 * same instance that was passed in.
+	 */
+	public static String normalize(final String text) {
+		final int start = skipLeading(text, 0);
+		final int end = skipTrailing(text, start);
+		boolean collapse = false;
+		for (int i = start + 1; i < end && !collapse; i++) {
+			collapse = (text.charAt(i) == ' ' && text.charAt(i - 1) == ' ');
+		}
+		if (!collapse) {
+			return (start == 0 && end == text.length()) ? text : text
+					.substring(start, end);
+		}
+		final StringBuilder sb = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			final char c = text.charAt(i);
+			if (c != ' ' || text.charAt(i - 1) != ' ') {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Splits a command into its words. Words are separated by one or more
+	 * spaces, and whitespace at either end is ignored.
+	 * 
+	 * @param line The line that contains the command.
+	 * @param offset The index in the line that the command starts at.
+	 * @return The words. If there are none, an array containing only the
+	 * empty string is returned.
+	 */
+	public static String[] tokenize(final String line, final int offset) {
+		final int start = skipLeading(line, offset);
+		final int end = skipTrailing(line, start);
+		if (start == end) {
+			return EMPTY_COMMAND.clone();
+		}
+		int count = 1;
+		for (int i = start + 1; i < end; i++) {
+			if (line.charAt(i) != ' ' && line.charAt(i - 1) == ' ') {
+				count++;
+			}
+		}
+		final String[] argv = new String[count];
+		int word = 0;
+		int wordStart = start;
+		for (int i = start; i <= end; i++) {
+			if (i == end || line.charAt(i) == ' ') {
+				if (wordStart < i) {
+					argv[word++] = line.substring(wordStart, i);
+				}
+				wordStart = i + 1;
+			}
+		}
+		return argv;
+	}
+	
+	private static int skipLeading(final String text, int index) {
+		while (index < text.length() && text.charAt(index) <= ' ') {
+			index++;
+		}
+		return index;
+	}
+	
+	private static int skipTrailing(final String text, final int start) {
+		int end = text.length();
+		while (end > start && text.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return end;
+	}
+}
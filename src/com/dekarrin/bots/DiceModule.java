@@ -9,7 +9,7 @@ public class DiceModule extends Module {
 
 			@Override
 			public void execute(String[] params, String sender, String recipient) {
-				java.util.Random rng = new java.util.Random();
+				RandomSource rng = bot.getRandom();
 				int sides = 6;
 				int count = 1;
 				if (params.length > 0 && !params[0].equals("")) {
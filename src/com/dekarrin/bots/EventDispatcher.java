@@ -0,0 +1,278 @@
+package com.dekarrin.bots;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers events to modules on threads other than the one that reads from
+ * the server, so that a slow module can never hold up reading the socket.
+ * Events are spread across one or more lanes, each of which is served by a
+ * single thread. All events for the same channel go to the same lane and are
+ * therefore delivered in the order that they were received. Events about a
+ * user that are not tied to one channel, such as a quit or a nick change, are
+ * delivered in order with the events on every lane.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class EventDispatcher {
+	
+	/**
+	 * Passes a single event to a module.
+	 */
+	public interface Delivery {
+		
+		/**
+		 * Calls the handler for the event on a module.
+		 * 
+		 * @param m The module to deliver to.
+		 * @return Whether the module consumed the event.
+		 */
+		public boolean deliver(Module m);
+	}
+	
+	/**
+	 * A thread that delivers events.
+	 */
+	private static class DispatchThread extends Thread {
+		
+		public DispatchThread(final Runnable r, final String name) {
+			super(r, name);
+		}
+	}
+	
+	/**
+	 * A queued task that others wait on, and that must let them go ahead if
+	 * it is dropped.
+	 */
+	private interface Releasable extends Runnable {
+		
+		/**
+		 * Lets the tasks that wait on this one go ahead. Called when the task
+		 * could not be queued.
+		 */
+		public void release();
+	}
+	
+	/**
+	 * Holds a lane at a user event until the event has been delivered by
+	 * another lane.
+	 */
+	private static class Hold implements Releasable {
+		
+		private final CountDownLatch arrived;
+		
+		private final CountDownLatch delivered;
+		
+		private final ModuleEvent event;
+		
+		public Hold(final ModuleEvent event, final CountDownLatch arrived,
+				final CountDownLatch delivered) {
+			this.event = event;
+			this.arrived = arrived;
+			this.delivered = delivered;
+		}
+		
+		@Override
+		public void release() {
+			arrived.countDown();
+		}
+		
+		@Override
+		public void run() {
+			arrived.countDown();
+			try {
+				delivered.await();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return "hold for " + event + " event";
+		}
+	}
+	
+	private final ThreadPoolExecutor[] lanes;
+	
+	/**
+	 * Creates a new EventDispatcher and starts its threads.
+	 * 
+	 * @param laneCount The number of lanes that events are spread over.
+	 * @param queueSize The number of events that each lane can hold before
+	 * new events are dropped.
+	 */
+	public EventDispatcher(final int laneCount, final int queueSize) {
+		final RejectedExecutionHandler full = new RejectedExecutionHandler() {
+			
+			@Override
+			public void rejectedExecution(final Runnable r,
+					final ThreadPoolExecutor executor) {
+				if (r instanceof Releasable) {
+					((Releasable) r).release();
+				}
+				if (!executor.isShutdown()) {
+					System.err.println("Warning: event queue is full. Dropping "
+							+ r);
+				}
+			}
+		};
+		lanes = new ThreadPoolExecutor[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			final String name = "EventDispatch-" + (i + 1);
+			final ThreadFactory factory = new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new DispatchThread(r, name);
+					t.setDaemon(true);
+					return t;
+				}
+			};
+			lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(queueSize), factory, full);
+		}
+	}
+	
+	/**
+	 * Checks whether the current thread is one that delivers events.
+	 * 
+	 * @return Whether it is.
+	 */
+	public static boolean isDispatchThread() {
+		return (Thread.currentThread() instanceof DispatchThread);
+	}
+	
+	/**
+	 * Queues an event for delivery. The event is passed to each subscriber in
+	 * turn until one of them consumes it. The subscribers are looked up when
+	 * the event is delivered, so modules that are disabled in the meantime do
+	 * not receive it.
+	 * 
+	 * @param event The type of event.
+	 * @param channel The channel that the event occurred on. Events for the
+	 * same channel are delivered in order. May be null for events that do not
+	 * occur on a channel.
+	 * @param source Provides the modules that currently handle the event.
+	 * @param delivery Calls the handler on each module.
+	 */
+	public void dispatch(final ModuleEvent event, final String channel,
+			final SubscriberSource source, final Delivery delivery) {
+		lanes[laneFor(channel)].execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				deliver(event, source, delivery);
+			}
+			
+			@Override
+			public String toString() {
+				return event + " event";
+			}
+		});
+	}
+	
+	/**
+	 * Queues an event about a user that is not tied to a single channel. The
+	 * event is delivered on the lane for the user's nick, but only once every
+	 * other lane has delivered the events that were queued before it, and the
+	 * other lanes wait until it has been delivered. It is therefore delivered
+	 * in order with the events for every channel that the user is in.
+	 * 
+	 * @param event The type of event.
+	 * @param nick The nick of the user that the event is about.
+	 * @param source Provides the modules that currently handle the event.
+	 * @param delivery Calls the handler on each module.
+	 */
+	public synchronized void dispatchUser(final ModuleEvent event,
+			final String nick, final SubscriberSource source,
+			final Delivery delivery) {
+		final int lane = laneFor(nick);
+		final CountDownLatch arrived = new CountDownLatch(lanes.length - 1);
+		final CountDownLatch delivered = new CountDownLatch(1);
+		for (int i = 0; i < lanes.length; i++) {
+			if (i != lane) {
+				lanes[i].execute(new Hold(event, arrived, delivered));
+			}
+		}
+		lanes[lane].execute(new Releasable() {
+			
+			@Override
+			public void release() {
+				delivered.countDown();
+			}
+			
+			@Override
+			public void run() {
+				try {
+					arrived.await();
+					deliver(event, source, delivery);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					delivered.countDown();
+				}
+			}
+			
+			@Override
+			public String toString() {
+				return event + " event";
+			}
+		});
+	}
+	
+	/**
+	 * Passes an event to each subscriber in turn until one of them consumes
+	 * it.
+	 */
+	private void deliver(final ModuleEvent event,
+			final SubscriberSource source, final Delivery delivery) {
+		try {
+			for (final Module m : source.getSubscribers(event)) {
+				if (delivery.deliver(m)) {
+					break;
+				}
+			}
+		} catch (final RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Picks the lane for a channel or nick.
+	 */
+	private int laneFor(final String key) {
+		if (key == null) {
+			return 0;
+		}
+		return (key.toLowerCase().hashCode() & 0x7fffffff) % lanes.length;
+	}
+	
+	/**
+	 * Stops delivering events. Events that have already been queued are still
+	 * delivered.
+	 */
+	public void shutdown() {
+		for (final ThreadPoolExecutor lane : lanes) {
+			lane.shutdown();
+		}
+	}
+	
+	/**
+	 * Provides the modules that handle an event.
+	 */
+	public interface SubscriberSource {
+		
+		/**
+		 * Gets the modules that handle an event.
+		 * 
+		 * @param event The event.
+		 * @return The modules, in the order that they should receive it.
+		 */
+		public Module[] getSubscribers(ModuleEvent event);
+	}
+}
@@ -0,0 +1,50 @@
+package com.dekarrin.bots;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Holds, for each type of event, the modules that handle it. Only modules
+ * that override the handler for an event are subscribed to it, so an event
+ * is never passed to the no-op default in Module. EventSubscribers is
+ * immutable; a new one must be built whenever the set of enabled modules
+ * changes.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class EventSubscribers {
+	
+	private final Module[][] subscribers;
+	
+	/**
+	 * Builds the subscriber lists for the given modules.
+	 * 
+	 * @param modules The modules to subscribe, in the order that they should
+	 * receive events.
+	 */
+	public EventSubscribers(final Collection<Module> modules) {
+		final ModuleEvent[] events = ModuleEvent.values();
+		subscribers = new Module[events.length][];
+		for (final ModuleEvent e : events) {
+			final List<Module> subs = new ArrayList<Module>();
+			for (final Module mod : modules) {
+				if (ModuleEvent.handledBy(mod).contains(e)) {
+					subs.add(mod);
+				}
+			}
+			subscribers[e.ordinal()] = subs.toArray(new Module[subs.size()]);
+		}
+	}
+	
+	/**
+	 * Gets the modules that handle an event, in the order that they should
+	 * receive it. The returned array must not be modified.
+	 * 
+	 * @param event The event.
+	 * @return The subscribed modules.
+	 */
+	public Module[] get(final ModuleEvent event) {
+		return subscribers[event.ordinal()];
+	}
+}
@@ -0,0 +1,71 @@
+package com.dekarrin.bots;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Keeps the access rights of files that are replaced rather than written in
+ * place. A file that replaces another is created readable only by its owner,
+ * and is given the permissions, owner and group of the file that it replaces
+ * before it takes its place, so that a file that was made private stays
+ * private. On file systems without POSIX permissions, nothing is changed.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+final class FilePermissions {
+	
+	private FilePermissions() {}
+	
+	/**
+	 * Gives a file the permissions, owner and group of another. Nothing is
+	 * done if the other file does not exist. Failing to change the owner or
+	 * group is not an error, since only a privileged user may do that, but
+	 * failing to change the permissions is.
+	 * 
+	 * @param from The file to copy from.
+	 * @param to The file to copy to.
+	 * @throws IOException If the permissions could not be copied.
+	 */
+	public static void copy(final File from, final File to) throws IOException {
+		final Path source = from.toPath();
+		final PosixFileAttributeView target = Files.getFileAttributeView(
+				to.toPath(), PosixFileAttributeView.class);
+		if (target == null || !Files.exists(source)) {
+			return;
+		}
+		final PosixFileAttributes attrs = Files.getFileAttributeView(source,
+				PosixFileAttributeView.class).readAttributes();
+		try {
+			target.setOwner(attrs.owner());
+			target.setGroup(attrs.group());
+		} catch (final IOException e) {
+			// not allowed to give the file away; it keeps the current user
+		}
+		target.setPermissions(attrs.permissions());
+	}
+	
+	/**
+	 * Creates an empty file that only its owner can read or write. Any file
+	 * already at the path is deleted first, so that it cannot be reused with
+	 * wider permissions.
+	 * 
+	 * @param file The file to create.
+	 * @throws IOException If the file could not be created.
+	 */
+	public static void createPrivate(final File file) throws IOException {
+		final Path path = file.toPath();
+		Files.deleteIfExists(path);
+		if (Files.getFileAttributeView(path.toAbsolutePath().getParent(),
+				PosixFileAttributeView.class) != null) {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(
+					PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(path);
+		}
+	}
+}
@@ -1,17 +1,40 @@
 package com.dekarrin.bots;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class GamblerModule extends Module {
 	
+	public static final int AROUND_RADIUS = 2;
+	
+	/**
+	 * Default number of players whose balances are kept in memory. Others
+	 * are read from the ledger when they are needed. Set by the hot_players
+	 * setting; 0 keeps every player in memory.
+	 */
+	public static final int DEFAULT_HOT_PLAYERS = 1000;
+	
+	/**
+	 * The name of the file in the bot's data directory that balances are
+	 * kept in.
+	 */
+	public static final String LEDGER_FILE = ".acmbotledger";
+	
+	public static final int MAX_TOP_COUNT = 10;
+	
 	public static final long MAXIMUM_WINNINGS = 100000000L;
 	
 	public static final long STARTING_MONEY = 100L;
 	
 	public static final int TOP_COUNT = 3;
 	
-	private final Map<String, Long> money = new HashMap<String, Long>();
+	private final BalanceStore balances = new BalanceStore();
+	
+	private final Leaderboard leaderboard = new Leaderboard(GamblerModule.MAX_TOP_COUNT * 2);
+	
+	private Ledger ledger = null;
 	
 	public GamblerModule() {
 		super("GAMBLER", "v0.1", "Let's you gamble money!");
@@ -21,32 +44,45 @@ public class GamblerModule extends Module {
 			public void execute(String[] params, String sender, String recipient) {
 				String nick = bot.getRegisteredNick(sender);
 				if (nick != null) {
-					checkGambler(recipient, nick);
-					long current = getMoney(nick);
-					if (current > 0) {
-						long amount = calcGamble(current);
-						if (amount > 0) {
-							bot.sendMessage(recipient, sender + ": You won $"
-									+ amount + "!");
-						} else if (amount < 0) {
-							bot.sendMessage(recipient, sender + ": You lost $"
-									+ Math.abs(amount) + "!");
+					if (!checkLedger(recipient, sender)) {
+						return;
+					}
+					try {
+						checkGambler(recipient, nick);
+						long[] result = balances.bet(nick.toUpperCase(), new BalanceStore.Bet() {
+							
+							@Override
+							public long amount(long balance) {
+								return calcGamble(balance);
+							}
+						});
+						if (result != null) {
+							long amount = result[0];
+							long total = result[1];
+							if (!saveBalances(recipient, sender)) {
+								return;
+							}
+							if (amount > 0) {
+								bot.sendMessage(recipient, sender + ": You won $"
+										+ amount + "!");
+							} else if (amount < 0) {
+								bot.sendMessage(recipient, sender + ": You lost $"
+										+ Math.abs(amount) + "!");
+							} else {
+								bot.sendMessage(recipient, sender
+										+ ": You broke even.");
+							}
+							bot.sendMessage(recipient, sender + ": You now have $"
+									+ total);
 						} else {
-							bot.sendMessage(recipient, sender
-									+ ": You broke even.");
-						}
-						long total = current + amount;
-						if (total < 0) {
-							total = 0;
+							bot.sendMessage(
+									recipient,
+									sender
+											+ ": You can't gamble; you're broke! Beg for money from someone!");
 						}
-						setMoney(nick, total);
-						bot.sendMessage(recipient, sender + ": You now have $"
-								+ total);
-					} else {
-						bot.sendMessage(
-								recipient,
-								sender
-										+ ": You can't gamble; you're broke! Beg for money from someone!");
+					} catch (IllegalStateException e) {
+						e.printStackTrace();
+						sendLedgerFailed(recipient, sender);
 					}
 				} else {
 					bot.sendMessage(
@@ -70,18 +106,8 @@ public class GamblerModule extends Module {
 			
 			@Override
 			public void execute(String[] params, String sender, String recipient) {
-				String nickToCheck = null;
-				if (params.length > 0) {
-					nickToCheck = params[0];
-				} else {
-					String logged = bot.getRegisteredNick(sender);
-					if (logged == null) {
-						nickToCheck = sender;
-					} else {
-						nickToCheck = logged;
-					}
-				}
-				if (money.containsKey(nickToCheck.toUpperCase())) {
+				String nickToCheck = getNickToCheck(params, sender);
+				if (balances.contains(nickToCheck.toUpperCase())) {
 					long amount = getMoney(nickToCheck);
 					bot.sendMessage(recipient, sender + ": " + nickToCheck
 							+ " has $" + amount);
@@ -105,45 +131,104 @@ public class GamblerModule extends Module {
 			
 			@Override
 			public void execute(String[] params, String sender, String recipient) {
-				long[] tops = new long[GamblerModule.TOP_COUNT];
-				String[] topNames = new String[GamblerModule.TOP_COUNT];
-				for (int i = 0; i < GamblerModule.TOP_COUNT; i++) {
-					tops[i] = 0L;
-					topNames[i] = null;
-				}
-				int notNulls = Math.min(GamblerModule.TOP_COUNT, money.size());
-				for (String name : money.keySet()) {
-					long value = getMoney(name);
-					for (int i = 0; i < GamblerModule.TOP_COUNT; i++) {
-						if (value >= tops[i]) {
-							for (int j = GamblerModule.TOP_COUNT - 1; j > i; j--) {
-								tops[j] = tops[j - 1];
-								topNames[j] = topNames[j - 1];
-							}
-							tops[i] = value;
-							topNames[i] = name;
-							break;
-						}
+				int count = GamblerModule.TOP_COUNT;
+				if (params.length > 0 && !params[0].equals("")) {
+					try {
+						count = Math.max(1, Math.min(GamblerModule.MAX_TOP_COUNT, Integer.parseInt(params[0])));
+					} catch (NumberFormatException e) {
+						bot.sendBadSyntax(recipient, sender);
+						return;
 					}
 				}
-				String p = (notNulls == 1) ? " is" : "s are";
-				bot.sendMessage(recipient, sender + ": top "
-						+ GamblerModule.TOP_COUNT + " score" + p + "...");
-				for (int i = 0; i < notNulls; i++) {
-					bot.sendMessage(recipient, sender + ": #" + (i + 1) + " - "
-							+ tops[i] + " - " + topNames[i]);
+				List<Leaderboard.Entry> tops;
+				try {
+					tops = leaderboard.top(count);
+				} catch (IOException e) {
+					e.printStackTrace();
+					sendLeaderboardFailed(recipient, sender);
+					return;
 				}
+				String p = (tops.size() == 1) ? " is" : "s are";
+				bot.sendMessage(recipient, sender + ": top "
+						+ count + " score" + p + "...");
+				sendEntries(recipient, sender, tops);
 			}
 			
 			@Override
 			public String help() {
 				return "Shows the top " + GamblerModule.TOP_COUNT
-						+ " records for gambling money";
+						+ " records for gambling money, or up to "
+						+ GamblerModule.MAX_TOP_COUNT + " if a count is given";
 			}
 			
 			@Override
 			public String syntax() {
-				return "%s";
+				return "%s <count>";
+			}
+		});
+		addCommand("RANK", new BotAction() {
+			
+			@Override
+			public void execute(String[] params, String sender, String recipient) {
+				String nickToCheck = getNickToCheck(params, sender);
+				if (balances.contains(nickToCheck.toUpperCase())) {
+					long money = getMoney(nickToCheck);
+					int rank;
+					try {
+						rank = leaderboard.rank(money);
+					} catch (IOException e) {
+						e.printStackTrace();
+						sendLeaderboardFailed(recipient, sender);
+						return;
+					}
+					bot.sendMessage(recipient, sender + ": " + nickToCheck
+							+ " is ranked #" + rank + " of " + leaderboard.size()
+							+ " with $" + money);
+				} else {
+					bot.sendMessage(recipient, sender + ": " + nickToCheck
+							+ " doesn't gamble");
+				}
+			}
+			
+			@Override
+			public String help() {
+				return "shows where a user ranks for gambling money";
+			}
+			
+			@Override
+			public String syntax() {
+				return "%s <nick>";
+			}
+		});
+		addCommand("AROUND", new BotAction() {
+			
+			@Override
+			public void execute(String[] params, String sender, String recipient) {
+				String nickToCheck = getNickToCheck(params, sender);
+				if (balances.contains(nickToCheck.toUpperCase())) {
+					List<Leaderboard.Entry> near;
+					try {
+						near = leaderboard.around(nickToCheck.toUpperCase(), getMoney(nickToCheck), GamblerModule.AROUND_RADIUS);
+					} catch (IOException e) {
+						e.printStackTrace();
+						sendLeaderboardFailed(recipient, sender);
+						return;
+					}
+					sendEntries(recipient, sender, near);
+				} else {
+					bot.sendMessage(recipient, sender + ": " + nickToCheck
+							+ " doesn't gamble");
+				}
+			}
+			
+			@Override
+			public String help() {
+				return "shows the gambling records ranked just above and below a user";
+			}
+			
+			@Override
+			public String syntax() {
+				return "%s <nick>";
 			}
 		});
 		addCommand("SETTOTAL", new BotAction() {
@@ -153,15 +238,21 @@ public class GamblerModule extends Module {
 				if (bot.isAuthorized(sender)) {
 					if (params.length < 2) {
 						bot.sendBadSyntax(recipient, sender);
-					} else {
+					} else if (checkLedger(recipient, sender)) {
 						try {
 							long amt = Long.parseLong(params[1]);
 							checkGambler(recipient, params[0]);
 							setMoney(params[0], amt);
+							if (!saveBalances(recipient, sender)) {
+								return;
+							}
 							bot.sendMessage(recipient, sender + ": "
 									+ params[0] + "'s money was set to $" + amt);
 						} catch (NumberFormatException e) {
 							bot.sendMessage(recipient, sender + ": Bad amount!");
+						} catch (IllegalStateException e) {
+							e.printStackTrace();
+							sendLedgerFailed(recipient, sender);
 						}
 					}
 				} else {
@@ -192,22 +283,33 @@ public class GamblerModule extends Module {
 				} else {
 					if (params.length < 2) {
 						bot.sendBadSyntax(recipient, sender);
-					} else {
+					} else if (checkLedger(recipient, sender)) {
 						try {
 							long donation = Long.parseLong(params[1]);
-							if (getMoney(donner) >= donation) {
+							if (donation < 0) {
+								bot.sendMessage(recipient, sender + ": bad amount!");
+							} else if (getMoney(donner) >= donation) {
 								checkGambler(recipient, params[0]);
-								setMoney(donner, getMoney(donner) - donation);
-								setMoney(params[0], getMoney(params[0])
-										+ donation);
-								bot.sendMessage(recipient, sender + " gifted $"
-										+ donation + " to " + params[0]);
+								boolean gifted = balances.transfer(donner.toUpperCase(), params[0].toUpperCase(), donation);
+								if (!saveBalances(recipient, sender)) {
+									return;
+								}
+								if (gifted) {
+									bot.sendMessage(recipient, sender + " gifted $"
+											+ donation + " to " + params[0]);
+								} else {
+									bot.sendMessage(recipient, sender
+											+ ": you don't have enough money!");
+								}
 							} else {
 								bot.sendMessage(recipient, sender
 										+ ": you don't have enough money!");
 							}
 						} catch (NumberFormatException e) {
 							bot.sendMessage(recipient, sender + ": bad amount!");
+						} catch (IllegalStateException e) {
+							e.printStackTrace();
+							sendLedgerFailed(recipient, sender);
 						}
 					}
 				}
@@ -227,44 +329,274 @@ public class GamblerModule extends Module {
 	}
 	
 	private long calcGamble(long current) {
-		double out = 2 * Math.random() - 1;
+		double out = 2 * bot.getRandom().nextDouble() - 1;
 		long winnings = Math.round(Math.min(current, GamblerModule.MAXIMUM_WINNINGS) * out);
 		return winnings;
 	}
 	
+	/**
+	 * Checks whether changes to the balances can still be saved, and tells
+	 * the sender if they cannot.
+	 * 
+	 * @return Whether they can.
+	 */
+	private boolean checkLedger(String recipient, String sender) {
+		if (ledger != null && ledger.isFailed()) {
+			sendLedgerFailed(recipient, sender);
+			return false;
+		}
+		return true;
+	}
+	
 	private void checkGambler(String recipient, String nick) {
-		if (!money.containsKey(nick.toUpperCase())) {
-			setMoney(nick, GamblerModule.STARTING_MONEY);
+		if (balances.putIfAbsent(nick.toUpperCase(), GamblerModule.STARTING_MONEY)) {
 			bot.sendMessage(recipient, "Welcome to the gambling ring, " + nick
 					+ "! You start with $" + GamblerModule.STARTING_MONEY);
 		}
 	}
 	
+	/**
+	 * Gets the nick that a command asks about. This is the first parameter if
+	 * there is one, and otherwise the sender.
+	 */
+	private String getNickToCheck(String[] params, String sender) {
+		if (params.length > 0) {
+			return params[0];
+		}
+		String logged = bot.getRegisteredNick(sender);
+		if (logged == null) {
+			return sender;
+		} else {
+			return logged;
+		}
+	}
+	
 	@Override
 	protected void onModuleAdded() {
+		ledger = new Ledger(bot.getDataFile(GamblerModule.LEDGER_FILE).getPath());
+		try {
+			ledger.open();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Warning: could not open the gambling ledger. Balances will not be saved!");
+			ledger = null;
+		}
+		// balances are only loaded into memory when they are used, and the
+		// leaderboard reads every player from the ledger only when it has to
+		if (ledger != null) {
+			leaderboard.setSource(new Leaderboard.Source() {
+				
+				@Override
+				public void scan(final Leaderboard.Visitor visitor) throws IOException {
+					ledger.scan(new Ledger.Visitor() {
+						
+						@Override
+						public void visit(String name, long balance) {
+							visitor.visit(name, balance);
+						}
+					});
+				}
+			});
+			balances.setLimit(readHotPlayers());
+			balances.setSource(new BalanceStore.Source() {
+				
+				@Override
+				public Long load(String name) {
+					try {
+						return ledger.get(name);
+					} catch (IOException e) {
+						throw new IllegalStateException("Could not read the balance of " + name, e);
+					}
+				}
+			});
+		} else {
+			// without a ledger, every player stays in memory
+			leaderboard.setSource(new Leaderboard.Source() {
+				
+				@Override
+				public void scan(final Leaderboard.Visitor visitor) {
+					balances.forEach(new BalanceStore.Visitor() {
+						
+						@Override
+						public void visit(String name, long balance) {
+							visitor.visit(name, balance);
+						}
+					});
+				}
+			});
+		}
+		try {
+			leaderboard.load();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("Warning: could not read the gambling ledger. Ranks will be wrong until the bot is restarted!");
+		}
+		// from now on, record every change in the ledger and keep the
+		// leaderboard in step, in the order that the changes are made. The
+		// ledger hears of a change first, so that the leaderboard never knows
+		// of a change that reading the ledger would not show. If the ledger
+		// refuses a change, the store takes it back, so nothing hears of it.
+		balances.setListener(new BalanceStore.Listener() {
+			
+			@Override
+			public void balanceChanged(BalanceStore.Change change, String name, long delta, long balance) {
+				if (change == BalanceStore.Change.UNDONE) {
+					// the ledger failed partway through the change, so it will
+					// never write the part that it accepted
+					leaderboard.put(name, Long.valueOf(balance - delta), balance);
+					return;
+				}
+				if (ledger != null) {
+					ledger.append(toOp(change), name, delta, balance);
+				}
+				Long old = (change == BalanceStore.Change.JOINED) ? null : Long.valueOf(balance - delta);
+				leaderboard.put(name, old, balance);
+			}
+		});
+		importSettings();
+	}
+	
+	/**
+	 * Moves balances that were kept in the settings before there was a ledger
+	 * into the ledger, then removes them from the settings. A balance that is
+	 * already in the ledger is newer than the one in the settings, which must
+	 * be left over from an earlier import that was interrupted. Without a
+	 * ledger, the balances are still loaded but are left in the settings.
+	 */
+	private void importSettings() {
 		Map<String, String> settingsMap = settings.getAllModuleSettings(getName());
-		if (settingsMap != null) {
-			for (String s : settingsMap.keySet()) {
-				if (s.startsWith("MONEY-")) {
-					String user = s.substring(6);
+		if (settingsMap == null) {
+			return;
+		}
+		List<String> imported = new ArrayList<String>();
+		for (Map.Entry<String, String> e : settingsMap.entrySet()) {
+			if (e.getKey().startsWith("MONEY-")) {
+				String user = e.getKey().substring(6).toUpperCase();
+				if (!balances.contains(user)) {
 					try {
-						long amt = Long.parseLong(settingsMap.get(s));
-						money.put(user.toUpperCase(), amt);
-					} catch (NumberFormatException e) {
-						e.printStackTrace();
+						balances.put(user, Long.parseLong(e.getValue()));
+					} catch (NumberFormatException ex) {
+						ex.printStackTrace();
+					} catch (IllegalStateException ex) {
+						// the ledger has failed, so the settings are kept
+						ex.printStackTrace();
+						return;
 					}
 				}
+				imported.add(e.getKey());
 			}
 		}
+		if (ledger != null && !imported.isEmpty()) {
+			try {
+				ledger.sync();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			settings.removeModuleSettings(getName(), imported);
+		}
+	}
+	
+	/**
+	 * Gets the number of times that a player's balance was found in memory.
+	 */
+	public long getBalanceCacheHits() {
+		return balances.getHits();
+	}
+	
+	/**
+	 * Gets the number of times that a player's balance had to be read from
+	 * the ledger.
+	 */
+	public long getBalanceCacheMisses() {
+		return balances.getMisses();
+	}
+	
+	/**
+	 * Gets the number of times that a player's balance was dropped from
+	 * memory to make room for others.
+	 */
+	public long getBalanceCacheEvictions() {
+		return balances.getEvictions();
 	}
 	
 	private long getMoney(String user) {
-		return money.get(user.toUpperCase());
+		return balances.get(user.toUpperCase(), 0L);
+	}
+	
+	/**
+	 * Waits until every change to the balances so far has been written to
+	 * the ledger, and tells the sender if they could not be.
+	 * 
+	 * @return Whether the changes were written.
+	 */
+	private boolean saveBalances(String recipient, String sender) {
+		if (ledger != null) {
+			try {
+				ledger.sync();
+			} catch (IOException e) {
+				e.printStackTrace();
+				sendLedgerFailed(recipient, sender);
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads the number of players to keep in memory from the settings.
+	 */
+	private int readHotPlayers() {
+		String value = settings.getModuleSetting(getName(), "hot_players");
+		if (value == null) {
+			return GamblerModule.DEFAULT_HOT_PLAYERS;
+		}
+		try {
+			int limit = Integer.parseInt(value.trim());
+			if (limit >= 0) {
+				return limit;
+			}
+		} catch (NumberFormatException e) {
+			// fall through to the warning
+		}
+		System.err.println("Warning: config value for hot_players is invalid. Defaulting to "
+				+ GamblerModule.DEFAULT_HOT_PLAYERS);
+		return GamblerModule.DEFAULT_HOT_PLAYERS;
+	}
+	
+	private void sendEntries(String recipient, String sender, List<Leaderboard.Entry> entries) {
+		for (Leaderboard.Entry e : entries) {
+			bot.sendMessage(recipient, sender + ": #" + e.getRank() + " - "
+					+ e.getBalance() + " - " + e.getName());
+		}
+	}
+	
+	private void sendLeaderboardFailed(String recipient, String sender) {
+		bot.sendMessage(recipient, sender
+				+ ": The gambling ledger can't be read right now!");
+	}
+	
+	private void sendLedgerFailed(String recipient, String sender) {
+		bot.sendMessage(recipient, sender
+				+ ": The gambling ledger can't be written to, so no money can change hands right now!");
 	}
 	
 	private void setMoney(String user, long money) {
-		this.money.put(user.toUpperCase(), money);
-		settings.setModuleSetting(getName(), "MONEY-" + user.toUpperCase(),
-				money + "");
+		balances.put(user.toUpperCase(), money);
+	}
+	
+	private static Ledger.Op toOp(BalanceStore.Change change) {
+		switch (change) {
+			case ADDED:
+				return Ledger.Op.GAMBLE;
+			case JOINED:
+				return Ledger.Op.JOIN;
+			case RECEIVED:
+				return Ledger.Op.GIFT_RECEIVED;
+			case SENT:
+				return Ledger.Op.GIFT_SENT;
+			default:
+				return Ledger.Op.SET;
+		}
 	}
 }
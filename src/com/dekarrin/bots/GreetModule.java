@@ -53,7 +53,7 @@ public class GreetModule extends Module {
 	@Override
 	public boolean onJoin(String channel, String sender, String login, String hostname) {
 		if (!sender.equals(bot.getNick())) {
-			int msgIndex = (new java.util.Random()).nextInt(greets.size());
+			int msgIndex = bot.getRandom().nextInt(greets.size());
 			String msg = String.format(greets.get(msgIndex), sender);
 			bot.sendMessage(bot.getChannel(), msg);
 			return true;
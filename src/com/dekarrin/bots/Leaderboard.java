@@ -0,0 +1,597 @@
+package com.dekarrin.bots;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranks players by balance without keeping every player in memory. Players
+ * are only counted, in buckets by balance: every balance below 512 has a
+ * bucket of its own, and each power of two above that is split into 256
+ * buckets. A Fenwick tree over the buckets gives the number of players in
+ * the buckets above a balance in O(log b) time. The source of the balances
+ * only has to be read to rank a player that shares one of the wider buckets
+ * with other players.
+ * 
+ * <p>The players with the highest balances are also kept in a short list, so
+ * that the top of the leaderboard can be shown without reading the source.
+ * The list is kept up to date as balances change, and is read again from the
+ * source when players falling out of it have left it too short.
+ * 
+ * <p>Players with the same balance share a rank. Lists of players show them
+ * in order of name.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class Leaderboard {
+	
+	/**
+	 * A player's place on the leaderboard.
+	 */
+	public static class Entry {
+		
+		private final long balance;
+		
+		private final String name;
+		
+		private final int rank;
+		
+		private Entry(final String name, final long balance, final int rank) {
+			this.name = name;
+			this.balance = balance;
+			this.rank = rank;
+		}
+		
+		/**
+		 * Gets the player's balance.
+		 * 
+		 * @return The balance.
+		 */
+		public long getBalance() {
+			return balance;
+		}
+		
+		/**
+		 * Gets the player's name.
+		 * 
+		 * @return The name.
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Gets the player's rank. The player with the highest balance is
+		 * ranked 1.
+		 * 
+		 * @return The rank.
+		 */
+		public int getRank() {
+			return rank;
+		}
+	}
+	
+	/**
+	 * Provides the balance of every player.
+	 */
+	public interface Source {
+		
+		/**
+		 * Calls a visitor with the latest balance of every player.
+		 * 
+		 * @param visitor The visitor.
+		 * @throws IOException If the balances could not be read.
+		 */
+		public void scan(Visitor visitor) throws IOException;
+	}
+	
+	/**
+	 * Is shown each player when the source is read.
+	 */
+	public interface Visitor {
+		
+		/**
+		 * Called for each player.
+		 * 
+		 * @param name The name of the player.
+		 * @param balance The balance.
+		 */
+		public void visit(String name, long balance);
+	}
+	
+	private static class Player {
+		
+		public final long balance;
+		
+		public final String name;
+		
+		public Player(final String name, final long balance) {
+			this.name = name;
+			this.balance = balance;
+		}
+	}
+	
+	/**
+	 * Finds the players with the highest balances while the source is read.
+	 */
+	private static class TopFinder implements Visitor {
+		
+		public final List<Player> found = new ArrayList<Player>();
+		
+		public boolean hasRest = false;
+		
+		public long rest = Long.MIN_VALUE;
+		
+		private final int size;
+		
+		public TopFinder(final int size) {
+			this.size = size;
+		}
+		
+		@Override
+		public void visit(final String name, final long balance) {
+			final Player p = new Player(name, balance);
+			if (found.size() == size
+					&& Leaderboard.ORDER.compare(p, found.get(size - 1)) > 0) {
+				leaveOut(balance);
+				return;
+			}
+			found.add(position(found, p), p);
+			if (found.size() > size) {
+				leaveOut(found.remove(size).balance);
+			}
+		}
+		
+		private void leaveOut(final long balance) {
+			rest = hasRest ? Math.max(rest, balance) : balance;
+			hasRest = true;
+		}
+	}
+	
+	/**
+	 * Orders players from the highest balance to the lowest, and players
+	 * with the same balance by name.
+	 */
+	private static final Comparator<Player> ORDER = new Comparator<Player>() {
+		
+		@Override
+		public int compare(final Player a, final Player b) {
+			if (a.balance != b.balance) {
+				return (a.balance > b.balance) ? -1 : 1;
+			}
+			return a.name.compareTo(b.name);
+		}
+	};
+	
+	/**
+	 * The number of bits of a balance, after its highest set bit, that pick
+	 * its bucket.
+	 */
+	private static final int SUB_BUCKET_BITS = 8;
+	
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	/**
+	 * Balances below this each have a bucket of their own.
+	 */
+	private static final long EXACT_LIMIT = 2L * SUB_BUCKETS;
+	
+	/**
+	 * One bucket for negative balances, one for each balance below the exact
+	 * limit, and the sub-buckets of each power of two from there up.
+	 */
+	private static final int BUCKET_COUNT = 1 + (int) EXACT_LIMIT
+			+ (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+	
+	/**
+	 * The players whose balances changed while the source was being read for
+	 * the top list, with their latest balances.
+	 */
+	private final Map<String, Long> changedDuringScan = new LinkedHashMap<String, Long>();
+	
+	private final int[] counts = new int[BUCKET_COUNT];
+	
+	/**
+	 * Whether there are players that are not in the top list.
+	 */
+	private boolean hasOutside = false;
+	
+	/**
+	 * The most that any player who is not in the top list can have.
+	 */
+	private long outside = Long.MIN_VALUE;
+	
+	/**
+	 * Held while the top list is read again, so that only one thread does it
+	 * at a time.
+	 */
+	private final Object rebuildLock = new Object();
+	
+	private boolean scanning = false;
+	
+	private int size = 0;
+	
+	private volatile Source source = null;
+	
+	private final List<Player> top = new ArrayList<Player>();
+	
+	private final int topSize;
+	
+	/**
+	 * The Fenwick tree over the bucket counts. Element i holds the sum of the
+	 * counts of a run of buckets that ends at bucket i - 1.
+	 */
+	private final int[] tree = new int[BUCKET_COUNT + 1];
+	
+	/**
+	 * Creates a new, empty Leaderboard.
+	 * 
+	 * @param topSize The number of players with the highest balances that are
+	 * kept in memory. No more than this many can be listed by
+	 * {@link #top(int)} without reading the source.
+	 */
+	public Leaderboard(final int topSize) {
+		this.topSize = Math.max(1, topSize);
+	}
+	
+	/**
+	 * Lists the players around another player. The source is read to find
+	 * them.
+	 * 
+	 * @param name The name of the player.
+	 * @param balance The balance of the player.
+	 * @param radius The number of places to show on either side of the
+	 * player.
+	 * @return The entries, in order of rank.
+	 * @throws IOException If the source could not be read.
+	 */
+	public List<Entry> around(final String name, final long balance,
+			final int radius) throws IOException {
+		final Player self = new Player(name, balance);
+		final List<Player> above = new ArrayList<Player>();
+		final List<Player> below = new ArrayList<Player>();
+		source.scan(new Visitor() {
+			
+			@Override
+			public void visit(final String n, final long b) {
+				if (n.equals(name)) {
+					return;
+				}
+				final Player p = new Player(n, b);
+				if (ORDER.compare(p, self) < 0) {
+					above.add(position(above, p), p);
+					if (above.size() > radius) {
+						above.remove(0);
+					}
+				} else {
+					below.add(position(below, p), p);
+					if (below.size() > radius) {
+						below.remove(below.size() - 1);
+					}
+				}
+			}
+		});
+		final List<Player> players = new ArrayList<Player>(above);
+		players.add(self);
+		players.addAll(below);
+		final long[] balances = new long[players.size()];
+		for (int i = 0; i < balances.length; i++) {
+			balances[i] = players.get(i).balance;
+		}
+		final int[] ranks = ranks(balances);
+		final List<Entry> entries = new ArrayList<Entry>();
+		for (int i = 0; i < balances.length; i++) {
+			entries.add(new Entry(players.get(i).name, balances[i], ranks[i]));
+		}
+		return entries;
+	}
+	
+	/**
+	 * Reads every player from the source, replacing what the leaderboard held
+	 * before. This must be done before any balance changes are reported.
+	 * 
+	 * @throws IOException If the source could not be read.
+	 */
+	public void load() throws IOException {
+		final int[] found = new int[BUCKET_COUNT];
+		final TopFinder finder = new TopFinder(topSize);
+		source.scan(new Visitor() {
+			
+			@Override
+			public void visit(final String name, final long balance) {
+				found[bucket(balance)]++;
+				finder.visit(name, balance);
+			}
+		});
+		synchronized (this) {
+			size = 0;
+			Arrays.fill(tree, 0);
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				counts[i] = found[i];
+				size += found[i];
+				tree[i + 1] += found[i];
+				final int parent = (i + 1) + ((i + 1) & -(i + 1));
+				if (parent <= BUCKET_COUNT) {
+					tree[parent] += tree[i + 1];
+				}
+			}
+			install(finder);
+		}
+	}
+	
+	/**
+	 * Records a change to a player's balance.
+	 * 
+	 * @param name The name of the player.
+	 * @param old The balance before the change, or null if the player is new.
+	 * @param balance The new balance.
+	 */
+	public synchronized void put(final String name, final Long old,
+			final long balance) {
+		if (old == null) {
+			size++;
+		} else {
+			count(bucket(old), -1);
+		}
+		count(bucket(balance), 1);
+		if (scanning) {
+			changedDuringScan.remove(name);
+			changedDuringScan.put(name, balance);
+		}
+		place(name, balance);
+	}
+	
+	/**
+	 * Gets the rank of a player. The source is only read if the player shares
+	 * a bucket that spans more than one balance with other players.
+	 * 
+	 * @param balance The balance of the player.
+	 * @return The rank.
+	 * @throws IOException If the source could not be read.
+	 */
+	public int rank(final long balance) throws IOException {
+		return ranks(new long[] {balance})[0];
+	}
+	
+	/**
+	 * Sets where the balance of every player is read from.
+	 * 
+	 * @param source The source.
+	 */
+	public void setSource(final Source source) {
+		this.source = source;
+	}
+	
+	/**
+	 * Gets the number of players on the leaderboard.
+	 * 
+	 * @return The number of players.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * Lists the players with the highest balances. The source is only read
+	 * if too few of them are known.
+	 * 
+	 * @param count The number of players to list.
+	 * @return The entries, in order of rank. There are fewer than requested if
+	 * there are not enough players.
+	 * @throws IOException If the source could not be read.
+	 */
+	public List<Entry> top(final int count) throws IOException {
+		synchronized (this) {
+			if (known() >= Math.min(count, size)) {
+				return entries(count);
+			}
+		}
+		rebuild(count);
+		synchronized (this) {
+			return entries(Math.min(count, known()));
+		}
+	}
+	
+	/**
+	 * Finds where a player goes in a list that is in order.
+	 */
+	private static int position(final List<Player> list, final Player p) {
+		final int i = Collections.binarySearch(list, p, ORDER);
+		return (i < 0) ? -i - 1 : i;
+	}
+	
+	/**
+	 * Gets the bucket that a balance is counted in.
+	 */
+	private static int bucket(final long balance) {
+		if (balance < 0) {
+			return 0;
+		}
+		if (balance < EXACT_LIMIT) {
+			return 1 + (int) balance;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(balance);
+		final int sub = (int) (balance >>> (exponent - SUB_BUCKET_BITS))
+				- SUB_BUCKETS;
+		return 1 + (int) EXACT_LIMIT + (exponent - SUB_BUCKET_BITS - 1)
+				* SUB_BUCKETS + sub;
+	}
+	
+	/**
+	 * Adds to the number of players in a bucket.
+	 */
+	private void count(final int bucket, final int delta) {
+		counts[bucket] += delta;
+		for (int i = bucket + 1; i <= BUCKET_COUNT; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+	
+	/**
+	 * Makes entries for the first players in the top list. Must be called
+	 * while holding the lock.
+	 */
+	private List<Entry> entries(final int count) {
+		final List<Entry> entries = new ArrayList<Entry>();
+		int rank = 0;
+		for (int i = 0; i < Math.min(count, top.size()); i++) {
+			final Player p = top.get(i);
+			if (i == 0 || p.balance != top.get(i - 1).balance) {
+				rank = i + 1;
+			}
+			entries.add(new Entry(p.name, p.balance, rank));
+		}
+		return entries;
+	}
+	
+	/**
+	 * Replaces the top list with one read from the source, then applies the
+	 * changes that were made while it was being read.
+	 */
+	private void install(final TopFinder finder) {
+		top.clear();
+		top.addAll(finder.found);
+		outside = finder.rest;
+		hasOutside = finder.hasRest;
+		for (final Map.Entry<String, Long> e : changedDuringScan.entrySet()) {
+			place(e.getKey(), e.getValue());
+		}
+		changedDuringScan.clear();
+	}
+	
+	/**
+	 * Checks whether a balance is above every player who is not in the top
+	 * list, so that every player with more is in the top list. Must be
+	 * called while holding the lock.
+	 */
+	private boolean isKnown(final long balance) {
+		return !hasOutside || balance > outside;
+	}
+	
+	/**
+	 * Gets the number of players at the start of the top list whose places
+	 * are certain. Must be called while holding the lock.
+	 */
+	private int known() {
+		int i = 0;
+		while (i < top.size() && isKnown(top.get(i).balance)) {
+			i++;
+		}
+		return i;
+	}
+	
+	/**
+	 * Moves a player to their place in the top list, or out of it. Must be
+	 * called while holding the lock.
+	 */
+	private void place(final String name, final long balance) {
+		final Iterator<Player> it = top.iterator();
+		while (it.hasNext()) {
+			if (it.next().name.equals(name)) {
+				it.remove();
+				break;
+			}
+		}
+		if (hasOutside && balance < outside) {
+			return;
+		}
+		final Player p = new Player(name, balance);
+		top.add(position(top, p), p);
+		if (top.size() > topSize) {
+			final long dropped = top.remove(topSize).balance;
+			outside = hasOutside ? Math.max(outside, dropped) : dropped;
+			hasOutside = true;
+		}
+	}
+	
+	/**
+	 * Gets the ranks of players with several balances, reading the source at
+	 * most once.
+	 */
+	private int[] ranks(final long[] balances) throws IOException {
+		final int[] ranks = new int[balances.length];
+		final int[] buckets = new int[balances.length];
+		final boolean[] shared = new boolean[balances.length];
+		boolean scan = false;
+		synchronized (this) {
+			for (int i = 0; i < balances.length; i++) {
+				buckets[i] = bucket(balances[i]);
+				if (isKnown(balances[i])) {
+					ranks[i] = 1;
+					for (final Player p : top) {
+						if (p.balance > balances[i]) {
+							ranks[i]++;
+						}
+					}
+				} else {
+					ranks[i] = size - through(buckets[i]) + 1;
+					final boolean exact = buckets[i] >= 1
+							&& buckets[i] <= EXACT_LIMIT;
+					shared[i] = !exact && counts[buckets[i]] > 1;
+					scan |= shared[i];
+				}
+			}
+		}
+		if (scan) {
+			source.scan(new Visitor() {
+				
+				@Override
+				public void visit(final String name, final long balance) {
+					for (int i = 0; i < balances.length; i++) {
+						if (shared[i] && balance > balances[i]
+								&& bucket(balance) == buckets[i]) {
+							ranks[i]++;
+						}
+					}
+				}
+			});
+		}
+		return ranks;
+	}
+	
+	/**
+	 * Reads the top list again from the source, unless another thread has
+	 * already made enough of it certain.
+	 */
+	private void rebuild(final int count) throws IOException {
+		synchronized (rebuildLock) {
+			synchronized (this) {
+				if (known() >= Math.min(count, size)) {
+					return;
+				}
+				scanning = true;
+				changedDuringScan.clear();
+			}
+			final TopFinder finder = new TopFinder(topSize);
+			try {
+				source.scan(finder);
+				synchronized (this) {
+					install(finder);
+				}
+			} finally {
+				synchronized (this) {
+					scanning = false;
+					changedDuringScan.clear();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Gets the number of players in the buckets up to and including a
+	 * bucket. Must be called while holding the lock.
+	 */
+	private int through(final int bucket) {
+		int sum = 0;
+		for (int i = bucket + 1; i > 0; i -= i & -i) {
+			sum += tree[i];
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,1089 @@
+package com.dekarrin.bots;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of every change to the players' balances. Each change
+ * is a fixed-size binary record that holds when it was made, what kind of
+ * change it was, the id of the player, the amount that the balance changed
+ * by, and the balance afterwards. The names of the players are kept in a
+ * second file next to the ledger, in the order that their ids were given out.
+ * Only the names of players that are waiting to be written are held in
+ * memory; the ids of the others are found through an index file, which is a
+ * hash table of the names with linear probing. The index is rebuilt from the
+ * names whenever the ledger is opened, so it is never forced to disk.
+ * 
+ * <p>Records are written to disk by a single thread. Changes that are made
+ * while it is busy are collected and written together, with one force to
+ * disk for the whole group, so many changes at once cost little more than
+ * one. Once the ledger is much longer than the number of players, it is
+ * compacted by replacing it with a snapshot that has one record per player.
+ * 
+ * <p>Every record ends with a checksum. When the ledger is opened, it is read
+ * up to the first record that is incomplete or damaged, and anything after
+ * that is cut off.
+ * 
+ * <p>The latest balance of each player is also kept in a third file, as an
+ * array of balances indexed by player id, so that a single player can be
+ * looked up without keeping every balance in memory. The writer thread
+ * updates it after each group of records. It is rebuilt from the ledger
+ * whenever the ledger is opened, so it is never forced to disk.
+ * 
+ * <p>If the ledger cannot be written to or its index cannot be read, the
+ * ledger fails. After that, no more changes are accepted or written and no
+ * balances are read, since the files no longer match the changes that were
+ * made.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class Ledger {
+	
+	/**
+	 * The kinds of change that are recorded.
+	 */
+	public enum Op {
+		
+		JOIN(1),
+		GAMBLE(2),
+		SET(3),
+		GIFT_SENT(4),
+		GIFT_RECEIVED(5),
+		SNAPSHOT(6);
+		
+		private final byte code;
+		
+		private Op(final int code) {
+			this.code = (byte) code;
+		}
+	}
+	
+	/**
+	 * Is shown each player when the ledger is scanned.
+	 */
+	public interface Visitor {
+		
+		/**
+		 * Called for each player that has a balance.
+		 * 
+		 * @param name The name of the player.
+		 * @param balance The latest balance.
+		 */
+		public void visit(String name, long balance);
+	}
+	
+	/**
+	 * Reads the names file from the start, one name at a time, stopping at
+	 * the first name that is incomplete or damaged.
+	 */
+	private static class NameReader {
+		
+		private final ByteBuffer buf = ByteBuffer.allocate(128 * 1024);
+		
+		private final FileChannel ch;
+		
+		private final CRC32 crc = new CRC32();
+		
+		private final long end;
+		
+		/**
+		 * The position in the file just after the bytes in the buffer.
+		 */
+		private long filled = 0;
+		
+		private String name = null;
+		
+		private long offset = 0;
+		
+		public NameReader(final FileChannel ch) throws IOException {
+			this.ch = ch;
+			this.end = ch.size();
+			buf.limit(0);
+		}
+		
+		/**
+		 * Gets the name that was read last.
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Gets the position in the file of the name that was read last.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+		
+		/**
+		 * Gets the position in the file just after the name that was read
+		 * last.
+		 */
+		public long getPosition() {
+			return filled - buf.remaining();
+		}
+		
+		/**
+		 * Reads the next name.
+		 * 
+		 * @return Whether there was a whole name to read.
+		 */
+		public boolean next() throws IOException {
+			if (!fill(2)) {
+				return false;
+			}
+			final int length = buf.getShort(buf.position()) & 0xffff;
+			if (!fill(length + 6)) {
+				return false;
+			}
+			final int start = buf.position() + 2;
+			crc.reset();
+			crc.update(buf.array(), start, length);
+			if (buf.getInt(start + length) != (int) crc.getValue()) {
+				return false;
+			}
+			offset = getPosition();
+			name = new String(buf.array(), start, length, UTF8);
+			buf.position(start + length + 4);
+			return true;
+		}
+		
+		/**
+		 * Reads more of the file until the buffer holds a number of bytes.
+		 * 
+		 * @return Whether the file had that many left.
+		 */
+		private boolean fill(final int needed) throws IOException {
+			if (buf.remaining() >= needed) {
+				return true;
+			}
+			buf.compact();
+			buf.limit((int) Math.min(buf.capacity(), buf.position() + end
+					- filled));
+			while (buf.hasRemaining()) {
+				final int read = ch.read(buf, filled);
+				if (read < 0) {
+					break;
+				}
+				filled += read;
+			}
+			buf.flip();
+			return buf.remaining() >= needed;
+		}
+	}
+	
+	/**
+	 * Marks a player that has no record yet in the balances file.
+	 */
+	private static final long ABSENT = Long.MIN_VALUE;
+	
+	/**
+	 * The ledger is compacted once it has this many times as many records as
+	 * there are players.
+	 */
+	private static final int COMPACT_RATIO = 4;
+	
+	private static final int HEADER_SIZE = 16;
+	
+	/**
+	 * The size of a slot in the index: the hash of the name, one more than
+	 * the id so that an empty slot is all zeros, and the position of the name
+	 * in the names file.
+	 */
+	private static final int INDEX_SLOT_SIZE = 16;
+	
+	private static final int MAGIC = 0x53424C47;
+	
+	/**
+	 * Ledgers with fewer records than this are never compacted, no matter how
+	 * few players there are.
+	 */
+	private static final long MIN_COMPACT_RECORDS = 4096;
+	
+	private static final int MIN_INDEX_SLOTS = 64;
+	
+	/**
+	 * The size of a record: the time, the change, the balance, the player id,
+	 * the op, three bytes of padding, and the checksum.
+	 */
+	private static final int RECORD_SIZE = 36;
+	
+	/**
+	 * The size of a player's balance in the balances file.
+	 */
+	private static final int SLOT_SIZE = 8;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final int VERSION = 1;
+	
+	private long appended = 0;
+	
+	private FileChannel balancesChannel = null;
+	
+	private final File balancesFile;
+	
+	private FileChannel channel = null;
+	
+	private boolean closing = false;
+	
+	private long committed = 0;
+	
+	private IOException failure = null;
+	
+	private final File file;
+	
+	private FileChannel indexChannel = null;
+	
+	private final File indexFile;
+	
+	/**
+	 * The number of slots in the index. Always a power of two.
+	 */
+	private int indexSlots = 0;
+	
+	private FileChannel namesChannel = null;
+	
+	private final File namesFile;
+	
+	/**
+	 * The number of names that the writer thread has written and indexed.
+	 */
+	private int namesWritten = 0;
+	
+	/**
+	 * The names that have been given ids but are not yet indexed, in the
+	 * order of their ids.
+	 */
+	private final Map<String, Integer> newIds = new LinkedHashMap<String, Integer>();
+	
+	private byte[] pending = new byte[RECORD_SIZE * 64];
+	
+	private int pendingCount = 0;
+	
+	/**
+	 * The number of ids that have been given out.
+	 */
+	private int playerCount = 0;
+	
+	/**
+	 * The latest balance and sequence number of each player whose records
+	 * are not yet in the balances file, by id.
+	 */
+	private final Map<Integer, long[]> unwritten = new HashMap<Integer, long[]>();
+	
+	private long recordCount = 0;
+	
+	private byte[] spare = null;
+	
+	private Thread writer = null;
+	
+	/**
+	 * Creates a new Ledger. Nothing is read until it is opened.
+	 * 
+	 * @param path The path of the ledger file. The names, the index of the
+	 * names, and the balances are kept in files with the same path and
+	 * ".names", ".index" and ".balances" on the end.
+	 */
+	public Ledger(final String path) {
+		file = new File(path).getAbsoluteFile();
+		namesFile = new File(file.getPath() + ".names");
+		indexFile = new File(file.getPath() + ".index");
+		balancesFile = new File(file.getPath() + ".balances");
+	}
+	
+	/**
+	 * Records a change to a player's balance. The record is written in the
+	 * background; use {@link #sync()} to wait for it to reach the disk.
+	 * 
+	 * @param op The kind of change.
+	 * @param name The name of the player.
+	 * @param delta The amount that the balance changed by.
+	 * @param balance The balance after the change.
+	 * @throws IllegalStateException If the ledger is not open or has failed.
+	 */
+	public synchronized void append(final Op op, final String name,
+			final long delta, final long balance) {
+		if (writer == null || closing) {
+			throw new IllegalStateException("Ledger is not open");
+		}
+		if (failure != null) {
+			throw new IllegalStateException("Ledger has failed", failure);
+		}
+		int id;
+		try {
+			id = findId(name);
+		} catch (final IOException e) {
+			failure = e;
+			notifyAll();
+			throw new IllegalStateException("Ledger has failed", e);
+		}
+		if (id < 0) {
+			id = playerCount++;
+			newIds.put(name, id);
+		}
+		if ((pendingCount + 1) * RECORD_SIZE > pending.length) {
+			pending = Arrays.copyOf(pending, pending.length * 2);
+		}
+		encode(pending, pendingCount * RECORD_SIZE, System.currentTimeMillis(),
+				op, id, delta, balance);
+		pendingCount++;
+		appended++;
+		unwritten.put(id, new long[] {balance, appended});
+		notifyAll();
+	}
+	
+	/**
+	 * Writes any remaining records and stops the writer thread.
+	 */
+	public void close() {
+		final Thread w;
+		synchronized (this) {
+			if (writer == null || closing) {
+				return;
+			}
+			closing = true;
+			w = writer;
+			notifyAll();
+		}
+		try {
+			w.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Gets the latest balance of a player.
+	 * 
+	 * @param name The name of the player.
+	 * @return The balance, or null if the player has none.
+	 * @throws IOException If the balance could not be read, or the ledger has
+	 * failed.
+	 */
+	public synchronized Long get(final String name) throws IOException {
+		if (balancesChannel == null) {
+			throw new IllegalStateException("Ledger is not open");
+		}
+		if (failure != null) {
+			throw new IOException("Ledger has failed", failure);
+		}
+		final int id = findId(name);
+		if (id < 0) {
+			return null;
+		}
+		final long[] latest = unwritten.get(id);
+		if (latest != null) {
+			return latest[0];
+		}
+		final ByteBuffer buf = ByteBuffer.allocate(SLOT_SIZE);
+		readFully(balancesChannel, buf, (long) id * SLOT_SIZE);
+		final long balance = buf.getLong(0);
+		return (balance == ABSENT) ? null : balance;
+	}
+	
+	/**
+	 * Checks whether the ledger has failed. A ledger that has failed accepts
+	 * no more changes.
+	 * 
+	 * @return Whether it has.
+	 */
+	public synchronized boolean isFailed() {
+		return failure != null;
+	}
+	
+	/**
+	 * Reads the ledger and starts writing to it. The ledger and its names are
+	 * created if they do not yet exist.
+	 * 
+	 * @throws IOException If the ledger could not be read.
+	 */
+	public synchronized void open() throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("Ledger is already open");
+		}
+		try {
+			readNames();
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			balancesChannel = FileChannel.open(balancesFile.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			replay();
+		} catch (final IOException e) {
+			for (final FileChannel ch : new FileChannel[] {namesChannel,
+					indexChannel, channel, balancesChannel}) {
+				if (ch != null) {
+					ch.close();
+				}
+			}
+			balancesChannel = null;
+			throw e;
+		}
+		writer = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				writeRecords();
+			}
+		}, "LedgerWriter");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				close();
+			}
+		}, "LedgerShutdownFlush"));
+	}
+	
+	/**
+	 * Calls a visitor with the latest balance of every player, in the order
+	 * that the players were given ids. The ledger is only locked while the
+	 * players that are not yet written are copied, so changes can still be
+	 * made while the files are read. A balance that changes during the scan
+	 * may be shown either before or after the change.
+	 * 
+	 * @param visitor The visitor.
+	 * @throws IOException If the balances could not be read, or the ledger
+	 * has failed.
+	 */
+	public void scan(final Visitor visitor) throws IOException {
+		final int count;
+		final int written;
+		final List<String> fresh;
+		final Map<Integer, Long> latest = new HashMap<Integer, Long>();
+		final FileChannel names;
+		final FileChannel balances;
+		synchronized (this) {
+			if (balancesChannel == null) {
+				throw new IllegalStateException("Ledger is not open");
+			}
+			if (failure != null) {
+				throw new IOException("Ledger has failed", failure);
+			}
+			count = playerCount;
+			written = namesWritten;
+			fresh = new ArrayList<String>(newIds.keySet());
+			for (final Map.Entry<Integer, long[]> e : unwritten.entrySet()) {
+				latest.put(e.getKey(), e.getValue()[0]);
+			}
+			names = namesChannel;
+			balances = balancesChannel;
+		}
+		// the writer only adds names after the ones counted here and only
+		// ever gives a slot a newer balance, so the files can be read while
+		// it runs
+		final NameReader reader = new NameReader(names);
+		final Iterator<String> unnamed = fresh.iterator();
+		final ByteBuffer slots = ByteBuffer.allocate(SLOT_SIZE * 1024);
+		final long stored = balances.size() / SLOT_SIZE;
+		for (int first = 0; first < count; first += 1024) {
+			final int n = Math.min(1024, count - first);
+			final int onDisk = (int) Math.max(0, Math.min(n, stored - first));
+			slots.clear();
+			slots.limit(onDisk * SLOT_SIZE);
+			readFully(balances, slots, (long) first * SLOT_SIZE);
+			for (int i = 0; i < n; i++) {
+				final int id = first + i;
+				final String name;
+				if (id < written) {
+					if (!reader.next()) {
+						throw new IOException(namesFile + " has fewer names than expected");
+					}
+					name = reader.getName();
+				} else {
+					name = unnamed.next();
+				}
+				final Long balance = latest.get(id);
+				if (balance != null) {
+					visitor.visit(name, balance);
+				} else if (i < onDisk && slots.getLong(i * SLOT_SIZE) != ABSENT) {
+					visitor.visit(name, slots.getLong(i * SLOT_SIZE));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Waits until every change recorded so far is on disk.
+	 * 
+	 * @throws IOException If the ledger could not be written.
+	 */
+	public void sync() throws IOException {
+		synchronized (this) {
+			final long target = appended;
+			while (committed < target && failure == null && writer != null
+					&& writer.isAlive()) {
+				try {
+					wait();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if (committed < target) {
+				throw new IOException("Could not write to the ledger", failure);
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the ledger with a snapshot holding one record for each player.
+	 * Must only be called by the writer thread.
+	 * 
+	 * @throws IOException If the snapshot could not be written. The old ledger
+	 * is left as it was.
+	 */
+	private void compact() throws IOException {
+		final File temp = new File(file.getPath() + ".tmp");
+		FilePermissions.createPrivate(temp);
+		final FileChannel out = FileChannel.open(temp.toPath(),
+				StandardOpenOption.WRITE);
+		long count = 0;
+		try {
+			writeHeader(out);
+			final long now = System.currentTimeMillis();
+			final byte[] buf = new byte[RECORD_SIZE * 256];
+			final ByteBuffer slots = ByteBuffer.allocate(SLOT_SIZE * 256);
+			int used = 0;
+			for (int first = 0; first < namesWritten; first += 256) {
+				slots.clear();
+				slots.limit(Math.min(256, namesWritten - first) * SLOT_SIZE);
+				readFully(balancesChannel, slots, (long) first * SLOT_SIZE);
+				for (int i = 0; i * SLOT_SIZE < slots.limit(); i++) {
+					final long balance = slots.getLong(i * SLOT_SIZE);
+					if (balance != ABSENT) {
+						encode(buf, used, now, Op.SNAPSHOT, first + i, 0, balance);
+						used += RECORD_SIZE;
+						count++;
+						if (used == buf.length) {
+							writeFully(out, ByteBuffer.wrap(buf));
+							used = 0;
+						}
+					}
+				}
+			}
+			writeFully(out, ByteBuffer.wrap(buf, 0, used));
+			out.force(true);
+			FilePermissions.copy(file, temp);
+		} catch (final IOException e) {
+			out.close();
+			Files.deleteIfExists(temp.toPath());
+			throw e;
+		}
+		out.close();
+		final Path from = temp.toPath();
+		final Path to = file.toPath();
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+		}
+		forceDirectory();
+		final FileChannel old = channel;
+		channel = FileChannel.open(to, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		recordCount = count;
+		old.close();
+	}
+	
+	/**
+	 * Fills in a record.
+	 */
+	private static void encode(final byte[] dest, final int offset,
+			final long time, final Op op, final int id, final long delta,
+			final long balance) {
+		final ByteBuffer buf = ByteBuffer.wrap(dest, offset, RECORD_SIZE);
+		buf.putLong(time);
+		buf.putLong(delta);
+		buf.putLong(balance);
+		buf.putInt(id);
+		buf.put(op.code);
+		buf.put((byte) 0).put((byte) 0).put((byte) 0);
+		final CRC32 crc = new CRC32();
+		crc.update(dest, offset, RECORD_SIZE - 4);
+		buf.putInt((int) crc.getValue());
+	}
+	
+	/**
+	 * Makes the replacement of the ledger durable. Not every platform allows
+	 * this.
+	 */
+	private void forceDirectory() {
+		final File dir = file.getParentFile();
+		if (dir != null) {
+			try {
+				final FileChannel ch = FileChannel.open(dir.toPath(),
+						StandardOpenOption.READ);
+				try {
+					ch.force(true);
+				} finally {
+					ch.close();
+				}
+			} catch (final IOException e) {
+				// not supported here; the file itself is already on disk
+			}
+		}
+	}
+	
+	/**
+	 * Fills an empty index with the first names in the names file.
+	 * 
+	 * @param index The index.
+	 * @param slots The number of slots to give the index.
+	 * @param count The number of names to add.
+	 */
+	private void buildIndex(final FileChannel index, final int slots,
+			final int count) throws IOException {
+		index.truncate(0);
+		writeFully(index, ByteBuffer.allocate(1), (long) slots
+				* INDEX_SLOT_SIZE - 1);
+		final NameReader reader = new NameReader(namesChannel);
+		for (int id = 0; id < count; id++) {
+			if (!reader.next()) {
+				throw new IOException(namesFile + " has fewer names than expected");
+			}
+			insert(index, slots, reader.getName(), id, reader.getOffset());
+		}
+	}
+	
+	/**
+	 * Looks up the id of a player. Must be called while holding the lock.
+	 * 
+	 * @return The id, or -1 if the player has none.
+	 */
+	private int findId(final String name) throws IOException {
+		final Integer fresh = newIds.get(name);
+		if (fresh != null) {
+			return fresh;
+		}
+		final int hash = hash(name);
+		final byte[] bytes = name.getBytes(UTF8);
+		final ByteBuffer slot = ByteBuffer.allocate(INDEX_SLOT_SIZE);
+		int i = hash & (indexSlots - 1);
+		while (true) {
+			slot.clear();
+			readFully(indexChannel, slot, (long) i * INDEX_SLOT_SIZE);
+			final int id = slot.getInt(4) - 1;
+			if (id < 0) {
+				return -1;
+			}
+			if (slot.getInt(0) == hash && isNameAt(slot.getLong(8), bytes)) {
+				return id;
+			}
+			i = (i + 1) & (indexSlots - 1);
+		}
+	}
+	
+	private static int hash(final String name) {
+		final int h = name.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * Gets the number of slots that the index needs so that it is never more
+	 * than half full.
+	 */
+	private static int indexCapacity(final int names) {
+		int slots = MIN_INDEX_SLOTS;
+		while (slots < names * 2L) {
+			slots *= 2;
+		}
+		return slots;
+	}
+	
+	/**
+	 * Adds the names that the writer thread has just written to the index,
+	 * building a larger index first if they would make it too full. Must only
+	 * be called by the writer thread.
+	 * 
+	 * @param newNames The names.
+	 * @param offsets The position of each name in the names file.
+	 */
+	private void indexNames(final List<String> newNames, final long[] offsets)
+			throws IOException {
+		if (newNames.isEmpty()) {
+			return;
+		}
+		final int total = namesWritten + newNames.size();
+		if (total * 2L <= indexSlots) {
+			synchronized (this) {
+				for (int i = 0; i < newNames.size(); i++) {
+					insert(indexChannel, indexSlots, newNames.get(i),
+							namesWritten + i, offsets[i]);
+				}
+				written(newNames);
+			}
+			return;
+		}
+		// lookups keep using the old index until the new one is complete
+		final int slots = indexCapacity(total);
+		final File temp = new File(indexFile.getPath() + ".tmp");
+		final FileChannel out = FileChannel.open(temp.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			buildIndex(out, slots, total);
+		} catch (final IOException e) {
+			out.close();
+			Files.deleteIfExists(temp.toPath());
+			throw e;
+		}
+		final FileChannel old;
+		synchronized (this) {
+			Files.move(temp.toPath(), indexFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			old = indexChannel;
+			indexChannel = out;
+			indexSlots = slots;
+			written(newNames);
+		}
+		old.close();
+	}
+	
+	/**
+	 * Adds a name to an index. The index must not already hold it.
+	 */
+	private static void insert(final FileChannel index, final int slots,
+			final String name, final int id, final long offset)
+			throws IOException {
+		final int hash = hash(name);
+		final ByteBuffer slot = ByteBuffer.allocate(INDEX_SLOT_SIZE);
+		int i = hash & (slots - 1);
+		while (true) {
+			slot.clear();
+			readFully(index, slot, (long) i * INDEX_SLOT_SIZE);
+			if (slot.getInt(4) == 0) {
+				break;
+			}
+			i = (i + 1) & (slots - 1);
+		}
+		slot.clear();
+		slot.putInt(hash).putInt(id + 1).putLong(offset);
+		slot.flip();
+		writeFully(index, slot, (long) i * INDEX_SLOT_SIZE);
+	}
+	
+	/**
+	 * Checks whether the name at a position in the names file is the same as
+	 * another.
+	 */
+	private boolean isNameAt(final long offset, final byte[] bytes)
+			throws IOException {
+		final ByteBuffer length = ByteBuffer.allocate(2);
+		readFully(namesChannel, length, offset);
+		if ((length.getShort(0) & 0xffff) != bytes.length) {
+			return false;
+		}
+		final ByteBuffer stored = ByteBuffer.allocate(bytes.length);
+		readFully(namesChannel, stored, offset + 2);
+		return Arrays.equals(stored.array(), bytes);
+	}
+	
+	/**
+	 * Reads the names of the players, cutting off a name that was only partly
+	 * written, builds the index of them, and leaves the names file open for
+	 * adding more.
+	 */
+	private void readNames() throws IOException {
+		newIds.clear();
+		namesChannel = FileChannel.open(namesFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		final long size = namesChannel.size();
+		final NameReader reader = new NameReader(namesChannel);
+		int count = 0;
+		while (reader.next()) {
+			count++;
+		}
+		final long end = reader.getPosition();
+		if (end < size) {
+			System.err.println("Warning: cutting off " + (size - end)
+					+ " damaged bytes from " + namesFile);
+			namesChannel.truncate(end);
+			namesChannel.force(true);
+		}
+		namesChannel.position(end);
+		namesWritten = count;
+		playerCount = count;
+		indexChannel = FileChannel.open(indexFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		indexSlots = indexCapacity(count);
+		buildIndex(indexChannel, indexSlots, count);
+	}
+	
+	/**
+	 * Fills a buffer from a position in a file.
+	 * 
+	 * @throws EOFException If the file ends first.
+	 */
+	private static void readFully(final FileChannel ch, final ByteBuffer buf,
+			final long position) throws IOException {
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, position + buf.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+	
+	/**
+	 * Reads the records in the ledger, cutting off any that are incomplete or
+	 * damaged, and rebuilds the balances file from them. A new ledger is given
+	 * its header.
+	 */
+	private void replay() throws IOException {
+		clearBalances();
+		if (channel.size() < HEADER_SIZE) {
+			channel.truncate(0);
+			writeHeader(channel);
+			channel.force(true);
+			forceDirectory();
+			recordCount = 0;
+			return;
+		}
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		channel.position(0);
+		while (header.hasRemaining() && channel.read(header) >= 0) {}
+		header.flip();
+		if (header.getInt() != MAGIC || header.getInt() != VERSION
+				|| header.getInt() != RECORD_SIZE) {
+			throw new IOException(file + " is not a ledger");
+		}
+		final byte[] data = new byte[RECORD_SIZE * 1024];
+		final ByteBuffer buf = ByteBuffer.wrap(data);
+		final CRC32 crc = new CRC32();
+		final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+		long end = HEADER_SIZE;
+		long count = 0;
+		boolean damaged = false;
+		while (!damaged) {
+			buf.clear();
+			while (buf.hasRemaining() && channel.read(buf) >= 0) {}
+			final int full = buf.position() / RECORD_SIZE;
+			for (int i = 0; i < full; i++) {
+				final int offset = i * RECORD_SIZE;
+				crc.reset();
+				crc.update(data, offset, RECORD_SIZE - 4);
+				final ByteBuffer rec = ByteBuffer.wrap(data, offset, RECORD_SIZE);
+				rec.position(offset + 24);
+				final int id = rec.getInt();
+				rec.position(offset + RECORD_SIZE - 4);
+				if (rec.getInt() != (int) crc.getValue() || id < 0
+						|| id >= playerCount) {
+					damaged = true;
+					break;
+				}
+				slot.clear();
+				slot.putLong(0, rec.getLong(offset + 16));
+				writeFully(balancesChannel, slot, (long) id * SLOT_SIZE);
+				end += RECORD_SIZE;
+				count++;
+			}
+			if (buf.hasRemaining()) {
+				// reached the end of the file
+				break;
+			}
+		}
+		if (end < channel.size()) {
+			System.err.println("Warning: cutting off "
+					+ (channel.size() - end) + " damaged bytes from " + file);
+			channel.truncate(end);
+			channel.force(true);
+		}
+		channel.position(end);
+		recordCount = count;
+	}
+	
+	/**
+	 * Empties the balances file, then marks every player in it as having no
+	 * balance.
+	 */
+	private void clearBalances() throws IOException {
+		balancesChannel.truncate(0);
+		final ByteBuffer buf = ByteBuffer.allocate(SLOT_SIZE * 1024);
+		for (int first = 0; first < playerCount; first += 1024) {
+			buf.clear();
+			for (int id = first; id < Math.min(first + 1024, playerCount); id++) {
+				buf.putLong(ABSENT);
+			}
+			buf.flip();
+			writeFully(balancesChannel, buf, (long) first * SLOT_SIZE);
+		}
+	}
+	
+	private static void writeFully(final FileChannel ch, final ByteBuffer buf)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+	}
+	
+	/**
+	 * Writes a whole buffer at a position in a file. The buffer must start at
+	 * its beginning.
+	 */
+	private static void writeFully(final FileChannel ch, final ByteBuffer buf,
+			final long position) throws IOException {
+		while (buf.hasRemaining()) {
+			ch.write(buf, position + buf.position());
+		}
+	}
+	
+	private static void writeHeader(final FileChannel ch) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+		header.flip();
+		writeFully(ch, header);
+	}
+	
+	/**
+	 * Writes the new names to the names file.
+	 * 
+	 * @return The position of each name in the file.
+	 */
+	private long[] writeNames(final List<String> newNames) throws IOException {
+		final long[] offsets = new long[newNames.size()];
+		if (newNames.isEmpty()) {
+			return offsets;
+		}
+		final CRC32 crc = new CRC32();
+		for (int i = 0; i < newNames.size(); i++) {
+			offsets[i] = namesChannel.position();
+			final byte[] bytes = newNames.get(i).getBytes(UTF8);
+			crc.reset();
+			crc.update(bytes);
+			final ByteBuffer buf = ByteBuffer.allocate(bytes.length + 6);
+			buf.putShort((short) bytes.length).put(bytes).putInt((int) crc.getValue());
+			buf.flip();
+			writeFully(namesChannel, buf);
+		}
+		// the names must be on disk before any record that uses their ids
+		namesChannel.force(false);
+		return offsets;
+	}
+	
+	/**
+	 * Marks names as written and indexed, so that they are no longer held in
+	 * memory. Must be called while holding the lock.
+	 */
+	private void written(final List<String> newNames) {
+		for (final String name : newNames) {
+			newIds.remove(name);
+		}
+		namesWritten += newNames.size();
+	}
+	
+	/**
+	 * Runs on the writer thread. Writes records in groups until the ledger is
+	 * closed, and compacts it whenever it grows too long.
+	 */
+	private void writeRecords() {
+		try {
+			while (true) {
+				final byte[] batch;
+				final int count;
+				final List<String> newNames;
+				final long target;
+				synchronized (this) {
+					while (pendingCount == 0 && !closing && failure == null) {
+						try {
+							wait();
+						} catch (final InterruptedException e) {
+							closing = true;
+						}
+					}
+					if (pendingCount == 0 || failure != null) {
+						break;
+					}
+					batch = pending;
+					count = pendingCount;
+					pending = (spare != null) ? spare : new byte[batch.length];
+					spare = null;
+					pendingCount = 0;
+					newNames = new ArrayList<String>(newIds.keySet());
+					target = appended;
+				}
+				indexNames(newNames, writeNames(newNames));
+				writeFully(channel, ByteBuffer.wrap(batch, 0, count * RECORD_SIZE));
+				channel.force(false);
+				recordCount += count;
+				final ByteBuffer buf = ByteBuffer.wrap(batch);
+				final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+				for (int i = 0; i < count; i++) {
+					final int offset = i * RECORD_SIZE;
+					slot.clear();
+					slot.putLong(0, buf.getLong(offset + 16));
+					writeFully(balancesChannel, slot, (long) buf.getInt(offset + 24)
+							* SLOT_SIZE);
+				}
+				synchronized (this) {
+					committed = target;
+					spare = batch;
+					// players changed since this group was taken keep their
+					// newer balances until the next group is written
+					final Iterator<long[]> it = unwritten.values().iterator();
+					while (it.hasNext()) {
+						if (it.next()[1] <= target) {
+							it.remove();
+						}
+					}
+					notifyAll();
+				}
+				if (recordCount > Math.max(MIN_COMPACT_RECORDS,
+						(long) namesWritten * COMPACT_RATIO)) {
+					try {
+						compact();
+					} catch (final IOException e) {
+						// the ledger is still whole; try again after the next
+						// group of records
+						e.printStackTrace();
+					}
+				}
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+			synchronized (this) {
+				failure = e;
+			}
+		} finally {
+			try {
+				channel.close();
+				namesChannel.close();
+				indexChannel.close();
+				balancesChannel.close();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+			synchronized (this) {
+				if (failure == null && !closing) {
+					// stopped by something other than a failed write
+					failure = new IOException("The ledger writer stopped");
+				}
+				notifyAll();
+			}
+		}
+	}
+}
@@ -12,6 +12,12 @@ import org.jibble.pircbot.User;
  * behavior that occurs when that action is called. They should return whether
  * they have consumed the event (and thus no more modules should receive it),
  * but should not consume it unless it is necessary.
+ * <p>
+ * Handlers are called on an event dispatch thread rather than the thread
+ * that reads from the server. Events that occur on the same channel are
+ * delivered in the order that they were received. Messages sent from a
+ * handler are sent after any replies to commands, and are dropped if they
+ * cannot be sent in time.
  * 
  * @author Rebecca 'TF' Nelson
  */
@@ -27,7 +33,7 @@ public class Module {
 	
 	protected SmartBotInterface bot;
 	
-	protected Settings settings;
+	protected SettingsStore settings;
 	
 	/**
 	 * Creates a new BotModule of the given name.
@@ -426,7 +432,7 @@ public class Module {
 	 * Sets the bot associated with this module, as well as the persistence
 	 * settings object.
 	 */
-	public void setBot(final SmartBotInterface bot, Settings settings) {
+	public void setBot(final SmartBotInterface bot, SettingsStore settings) {
 		this.bot = bot;
 		this.settings = settings;
 		onModuleAdded();
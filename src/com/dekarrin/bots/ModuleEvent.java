@@ -0,0 +1,134 @@
+package com.dekarrin.bots;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The IRC events that a Module can handle. Each event corresponds to one of
+ * the onX methods in Module.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+enum ModuleEvent {
+	
+	ACTION("onAction"),
+	CHANNEL_INFO("onChannelInfo"),
+	CONNECT("onConnect"),
+	DEOP("onDeop"),
+	DE_VOICE("onDeVoice"),
+	DISCONNECT("onDisconnect"),
+	FILE_TRANSFER_FINISHED("onFileTransferFinished"),
+	FINGER("onFinger"),
+	INCOMING_CHAT_REQUEST("onIncomingChatRequest"),
+	INCOMING_FILE_TRANSFER("onIncomingFileTransfer"),
+	INVITE("onInvite"),
+	JOIN("onJoin"),
+	KICK("onKick"),
+	KILL("onKill"),
+	MESSAGE("onMessage"),
+	MODE("onMode"),
+	NICK_CHANGE("onNickChange"),
+	NOTICE("onNotice"),
+	OP("onOp"),
+	PART("onPart"),
+	PING("onPing"),
+	PRIVATE_MESSAGE("onPrivateMessage"),
+	QUIT("onQuit"),
+	REMOVE_CHANNEL_BAN("onRemoveChannelBan"),
+	REMOVE_CHANNEL_KEY("onRemoveChannelKey"),
+	REMOVE_CHANNEL_LIMIT("onRemoveChannelLimit"),
+	REMOVE_INVITE_ONLY("onRemoveInviteOnly"),
+	REMOVE_MODERATED("onRemoveModerated"),
+	REMOVE_NO_EXTERNAL_MESSAGES("onRemoveNoExternalMessages"),
+	REMOVE_PRIVATE("onRemovePrivate"),
+	REMOVE_SECRET("onRemoveSecret"),
+	REMOVE_TOPIC_PROTECTION("onRemoveTopicProtection"),
+	SERVER_PING("onServerPing"),
+	SERVER_RESPONSE("onServerResponse"),
+	SET_CHANNEL_BAN("onSetChannelBan"),
+	SET_CHANNEL_KEY("onSetChannelKey"),
+	SET_CHANNEL_LIMIT("onSetChannelLimit"),
+	SET_INVITE_ONLY("onSetInviteOnly"),
+	SET_MODERATED("onSetModerated"),
+	SET_NO_EXTERNAL_MESSAGES("onSetNoExternalMessages"),
+	SET_PRIVATE("onSetPrivate"),
+	SET_SECRET("onSetSecret"),
+	SET_TOPIC_PROTECTION("onSetTopicProtection"),
+	TIME("onTime"),
+	TOPIC("onTopic"),
+	UNKNOWN("onUnknown"),
+	USER_LIST("onUserList"),
+	USER_MODE("onUserMode"),
+	VERSION("onVersion"),
+	VOICE("onVoice");
+	
+	private static final Map<Class<?>, Set<ModuleEvent>> handled = new ConcurrentHashMap<Class<?>, Set<ModuleEvent>>();
+	
+	private final String handlerName;
+	
+	private final Class<?>[] handlerParams;
+	
+	private ModuleEvent(final String handlerName) {
+		this.handlerName = handlerName;
+		this.handlerParams = findHandlerParams(handlerName);
+	}
+	
+	/**
+	 * Finds the events that a module handles. A module handles an event if
+	 * its class overrides the onX method for that event; the default methods
+	 * in Module do nothing, so there is no need to call them. The result is
+	 * computed once per module class.
+	 * 
+	 * @param module The module to check.
+	 * @return The events that the module handles. The set must not be
+	 * modified.
+	 */
+	public static Set<ModuleEvent> handledBy(final Module module) {
+		final Class<?> cls = module.getClass();
+		Set<ModuleEvent> events = handled.get(cls);
+		if (events == null) {
+			events = EnumSet.noneOf(ModuleEvent.class);
+			for (final ModuleEvent e : values()) {
+				if (e.isOverriddenBy(cls)) {
+					events.add(e);
+				}
+			}
+			events = Collections.unmodifiableSet(events);
+			handled.put(cls, events);
+		}
+		return events;
+	}
+	
+	/**
+	 * Gets the name of the method in Module that handles this event.
+	 * 
+	 * @return The method name.
+	 */
+	public String getHandlerName() {
+		return handlerName;
+	}
+	
+	private static Class<?>[] findHandlerParams(final String name) {
+		for (final Method m : Module.class.getDeclaredMethods()) {
+			if (m.getName().equals(name)) {
+				return m.getParameterTypes();
+			}
+		}
+		throw new IllegalStateException("No handler " + name + " in Module");
+	}
+	
+	private boolean isOverriddenBy(final Class<?> cls) {
+		try {
+			final Method m = cls.getMethod(handlerName, handlerParams);
+			return (m.getDeclaringClass() != Module.class);
+		} catch (final NoSuchMethodException e) {
+			// every handler is declared public in Module; this can't happen
+			throw new IllegalStateException("No public handler "
+					+ handlerName + " in Module", e);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.dekarrin.bots;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the modules loaded in a bot and which of them are
+ * enabled. Changes are made by creating a new registry with one of the withX
+ * methods and publishing it in place of the old one, so readers can use a
+ * registry from any thread without locking. The command index and event
+ * subscriber lists for the enabled modules are built along with each
+ * registry.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class ModuleRegistry {
+	
+	private final CommandIndex commands;
+	
+	private final Map<String, Module> enabled;
+	
+	private final Map<String, Module> modules;
+	
+	private final EventSubscribers subscribers;
+	
+	/**
+	 * Creates an empty registry.
+	 */
+	public ModuleRegistry() {
+		this(new LinkedHashMap<String, Module>(),
+				new LinkedHashMap<String, Module>());
+	}
+	
+	private ModuleRegistry(final Map<String, Module> modules,
+			final Map<String, Module> enabled) {
+		this.modules = Collections.unmodifiableMap(modules);
+		this.enabled = Collections.unmodifiableMap(enabled);
+		final List<Module> indexed = new ArrayList<Module>();
+		for (final Module mod : enabled.values()) {
+			if (!mod.getName().equals(SmartBot.CORE_MODULE_NAME)) {
+				indexed.add(mod);
+			}
+		}
+		commands = new CommandIndex(indexed);
+		subscribers = new EventSubscribers(enabled.values());
+	}
+	
+	/**
+	 * Gets the index of commands in the enabled modules. The core module is
+	 * not included.
+	 * 
+	 * @return The index.
+	 */
+	public CommandIndex getCommandIndex() {
+		return commands;
+	}
+	
+	/**
+	 * Gets an enabled module.
+	 * 
+	 * @param name The name of the module. Case-insensitive.
+	 * @return The module, or null if there is no enabled module with that
+	 * name.
+	 */
+	public Module getEnabledModule(final String name) {
+		return enabled.get(name.toUpperCase());
+	}
+	
+	/**
+	 * Gets a module, whether or not it is enabled.
+	 * 
+	 * @param name The name of the module. Case-insensitive.
+	 * @return The module, or null if there is no module with that name.
+	 */
+	public Module getModule(final String name) {
+		return modules.get(name.toUpperCase());
+	}
+	
+	/**
+	 * Gets the names of all modules, in the order that they were added. The
+	 * returned set cannot be modified.
+	 * 
+	 * @return The names.
+	 */
+	public Set<String> getModuleNames() {
+		return modules.keySet();
+	}
+	
+	/**
+	 * Gets the lists of enabled modules that handle each event.
+	 * 
+	 * @return The subscribers.
+	 */
+	public EventSubscribers getSubscribers() {
+		return subscribers;
+	}
+	
+	/**
+	 * Checks whether a module exists.
+	 * 
+	 * @param name The name of the module. Case-insensitive.
+	 * @return Whether it does.
+	 */
+	public boolean hasModule(final String name) {
+		return modules.containsKey(name.toUpperCase());
+	}
+	
+	/**
+	 * Checks whether a module is enabled.
+	 * 
+	 * @param name The name of the module. Case-insensitive.
+	 * @return Whether it is.
+	 */
+	public boolean isEnabled(final String name) {
+		return enabled.containsKey(name.toUpperCase());
+	}
+	
+	/**
+	 * Creates a registry with a module enabled or disabled. The core module
+	 * can never be disabled.
+	 * 
+	 * @param name The name of the module. Case-insensitive.
+	 * @param enable Whether the module is enabled.
+	 * @return The new registry, or this registry if nothing would change.
+	 */
+	public ModuleRegistry withEnabled(final String name, final boolean enable) {
+		final String key = name.toUpperCase();
+		if (enable == enabled.containsKey(key) || !modules.containsKey(key)) {
+			return this;
+		}
+		if (!enable && key.equals(SmartBot.CORE_MODULE_NAME)) {
+			return this;
+		}
+		final Map<String, Module> en = new LinkedHashMap<String, Module>(enabled);
+		if (enable) {
+			en.put(key, modules.get(key));
+		} else {
+			en.remove(key);
+		}
+		return new ModuleRegistry(new LinkedHashMap<String, Module>(modules), en);
+	}
+	
+	/**
+	 * Creates a registry in which exactly the given modules are enabled, in
+	 * the given order. The core module stays enabled, and names of modules
+	 * that do not exist are skipped.
+	 * 
+	 * @param names The names of the modules to enable. Case-insensitive.
+	 * @return The new registry.
+	 */
+	public ModuleRegistry withEnabledOnly(final Collection<String> names) {
+		final Map<String, Module> en = new LinkedHashMap<String, Module>();
+		final Module core = modules.get(SmartBot.CORE_MODULE_NAME);
+		if (core != null) {
+			en.put(SmartBot.CORE_MODULE_NAME, core);
+		}
+		for (final String name : names) {
+			final Module mod = modules.get(name.toUpperCase());
+			if (mod != null) {
+				en.put(name.toUpperCase(), mod);
+			}
+		}
+		return new ModuleRegistry(new LinkedHashMap<String, Module>(modules), en);
+	}
+	
+	/**
+	 * Creates a registry with a module added. If a module with the same name
+	 * already exists, it is replaced, and the new module is enabled if the old
+	 * one was.
+	 * 
+	 * @param module The module to add.
+	 * @param enable Whether the module should be enabled.
+	 * @return The new registry.
+	 */
+	public ModuleRegistry withModule(final Module module, final boolean enable) {
+		final String key = module.getName().toUpperCase();
+		final Map<String, Module> mods = new LinkedHashMap<String, Module>(modules);
+		final Map<String, Module> en = new LinkedHashMap<String, Module>(enabled);
+		mods.put(key, module);
+		if (enable || en.containsKey(key)) {
+			en.put(key, module);
+		}
+		return new ModuleRegistry(mods, en);
+	}
+	
+	/**
+	 * Creates a registry with a module removed. The core module cannot be
+	 * removed.
+	 * 
+	 * @param name The name of the module to remove. Case-insensitive.
+	 * @return The new registry, or this registry if nothing would change.
+	 */
+	public ModuleRegistry withoutModule(final String name) {
+		final String key = name.toUpperCase();
+		if (!modules.containsKey(key) || key.equals(SmartBot.CORE_MODULE_NAME)) {
+			return this;
+		}
+		final Map<String, Module> mods = new LinkedHashMap<String, Module>(modules);
+		final Map<String, Module> en = new LinkedHashMap<String, Module>(enabled);
+		mods.remove(key);
+		en.remove(key);
+		return new ModuleRegistry(mods, en);
+	}
+}
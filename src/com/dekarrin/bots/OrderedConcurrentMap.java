@@ -0,0 +1,213 @@
+package com.dekarrin.bots;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A map that is safe for use from many threads at once and that iterates in
+ * the order that keys were first added, like a LinkedHashMap. Lookups never
+ * lock. Replacing the value of a key keeps the key in its place; removing it
+ * and adding it again moves it to the end.
+ * 
+ * <p>Iterating takes a snapshot of the map, sorted into order, so it is meant
+ * for maps that are read often but iterated rarely.
+ * 
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ * @author Rebecca 'TF' Nelson
+ */
+class OrderedConcurrentMap<K, V> extends AbstractMap<K, V> implements
+		ConcurrentMap<K, V> {
+	
+	/**
+	 * A value, along with when its key was first added.
+	 */
+	private static class Slot<V> {
+		
+		public final long order;
+		
+		public final V value;
+		
+		public Slot(final long order, final V value) {
+			this.order = order;
+			this.value = value;
+		}
+	}
+	
+	private final AtomicLong added = new AtomicLong();
+	
+	private final ConcurrentMap<K, Slot<V>> slots = new ConcurrentHashMap<K, Slot<V>>();
+	
+	@Override
+	public void clear() {
+		slots.clear();
+	}
+	
+	@Override
+	public boolean containsKey(final Object key) {
+		return slots.containsKey(key);
+	}
+	
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<Map.Entry<K, V>>() {
+			
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				final Iterator<Map.Entry<K, Slot<V>>> it = snapshot().iterator();
+				return new Iterator<Map.Entry<K, V>>() {
+					
+					private K last = null;
+					
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+					
+					@Override
+					public Map.Entry<K, V> next() {
+						final Map.Entry<K, Slot<V>> e = it.next();
+						last = e.getKey();
+						return new AbstractMap.SimpleImmutableEntry<K, V>(
+								e.getKey(), e.getValue().value);
+					}
+					
+					@Override
+					public void remove() {
+						if (last == null) {
+							throw new IllegalStateException();
+						}
+						slots.remove(last);
+						last = null;
+					}
+				};
+			}
+			
+			@Override
+			public int size() {
+				return slots.size();
+			}
+		};
+	}
+	
+	@Override
+	public V get(final Object key) {
+		final Slot<V> s = slots.get(key);
+		return (s == null) ? null : s.value;
+	}
+	
+	@Override
+	public V put(final K key, final V value) {
+		while (true) {
+			final Slot<V> old = slots.get(key);
+			if (old == null) {
+				if (slots.putIfAbsent(key, newSlot(value)) == null) {
+					return null;
+				}
+			} else if (slots.replace(key, old, new Slot<V>(old.order, value))) {
+				return old.value;
+			}
+		}
+	}
+	
+	@Override
+	public V putIfAbsent(final K key, final V value) {
+		while (true) {
+			final Slot<V> old = slots.get(key);
+			if (old != null) {
+				return old.value;
+			}
+			if (slots.putIfAbsent(key, newSlot(value)) == null) {
+				return null;
+			}
+		}
+	}
+	
+	@Override
+	public V remove(final Object key) {
+		final Slot<V> old = slots.remove(key);
+		return (old == null) ? null : old.value;
+	}
+	
+	@Override
+	public boolean remove(final Object key, final Object value) {
+		while (true) {
+			final Slot<V> old = slots.get(key);
+			if (old == null || !eq(old.value, value)) {
+				return false;
+			}
+			if (slots.remove(key, old)) {
+				return true;
+			}
+		}
+	}
+	
+	@Override
+	public V replace(final K key, final V value) {
+		while (true) {
+			final Slot<V> old = slots.get(key);
+			if (old == null) {
+				return null;
+			}
+			if (slots.replace(key, old, new Slot<V>(old.order, value))) {
+				return old.value;
+			}
+		}
+	}
+	
+	@Override
+	public boolean replace(final K key, final V oldValue, final V newValue) {
+		while (true) {
+			final Slot<V> old = slots.get(key);
+			if (old == null || !eq(old.value, oldValue)) {
+				return false;
+			}
+			if (slots.replace(key, old, new Slot<V>(old.order, newValue))) {
+				return true;
+			}
+		}
+	}
+	
+	@Override
+	public int size() {
+		return slots.size();
+	}
+	
+	private Slot<V> newSlot(final V value) {
+		return new Slot<V>(added.incrementAndGet(), value);
+	}
+	
+	/**
+	 * Copies the slots and sorts them into the order that their keys were
+	 * added.
+	 */
+	private List<Map.Entry<K, Slot<V>>> snapshot() {
+		final List<Map.Entry<K, Slot<V>>> list = new ArrayList<Map.Entry<K, Slot<V>>>(
+				slots.entrySet());
+		Collections.sort(list, new Comparator<Map.Entry<K, Slot<V>>>() {
+			
+			@Override
+			public int compare(final Map.Entry<K, Slot<V>> a,
+					final Map.Entry<K, Slot<V>> b) {
+				final long x = a.getValue().order;
+				final long y = b.getValue().order;
+				return (x < y) ? -1 : ((x == y) ? 0 : 1);
+			}
+		});
+		return list;
+	}
+	
+	private static boolean eq(final Object a, final Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+}
@@ -0,0 +1,373 @@
+package com.dekarrin.bots;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Holds messages waiting to be sent to the server. When a message is taken
+ * from the queue, any messages directly behind it that are for the same
+ * recipient are packed into the same line, as long as the line stays within
+ * the IRC length limit. Messages that are too long for one line are split,
+ * taking care not to split a character across lines in UTF-8. Raw commands
+ * for the server can also be queued; they are sent exactly as given.
+ * 
+ * <p>Each message has a priority, and messages of one priority are only sent
+ * when there are none of a higher priority waiting. Each priority holds a
+ * limited number of messages. Ambient messages, which nobody asked for, are
+ * also thrown away if they have waited too long to still make sense.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class OutboundQueue {
+	
+	/**
+	 * A single line that is ready to send.
+	 */
+	public static class Line {
+		
+		private final String target;
+		
+		private final String text;
+		
+		private Line(final String target, final String text) {
+			this.target = target;
+			this.text = text;
+		}
+		
+		/**
+		 * Gets the recipient of the line.
+		 * 
+		 * @return The nick or channel, or null if the line is a raw command.
+		 */
+		public String getTarget() {
+			return target;
+		}
+		
+		/**
+		 * Gets the text of the line.
+		 * 
+		 * @return The text.
+		 */
+		public String getText() {
+			return text;
+		}
+		
+		/**
+		 * Gets the line as it is sent to the server.
+		 * 
+		 * @return The command.
+		 */
+		public String toCommand() {
+			if (target == null) {
+				return text;
+			} else {
+				return "PRIVMSG " + target + " :" + text;
+			}
+		}
+	}
+	
+	/**
+	 * How urgently a message should be sent.
+	 */
+	public enum Priority {
+		
+		/**
+		 * Commands to the server that the bot is waiting on the result of,
+		 * such as a WHOIS to check who gave a command.
+		 */
+		QUERY(200),
+		
+		/**
+		 * Replies from the core module, such as to operator commands.
+		 */
+		CORE(200),
+		
+		/**
+		 * Replies to commands given to modules.
+		 */
+		REPLY(200),
+		
+		/**
+		 * Messages that modules send on their own in response to channel
+		 * events, such as greetings.
+		 */
+		AMBIENT(20),
+		
+		/**
+		 * Commands to the server that nothing is waiting on, such as looking
+		 * up the accounts of everyone in a channel.
+		 */
+		BACKGROUND(200);
+		
+		private final int depth;
+		
+		private Priority(final int depth) {
+			this.depth = depth;
+		}
+		
+		/**
+		 * Gets the number of messages of this priority that may wait at once.
+		 * 
+		 * @return The number of messages.
+		 */
+		public int getDepth() {
+			return depth;
+		}
+	}
+	
+	private static class Item {
+		
+		public final long queued;
+		
+		public final String target;
+		
+		public String text;
+		
+		public Item(final String target, final String text) {
+			this.target = target;
+			this.text = text;
+			this.queued = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Largest number of bytes in a line sent to the server, not including the
+	 * CR-LF that ends it.
+	 */
+	public static final int MAX_LINE_LENGTH = 510;
+	
+	/**
+	 * Placed between messages that are packed into the same line.
+	 */
+	public static final String SEPARATOR = " | ";
+	
+	private final List<LinkedList<Item>> lanes = new ArrayList<LinkedList<Item>>();
+	
+	private long maxAmbientAge;
+	
+	/**
+	 * Creates a new OutboundQueue.
+	 * 
+	 * @param maxAmbientAge The number of milliseconds that an ambient message
+	 * may wait before it is thrown away.
+	 */
+	public OutboundQueue(final long maxAmbientAge) {
+		this.maxAmbientAge = maxAmbientAge;
+		for (int i = 0; i < Priority.values().length; i++) {
+			lanes.add(new LinkedList<Item>());
+		}
+	}
+	
+	/**
+	 * Adds a message to the end of the queue. If there are already as many
+	 * messages of the same priority as are allowed, an ambient message
+	 * replaces the oldest ambient message; any other message is refused.
+	 * 
+	 * @param target The nick or channel to send the message to.
+	 * @param text The message.
+	 * @param priority How urgently to send the message.
+	 * @return Whether the message was added.
+	 */
+	public synchronized boolean add(final String target, final String text,
+			final Priority priority) {
+		final LinkedList<Item> lane = lanes.get(priority.ordinal());
+		if (lane.size() >= priority.getDepth()) {
+			if (priority != Priority.AMBIENT) {
+				return false;
+			}
+			lane.removeFirst();
+		}
+		lane.add(new Item(target, text));
+		notifyAll();
+		return true;
+	}
+	
+	/**
+	 * Adds a raw command to the end of the queue. It is never split or
+	 * packed with other messages. If there are already as many messages of
+	 * the same priority as are allowed, it is refused.
+	 * 
+	 * @param command The command, without the CR-LF that ends it.
+	 * @param priority How urgently to send the command. Must not be
+	 * {@link Priority#AMBIENT}.
+	 * @return Whether the command was added.
+	 */
+	public synchronized boolean addRaw(final String command,
+			final Priority priority) {
+		final LinkedList<Item> lane = lanes.get(priority.ordinal());
+		if (lane.size() >= priority.getDepth()) {
+			return false;
+		}
+		lane.add(new Item(null, command));
+		notifyAll();
+		return true;
+	}
+	
+	/**
+	 * Removes all messages from the queue.
+	 */
+	public synchronized void clear() {
+		for (final LinkedList<Item> lane : lanes) {
+			lane.clear();
+		}
+	}
+	
+	/**
+	 * Sets how long an ambient message may wait before it is thrown away.
+	 * 
+	 * @param maxAmbientAge The age in milliseconds.
+	 */
+	public synchronized void setMaxAmbientAge(final long maxAmbientAge) {
+		this.maxAmbientAge = maxAmbientAge;
+	}
+	
+	/**
+	 * Gets the number of messages in the queue.
+	 * 
+	 * @return The number of messages.
+	 */
+	public synchronized int size() {
+		int size = 0;
+		for (final LinkedList<Item> lane : lanes) {
+			size += lane.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Takes the next line to send from the queue, waiting until there is one.
+	 * The line is taken from the highest priority that has any messages.
+	 * 
+	 * @param reserve The number of bytes to leave free in each line. This
+	 * should be enough for the prefix that the server adds when it relays the
+	 * line to other clients.
+	 * @return The line.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public synchronized Line take(final int reserve)
+			throws InterruptedException {
+		LinkedList<Item> lane = nextLane();
+		while (lane == null) {
+			wait();
+			lane = nextLane();
+		}
+		final Item head = lane.getFirst();
+		if (head.target == null) {
+			lane.removeFirst();
+			return new Line(null, head.text);
+		}
+		final int budget = Math.max(1, OutboundQueue.MAX_LINE_LENGTH - reserve
+				- utf8Length("PRIVMSG " + head.target + " :"));
+		final int fit = fitting(head.text, budget);
+		if (fit < head.text.length()) {
+			int cut = head.text.lastIndexOf(' ', fit);
+			if (cut <= fit / 2) {
+				cut = fit;
+			}
+			final String first = head.text.substring(0, cut);
+			head.text = head.text.substring(cut).trim();
+			if (head.text.length() == 0) {
+				lane.removeFirst();
+			}
+			return new Line(head.target, first);
+		}
+		lane.removeFirst();
+		final StringBuilder sb = new StringBuilder(head.text);
+		int used = utf8Length(head.text);
+		while (!lane.isEmpty() && lane.getFirst().target != null
+				&& lane.getFirst().target.equalsIgnoreCase(head.target)) {
+			final Item next = lane.getFirst();
+			final int needed = OutboundQueue.SEPARATOR.length()
+					+ utf8Length(next.text);
+			if (used + needed > budget) {
+				break;
+			}
+			sb.append(OutboundQueue.SEPARATOR).append(next.text);
+			used += needed;
+			lane.removeFirst();
+		}
+		return new Line(head.target, sb.toString());
+	}
+	
+	/**
+	 * Finds the highest priority lane that has any messages, after throwing
+	 * away ambient messages that are too old.
+	 * 
+	 * @return The lane, or null if every lane is empty.
+	 */
+	private LinkedList<Item> nextLane() {
+		final LinkedList<Item> ambient = lanes.get(Priority.AMBIENT.ordinal());
+		final long oldest = System.currentTimeMillis() - maxAmbientAge;
+		while (!ambient.isEmpty() && ambient.getFirst().queued < oldest) {
+			ambient.removeFirst();
+		}
+		for (final LinkedList<Item> lane : lanes) {
+			if (!lane.isEmpty()) {
+				return lane;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Finds how much of a string fits into a number of bytes of UTF-8. At
+	 * least one character is always allowed, so that progress is made.
+	 * 
+	 * @param text The string.
+	 * @param bytes The number of bytes available.
+	 * @return The number of chars from the start of the string that fit. This
+	 * never ends between the two halves of a surrogate pair.
+	 */
+	private static int fitting(final String text, final int bytes) {
+		int used = 0;
+		int i = 0;
+		while (i < text.length()) {
+			final char c = text.charAt(i);
+			int size;
+			int chars = 1;
+			if (c < 0x80) {
+				size = 1;
+			} else if (c < 0x800) {
+				size = 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				size = 4;
+				chars = 2;
+			} else {
+				size = 3;
+			}
+			if (used + size > bytes && i > 0) {
+				break;
+			}
+			used += size;
+			i += chars;
+		}
+		return i;
+	}
+	
+	/**
+	 * Gets the number of bytes in the UTF-8 encoding of a string.
+	 * 
+	 * @param text The string.
+	 * @return The number of bytes.
+	 */
+	private static int utf8Length(final String text) {
+		int len = 0;
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			if (c < 0x80) {
+				len += 1;
+			} else if (c < 0x800) {
+				len += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				len += 4;
+				i++;
+			} else {
+				len += 3;
+			}
+		}
+		return len;
+	}
+}
@@ -0,0 +1,757 @@
+package com.dekarrin.bots;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Stores settings in a file of fixed-size pages, so that a single setting can
+ * be read or changed without reading or rewriting any of the others. This
+ * suits modules that keep a setting for every user, such as the balances in
+ * the gambler module, much better than the run control file does.
+ * 
+ * <p>Each setting is a record in one of a fixed number of bucket pages,
+ * chosen by the hash of its name. When a bucket is full, more records go in
+ * overflow pages chained from it. Recently used pages are cached in memory.
+ * 
+ * <p>Pages are changed in place, so every change is first written to a
+ * double-write file next to the store. All of the pages that a change
+ * touches are written there together with a checksum and forced to disk, and
+ * only then are they written to their places in the store. If the bot stops
+ * part-way through writing them, the pages are copied from the double-write
+ * file again when the store is next opened. The pages in the store are forced
+ * to disk before the next change is written to the double-write file, or
+ * when the store is flushed. A page that still fails its checksum is an
+ * error; the store refuses to open rather than lose the records in it.
+ * 
+ * <p>Looking up or changing a single setting only touches the pages in one
+ * chain. Listing all settings of a module, the operators or the module names
+ * reads the whole file, which is only expected when the bot starts.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+public class PagedSettingsStore implements SettingsStore {
+	
+	/**
+	 * A page as it is held in memory.
+	 */
+	private static class Page {
+		
+		public int next = 0;
+		
+		public final int number;
+		
+		public final Map<String, String> records = new LinkedHashMap<String, String>();
+		
+		public int used = PagedSettingsStore.PAGE_HEADER_SIZE;
+		
+		public Page(final int number) {
+			this.number = number;
+		}
+		
+		public int free() {
+			return PagedSettingsStore.PAGE_SIZE - used;
+		}
+		
+		public void put(final String key, final String value) {
+			remove(key);
+			records.put(key, value);
+			used += recordSize(key, value);
+		}
+		
+		public void remove(final String key) {
+			final String old = records.remove(key);
+			if (old != null) {
+				used -= recordSize(key, old);
+			}
+		}
+	}
+	
+	/**
+	 * Number of bucket pages in a new file.
+	 */
+	private static final int BUCKET_COUNT = 512;
+	
+	/**
+	 * Number of pages kept in memory.
+	 */
+	private static final int CACHE_SIZE = 1024;
+	
+	/**
+	 * Size of the magic number, page count and checksum at the start of the
+	 * double-write file.
+	 */
+	private static final int DOUBLE_WRITE_HEADER_SIZE = 12;
+	
+	private static final int DOUBLE_WRITE_MAGIC = 0x53424457;
+	
+	private static final int MAGIC = 0x53424B56;
+	
+	private static final String MODULES_KEY = "M";
+	
+	private static final String OPERATOR_PREFIX = "O:";
+	
+	/**
+	 * Size of the checksum, next page number and record count at the start
+	 * of each page.
+	 */
+	private static final int PAGE_HEADER_SIZE = 10;
+	
+	private static final int PAGE_SIZE = 4096;
+	
+	private static final String SETTING_PREFIX = "S:";
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final int VERSION = 1;
+	
+	private int bucketCount;
+	
+	private final Map<Integer, Page> cache = new LinkedHashMap<Integer, Page>(
+			16, 0.75f, true) {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Integer, Page> eldest) {
+			return size() > PagedSettingsStore.CACHE_SIZE;
+		}
+	};
+	
+	/**
+	 * The pages changed by the change being made, by page number, in the
+	 * form that they are written to disk.
+	 */
+	private final Map<Integer, ByteBuffer> changed = new LinkedHashMap<Integer, ByteBuffer>();
+	
+	private FileChannel channel = null;
+	
+	/**
+	 * The number of pages as of the last change that was written, which a
+	 * change that is discarded goes back to.
+	 */
+	private int committedPageCount;
+	
+	private final File doubleWriteFile;
+	
+	private final File file;
+	
+	private int pageCount;
+	
+	private boolean successfulLoad = false;
+	
+	/**
+	 * Creates a new PagedSettingsStore. The file is created when the store is
+	 * first used if it does not already exist.
+	 * 
+	 * @param path The file that the settings are stored in.
+	 */
+	public PagedSettingsStore(final String path) {
+		file = new File(path);
+		doubleWriteFile = new File(path + ".dw");
+	}
+	
+	private static int recordSize(final String key, final String value) {
+		return 4 + key.getBytes(UTF8).length + value.getBytes(UTF8).length;
+	}
+	
+	private static String settingKey(final String mod, final String setting) {
+		return SETTING_PREFIX + mod.toUpperCase() + ":" + setting.toUpperCase();
+	}
+	
+	@Override
+	public synchronized void flush() throws IOException {
+		if (channel != null) {
+			channel.force(true);
+		}
+	}
+	
+	@Override
+	public synchronized Map<String, String> getAllModuleSettings(final String name) {
+		final String prefix = settingKey(name, "");
+		final Map<String, String> sets = new TreeMap<String, String>();
+		try {
+			for (final Map.Entry<String, String> e : scan(prefix).entrySet()) {
+				sets.put(e.getKey().substring(prefix.length()), e.getValue());
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		return sets.isEmpty() ? null : Collections.unmodifiableMap(sets);
+	}
+	
+	@Override
+	public synchronized List<String> getEnabledModules() {
+		final List<String> modules = new ArrayList<String>();
+		try {
+			final String value = get(MODULES_KEY);
+			if (value != null && value.length() > 0) {
+				modules.addAll(Arrays.asList(value.split(",")));
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		return Collections.unmodifiableList(modules);
+	}
+	
+	@Override
+	public synchronized Set<String> getModuleNames() {
+		final Set<String> names = new TreeSet<String>();
+		try {
+			for (final String key : scan(SETTING_PREFIX).keySet()) {
+				names.add(key.substring(SETTING_PREFIX.length(),
+						key.indexOf(':', SETTING_PREFIX.length())));
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		return Collections.unmodifiableSet(names);
+	}
+	
+	@Override
+	public synchronized String getModuleSetting(final String mod,
+			final String setting) {
+		try {
+			return get(settingKey(mod, setting));
+		} catch (final IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	@Override
+	public char[] getModuleSettingChar(final String mod, final String setting) {
+		return getModuleSetting(mod, setting).toCharArray();
+	}
+	
+	@Override
+	public synchronized Set<String> getOperators() {
+		final Set<String> ops = new TreeSet<String>();
+		try {
+			for (final String key : scan(OPERATOR_PREFIX).keySet()) {
+				ops.add(key.substring(OPERATOR_PREFIX.length()));
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		return Collections.unmodifiableSet(ops);
+	}
+	
+	/**
+	 * Copies every setting from a run control file into this store. Settings
+	 * that already exist in this store are overwritten. The run control file
+	 * is not changed.
+	 * 
+	 * @param rcfile The path to the run control file.
+	 * @throws IOException If the run control file could not be read or the
+	 * settings could not be written.
+	 */
+	public synchronized void importFrom(final String rcfile) throws IOException {
+		final Settings source = new Settings(rcfile, false);
+		source.read();
+		open();
+		// everything is written as a single change
+		for (final String mod : source.getModuleNames()) {
+			for (final Map.Entry<String, String> e : source
+					.getAllModuleSettings(mod).entrySet()) {
+				put(settingKey(mod, e.getKey()), e.getValue());
+			}
+		}
+		for (final String op : source.getOperators()) {
+			put(OPERATOR_PREFIX + op, "");
+		}
+		putModules(source.getEnabledModules());
+		try {
+			commit();
+		} catch (final IOException e) {
+			discard();
+			throw e;
+		}
+		channel.force(true);
+		successfulLoad = true;
+	}
+	
+	@Override
+	public synchronized void read() throws IOException {
+		cache.clear();
+		open();
+	}
+	
+	@Override
+	public synchronized void removeModuleSetting(final String mod,
+			final String setting) {
+		try {
+			remove(settingKey(mod, setting));
+			commit();
+		} catch (final IOException e) {
+			discard();
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public synchronized void removeModuleSettings(final String mod,
+			final Collection<String> settings) {
+		try {
+			for (final String setting : settings) {
+				remove(settingKey(mod, setting));
+			}
+			commit();
+		} catch (final IOException e) {
+			discard();
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public synchronized void setModuleEnabled(final String module,
+			final boolean enabled) {
+		final List<String> modules = new ArrayList<String>(getEnabledModules());
+		if (enabled && !modules.contains(module)) {
+			modules.add(module);
+		} else if (!enabled) {
+			modules.remove(module);
+		}
+		try {
+			putModules(modules);
+			commit();
+		} catch (final IOException e) {
+			discard();
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public synchronized void setModuleSetting(final String mod,
+			final String setting, final String value) {
+		try {
+			put(settingKey(mod, setting), value == null ? "" : value);
+			commit();
+		} catch (final IOException e) {
+			discard();
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public void setModuleSetting(final String mod, final String setting,
+			final char[] value) {
+		setModuleSetting(mod, setting, new String(value));
+	}
+	
+	@Override
+	public synchronized void setNickOp(final String nick, final boolean isOp) {
+		try {
+			if (isOp) {
+				put(OPERATOR_PREFIX + nick, "");
+			} else {
+				remove(OPERATOR_PREFIX + nick);
+			}
+			commit();
+		} catch (final IOException e) {
+			discard();
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public synchronized void shutdown() {
+		if (channel != null) {
+			try {
+				channel.force(true);
+				channel.close();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+			channel = null;
+		}
+		cache.clear();
+	}
+	
+	@Override
+	public synchronized boolean successfullyLoaded() {
+		return successfulLoad;
+	}
+	
+	private int bucketOf(final String key) {
+		return 1 + (key.hashCode() & 0x7fffffff) % bucketCount;
+	}
+	
+	/**
+	 * Writes the pages changed by a change. They are written to the
+	 * double-write file and forced to disk first, and then written to their
+	 * places in the store. The pages of the change before are forced to disk
+	 * before the double-write file is overwritten, since it can no longer
+	 * repair them afterwards.
+	 */
+	private void commit() throws IOException {
+		if (changed.isEmpty()) {
+			committedPageCount = pageCount;
+			return;
+		}
+		channel.force(false);
+		final ByteBuffer dw = ByteBuffer.allocate(DOUBLE_WRITE_HEADER_SIZE
+				+ changed.size() * (4 + PAGE_SIZE));
+		dw.position(DOUBLE_WRITE_HEADER_SIZE);
+		for (final Map.Entry<Integer, ByteBuffer> e : changed.entrySet()) {
+			dw.putInt(e.getKey());
+			dw.put(e.getValue().array());
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(dw.array(), DOUBLE_WRITE_HEADER_SIZE, dw.capacity()
+				- DOUBLE_WRITE_HEADER_SIZE);
+		dw.putInt(0, DOUBLE_WRITE_MAGIC);
+		dw.putInt(4, changed.size());
+		dw.putInt(8, (int) crc.getValue());
+		dw.position(0);
+		if (!doubleWriteFile.exists()) {
+			FilePermissions.createPrivate(doubleWriteFile);
+			FilePermissions.copy(file, doubleWriteFile);
+		}
+		final FileChannel out = FileChannel.open(doubleWriteFile.toPath(),
+				StandardOpenOption.WRITE);
+		try {
+			long pos = 0;
+			while (dw.hasRemaining()) {
+				pos += out.write(dw, pos);
+			}
+			out.truncate(pos);
+			out.force(true);
+		} finally {
+			out.close();
+		}
+		for (final Map.Entry<Integer, ByteBuffer> e : changed.entrySet()) {
+			writeFully((long) e.getKey() * PAGE_SIZE, e.getValue());
+		}
+		changed.clear();
+		committedPageCount = pageCount;
+	}
+	
+	/**
+	 * Forgets a change that could not be written. Cached pages may hold parts
+	 * of it, so they are read from the file again, and any pages that it
+	 * added are given back.
+	 */
+	private void discard() {
+		changed.clear();
+		cache.clear();
+		pageCount = committedPageCount;
+	}
+	
+	/**
+	 * Copies the pages in the double-write file back into the store, in case
+	 * they were only partly written there. If the double-write file is not
+	 * complete, the pages in it were never written to the store, so it is
+	 * ignored.
+	 */
+	private void recover() throws IOException {
+		if (!doubleWriteFile.exists()) {
+			return;
+		}
+		final byte[] data = Files.readAllBytes(doubleWriteFile.toPath());
+		final ByteBuffer dw = ByteBuffer.wrap(data);
+		if (data.length < DOUBLE_WRITE_HEADER_SIZE
+				|| dw.getInt(0) != DOUBLE_WRITE_MAGIC) {
+			return;
+		}
+		final int count = dw.getInt(4);
+		if (count < 0 || (long) count * (4 + PAGE_SIZE)
+				!= data.length - DOUBLE_WRITE_HEADER_SIZE) {
+			return;
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(data, DOUBLE_WRITE_HEADER_SIZE, data.length
+				- DOUBLE_WRITE_HEADER_SIZE);
+		if ((int) crc.getValue() != dw.getInt(8)) {
+			return;
+		}
+		dw.position(DOUBLE_WRITE_HEADER_SIZE);
+		for (int i = 0; i < count; i++) {
+			final int n = dw.getInt();
+			final ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+			dw.get(page.array());
+			writeFully((long) n * PAGE_SIZE, page);
+		}
+		channel.force(true);
+	}
+	
+	/**
+	 * Reads all pages in the chain that starts at a bucket.
+	 */
+	private List<Page> chain(final int bucket) throws IOException {
+		final List<Page> pages = new ArrayList<Page>();
+		int n = bucket;
+		while (n != 0 && n < pageCount) {
+			final Page p = readPage(n);
+			pages.add(p);
+			n = p.next;
+		}
+		return pages;
+	}
+	
+	/**
+	 * Looks up a record. If a crash left more than one copy of a record in a
+	 * chain, the last one is the newest.
+	 */
+	private String get(final String key) throws IOException {
+		open();
+		String value = null;
+		for (final Page p : chain(bucketOf(key))) {
+			final String v = p.records.get(key);
+			if (v != null) {
+				value = v;
+			}
+		}
+		return value;
+	}
+	
+	/**
+	 * Opens the file, creating it if it does not exist.
+	 */
+	private void open() throws IOException {
+		if (channel != null) {
+			return;
+		}
+		final boolean existed = file.length() > 0;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (existed) {
+				recover();
+				final ByteBuffer buf = readBlock(0);
+				if (buf.getInt(4) != MAGIC || buf.getInt(8) != VERSION
+						|| buf.getInt(12) != PAGE_SIZE || checksum(buf) != buf.getInt(0)) {
+					throw new IOException("Not a usable settings store: " + file);
+				}
+				bucketCount = buf.getInt(16);
+				pageCount = buf.getInt(20);
+				committedPageCount = pageCount;
+				for (int i = 1; i < pageCount; i++) {
+					final ByteBuffer page = readBlock(i);
+					if (checksum(page) != page.getInt(0)) {
+						throw new IOException("Settings page " + i + " of " + file
+								+ " is damaged");
+					}
+				}
+			} else {
+				bucketCount = BUCKET_COUNT;
+				pageCount = BUCKET_COUNT + 1;
+				for (int i = 1; i < pageCount; i++) {
+					writePage(new Page(i));
+				}
+				writeHeader();
+				commit();
+				channel.force(true);
+			}
+		} catch (final IOException e) {
+			changed.clear();
+			channel.close();
+			channel = null;
+			throw e;
+		}
+		successfulLoad = existed;
+	}
+	
+	/**
+	 * Stores a record. If the record no longer fits where it was, it is
+	 * written further along the chain before the old copy is removed, so that
+	 * a crash in between leaves the new copy last.
+	 */
+	private void put(final String key, final String value) throws IOException {
+		if (recordSize(key, value) > PAGE_SIZE - PAGE_HEADER_SIZE) {
+			throw new IllegalArgumentException("Setting is too large to store: "
+					+ key);
+		}
+		open();
+		final List<Page> pages = chain(bucketOf(key));
+		int last = -1;
+		for (int i = 0; i < pages.size(); i++) {
+			if (pages.get(i).records.containsKey(key)) {
+				last = i;
+			}
+		}
+		final int size = recordSize(key, value);
+		Page target = null;
+		if (last != -1) {
+			final Page p = pages.get(last);
+			if (size <= p.free() + recordSize(key, p.records.get(key))) {
+				target = p;
+			}
+		}
+		for (int i = last + 1; i < pages.size() && target == null; i++) {
+			if (size <= pages.get(i).free()) {
+				target = pages.get(i);
+			}
+		}
+		if (target == null) {
+			// the new page is written and counted before anything points to
+			// it, so a crash never leaves a link to a missing page
+			target = new Page(pageCount);
+			target.put(key, value);
+			writePage(target);
+			pageCount++;
+			writeHeader();
+			final Page tail = pages.get(pages.size() - 1);
+			tail.next = target.number;
+			writePage(tail);
+		} else {
+			target.put(key, value);
+			writePage(target);
+		}
+		for (final Page p : pages) {
+			if (p != target && p.records.containsKey(key)) {
+				p.remove(key);
+				writePage(p);
+			}
+		}
+	}
+	
+	private void putModules(final List<String> modules) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		for (final String m : modules) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(m);
+		}
+		put(MODULES_KEY, sb.toString());
+	}
+	
+	private ByteBuffer readBlock(final int n) throws IOException {
+		final ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+		long pos = (long) n * PAGE_SIZE;
+		while (buf.hasRemaining()) {
+			final int read = channel.read(buf, pos);
+			if (read == -1) {
+				break;
+			}
+			pos += read;
+		}
+		return buf;
+	}
+	
+	private Page readPage(final int n) throws IOException {
+		Page p = cache.get(n);
+		if (p != null) {
+			return p;
+		}
+		final ByteBuffer buf = readBlock(n);
+		if (checksum(buf) != buf.getInt(0)) {
+			throw new IOException("Settings page " + n + " of " + file
+					+ " is damaged");
+		}
+		p = new Page(n);
+		p.next = buf.getInt(4);
+		final int count = buf.getShort(8) & 0xffff;
+		buf.position(PAGE_HEADER_SIZE);
+		for (int i = 0; i < count; i++) {
+			final int start = buf.position();
+			final String key = readString(buf);
+			final String value = readString(buf);
+			p.records.put(key, value);
+			p.used += buf.position() - start;
+		}
+		cache.put(n, p);
+		return p;
+	}
+	
+	private static String readString(final ByteBuffer buf) {
+		final byte[] bytes = new byte[buf.getShort() & 0xffff];
+		buf.get(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	private void remove(final String key) throws IOException {
+		open();
+		for (final Page p : chain(bucketOf(key))) {
+			if (p.records.containsKey(key)) {
+				p.remove(key);
+				writePage(p);
+			}
+		}
+	}
+	
+	/**
+	 * Collects every record whose key starts with a prefix.
+	 */
+	private Map<String, String> scan(final String prefix) throws IOException {
+		open();
+		final Map<String, String> found = new TreeMap<String, String>();
+		for (int b = 1; b <= bucketCount; b++) {
+			for (final Page p : chain(b)) {
+				for (final Map.Entry<String, String> e : p.records.entrySet()) {
+					if (e.getKey().startsWith(prefix)) {
+						found.put(e.getKey(), e.getValue());
+					}
+				}
+			}
+		}
+		return found;
+	}
+	
+	private static int checksum(final ByteBuffer buf) {
+		final CRC32 crc = new CRC32();
+		crc.update(buf.array(), 4, PAGE_SIZE - 4);
+		return (int) crc.getValue();
+	}
+	
+	/**
+	 * Adds a block to the pages changed by the change being made. It is
+	 * written when the change is committed.
+	 */
+	private void writeBlock(final int n, final ByteBuffer buf) {
+		buf.putInt(0, checksum(buf));
+		changed.put(n, buf);
+	}
+	
+	private void writeFully(long pos, final ByteBuffer buf) throws IOException {
+		buf.position(0);
+		while (buf.hasRemaining()) {
+			pos += channel.write(buf, pos);
+		}
+	}
+	
+	private void writeHeader() {
+		final ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+		buf.putInt(4, MAGIC);
+		buf.putInt(8, VERSION);
+		buf.putInt(12, PAGE_SIZE);
+		buf.putInt(16, bucketCount);
+		buf.putInt(20, pageCount);
+		writeBlock(0, buf);
+	}
+	
+	private void writePage(final Page p) throws IOException {
+		final ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+		buf.putInt(4, p.next);
+		buf.putShort(8, (short) p.records.size());
+		buf.position(PAGE_HEADER_SIZE);
+		for (final Map.Entry<String, String> e : p.records.entrySet()) {
+			writeString(buf, e.getKey());
+			writeString(buf, e.getValue());
+		}
+		writeBlock(p.number, buf);
+		cache.put(p.number, p);
+	}
+	
+	private static void writeString(final ByteBuffer buf, final String s) {
+		final byte[] bytes = s.getBytes(UTF8);
+		buf.putShort((short) bytes.length);
+		buf.put(bytes);
+	}
+}
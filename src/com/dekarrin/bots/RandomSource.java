@@ -0,0 +1,88 @@
+package com.dekarrin.bots;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Provides random numbers to modules. Every thread draws from its own stream,
+ * so threads never wait on each other for a random number and no generator
+ * is created for each use.
+ * 
+ * <p>An unseeded source uses the thread's {@link ThreadLocalRandom}. A seeded
+ * source gives each thread its own {@link SplittableRandom}, split from one
+ * made from the seed in the order that threads first ask for a number. The
+ * same seed always gives the same streams, so a run can be repeated exactly
+ * as long as the same work is given to the same threads in the same order,
+ * such as when commands and events are each handled by a single thread.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+public class RandomSource {
+	
+	private final SplittableRandom root;
+	
+	private final ThreadLocal<SplittableRandom> streams;
+	
+	/**
+	 * Creates a new RandomSource that is not seeded.
+	 */
+	public RandomSource() {
+		root = null;
+		streams = null;
+	}
+	
+	/**
+	 * Creates a new RandomSource that gives the same numbers every time it is
+	 * created with the same seed.
+	 * 
+	 * @param seed The seed.
+	 */
+	public RandomSource(final long seed) {
+		root = new SplittableRandom(seed);
+		streams = new ThreadLocal<SplittableRandom>() {
+			
+			@Override
+			protected SplittableRandom initialValue() {
+				synchronized (root) {
+					return root.split();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Checks whether this source was made from a seed.
+	 * 
+	 * @return Whether it was.
+	 */
+	public boolean isSeeded() {
+		return (root != null);
+	}
+	
+	/**
+	 * Gets a random number from 0 (inclusive) to 1 (exclusive).
+	 * 
+	 * @return The number.
+	 */
+	public double nextDouble() {
+		if (streams == null) {
+			return ThreadLocalRandom.current().nextDouble();
+		} else {
+			return streams.get().nextDouble();
+		}
+	}
+	
+	/**
+	 * Gets a random number from 0 (inclusive) to a bound (exclusive).
+	 * 
+	 * @param bound The bound. Must be positive.
+	 * @return The number.
+	 */
+	public int nextInt(final int bound) {
+		if (streams == null) {
+			return ThreadLocalRandom.current().nextInt(bound);
+		} else {
+			return streams.get().nextInt(bound);
+		}
+	}
+}
@@ -88,8 +88,8 @@ public class SarcasmModule extends Module {
 			remarks.add("Yeah right, %s, you WOULD say that.");
 			remarks.add("As IF, %s");
 			remarks.add("Sure, %s, that's DEFINATLY true. Mmhmm. idiot.");
-			if (Math.random() < odds) {
-				int msgIndex = (new java.util.Random()).nextInt(remarks.size());
+			if (bot.getRandom().nextDouble() < odds) {
+				int msgIndex = bot.getRandom().nextInt(remarks.size());
 				String msg = String.format(remarks.get(msgIndex), sender);
 				bot.sendMessage(bot.getChannel(), msg);
 				return true;
@@ -0,0 +1,252 @@
+package com.dekarrin.bots;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Matches numeric replies from the server to the queries that caused them.
+ * Every query names a target, such as the nick given to WHOIS or the channel
+ * given to WHO, and replies are matched to a query by the target that the
+ * server echoes back as the first parameter after the bot's own nick. Any
+ * number of queries may be waiting at once; queries for the same target are
+ * answered in the order they were sent, which is the order the server
+ * replies in. A query whose future is completed in any other way, such as by
+ * being cancelled, stops waiting at once, so that it cannot take the replies
+ * meant for the next query for the same target.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class ServerQueryCorrelator {
+	
+	/**
+	 * The lowest numeric that indicates an error.
+	 */
+	public static final int FIRST_ERROR_CODE = 400;
+	
+	/**
+	 * A query that has not been completely answered yet.
+	 */
+	private static class Pending {
+		
+		public boolean capturing = false;
+		
+		public final List<Integer> codes = new ArrayList<Integer>();
+		
+		public final int endCode;
+		
+		public final CompletableFuture<ServerResponse> future = new CompletableFuture<ServerResponse>();
+		
+		public final List<String> lines = new ArrayList<String>();
+		
+		public final int startCode;
+		
+		public final String target;
+		
+		public Pending(final String target, final int startCode,
+				final int endCode) {
+			this.target = target;
+			this.startCode = startCode;
+			this.endCode = endCode;
+		}
+	}
+	
+	private final Map<String, LinkedList<Pending>> pending = new HashMap<String, LinkedList<Pending>>();
+	
+	private final ScheduledExecutorService timer;
+	
+	/**
+	 * Creates a new ServerQueryCorrelator.
+	 */
+	public ServerQueryCorrelator() {
+		final ScheduledThreadPoolExecutor exec = new ScheduledThreadPoolExecutor(
+				1, new ThreadFactory() {
+					
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread t = new Thread(r, "ServerQueryTimer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		exec.setRemoveOnCancelPolicy(true);
+		timer = exec;
+	}
+	
+	/**
+	 * Fails every query that is waiting for a reply. This is used when the
+	 * connection to the server is lost, since no more replies will arrive.
+	 */
+	public void cancelAll() {
+		final List<Pending> cancelled = new ArrayList<Pending>();
+		synchronized (this) {
+			for (final LinkedList<Pending> queue : pending.values()) {
+				cancelled.addAll(queue);
+			}
+			pending.clear();
+		}
+		for (final Pending p : cancelled) {
+			p.future.cancel(false);
+		}
+	}
+	
+	/**
+	 * Passes a numeric reply to the query that it belongs to. Capture for a
+	 * query begins with its start code, or with an error code, and ends with
+	 * its end code. Replies that do not belong to any query are ignored.
+	 * 
+	 * @param code The numeric code of the reply.
+	 * @param response The rest of the reply after the code.
+	 */
+	public void handle(final int code, final String response) {
+		final String target = parseTarget(response);
+		if (target == null) {
+			return;
+		}
+		Pending done = null;
+		synchronized (this) {
+			final LinkedList<Pending> queue = pending.get(target);
+			if (queue == null) {
+				return;
+			}
+			// a query that was cancelled may not have been removed yet
+			while (queue.getFirst().future.isDone()) {
+				queue.removeFirst();
+				if (queue.isEmpty()) {
+					pending.remove(target);
+					return;
+				}
+			}
+			final Pending p = queue.getFirst();
+			if (code == p.startCode || code >= FIRST_ERROR_CODE) {
+				p.capturing = true;
+			}
+			if (p.capturing) {
+				p.codes.add(code);
+				p.lines.add(response);
+				if (code == p.endCode) {
+					remove(p);
+					done = p;
+				}
+			}
+		}
+		if (done != null) {
+			done.future.complete(new ServerResponse(done.codes, done.lines));
+		}
+	}
+	
+	/**
+	 * Stops the timer thread. Queries that are still waiting are cancelled.
+	 */
+	public void shutdown() {
+		cancelAll();
+		timer.shutdownNow();
+	}
+	
+	/**
+	 * Starts waiting for the replies to a query. This must be called before
+	 * the query is sent to the server, or the first replies may be missed.
+	 * 
+	 * @param target The target of the query. Case-insensitive.
+	 * @param startCode The code of the first reply to capture.
+	 * @param endCode The code of the reply that ends the response. This may be
+	 * the same as startCode to capture only one reply.
+	 * @param timeout The number of milliseconds to wait for the response
+	 * before failing with a TimeoutException.
+	 * @return A future that is completed with the captured replies. If it is
+	 * cancelled, the query stops waiting for replies.
+	 */
+	public CompletableFuture<ServerResponse> submit(final String target,
+			final int startCode, final int endCode, final long timeout) {
+		final Pending p = new Pending(target.toLowerCase(), startCode, endCode);
+		synchronized (this) {
+			LinkedList<Pending> queue = pending.get(p.target);
+			if (queue == null) {
+				queue = new LinkedList<Pending>();
+				pending.put(p.target, queue);
+			}
+			queue.add(p);
+		}
+		final ScheduledFuture<?> expiry = timer.schedule(new Runnable() {
+			
+			@Override
+			public void run() {
+				boolean expired;
+				synchronized (ServerQueryCorrelator.this) {
+					expired = remove(p);
+				}
+				if (expired) {
+					p.future.completeExceptionally(new TimeoutException(
+							"No response from server for '" + p.target + "'"));
+				}
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		p.future.whenComplete(new BiConsumer<ServerResponse, Throwable>() {
+			
+			@Override
+			public void accept(final ServerResponse r, final Throwable t) {
+				synchronized (ServerQueryCorrelator.this) {
+					remove(p);
+				}
+				expiry.cancel(false);
+			}
+		});
+		return p.future;
+	}
+	
+	/**
+	 * Gets the target from a numeric reply.
+	 * 
+	 * @param response The reply, beginning with the bot's nick.
+	 * @return The target in lower case, or null if there is none.
+	 */
+	private String parseTarget(final String response) {
+		final int start = response.indexOf(' ') + 1;
+		if (start == 0 || start >= response.length()
+				|| response.charAt(start) == ':') {
+			return null;
+		}
+		int end = response.indexOf(' ', start);
+		if (end < 0) {
+			end = response.length();
+		}
+		return response.substring(start, end).toLowerCase();
+	}
+	
+	/**
+	 * Stops waiting for a query. Must be called while holding the lock on
+	 * this object.
+	 * 
+	 * @param p The query.
+	 * @return Whether the query was still waiting.
+	 */
+	private boolean remove(final Pending p) {
+		final LinkedList<Pending> queue = pending.get(p.target);
+		if (queue == null) {
+			return false;
+		}
+		final Iterator<Pending> it = queue.iterator();
+		boolean found = false;
+		while (it.hasNext() && !found) {
+			found = (it.next() == p);
+			if (found) {
+				it.remove();
+			}
+		}
+		if (queue.isEmpty()) {
+			pending.remove(p.target);
+		}
+		return found;
+	}
+}
@@ -0,0 +1,76 @@
+package com.dekarrin.bots;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The numeric replies that the server sent back for a single query. Each reply
+ * consists of its code and the rest of the line after the code, exactly as
+ * passed to PircBot's onServerResponse().
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+public class ServerResponse {
+	
+	private final List<Integer> codes;
+	
+	private final List<String> lines;
+	
+	/**
+	 * Creates a new ServerResponse.
+	 * 
+	 * @param codes The codes of the replies, in the order they were received.
+	 * @param lines The replies, in the same order as the codes.
+	 */
+	ServerResponse(final List<Integer> codes, final List<String> lines) {
+		this.codes = Collections.unmodifiableList(new ArrayList<Integer>(codes));
+		this.lines = Collections.unmodifiableList(new ArrayList<String>(lines));
+	}
+	
+	/**
+	 * Gets the first reply with a certain code.
+	 * 
+	 * @param code The code to look for.
+	 * @return The reply, or null if the server did not send one with that
+	 * code.
+	 */
+	public String find(final int code) {
+		final int index = codes.indexOf(code);
+		return (index >= 0) ? lines.get(index) : null;
+	}
+	
+	/**
+	 * Gets the codes of all replies.
+	 * 
+	 * @return An unmodifiable list of the codes, in the order they were
+	 * received.
+	 */
+	public List<Integer> getCodes() {
+		return codes;
+	}
+	
+	/**
+	 * Gets all replies.
+	 * 
+	 * @return An unmodifiable list of the replies, in the order they were
+	 * received.
+	 */
+	public List<String> getLines() {
+		return lines;
+	}
+	
+	/**
+	 * Checks whether the server replied with an error code.
+	 * 
+	 * @return Whether any of the replies has a code of 400 or greater.
+	 */
+	public boolean hasError() {
+		for (final Integer code : codes) {
+			if (code >= ServerQueryCorrelator.FIRST_ERROR_CODE) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -1,27 +1,274 @@
 package com.dekarrin.bots;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Holds persistence settings for the bot and handles file i/o for the run
- * control file.
+ * control file. This is the default settings store, and keeps every setting
+ * in memory.
+ * 
+ * <p>By default, every change is written to the file immediately. In
+ * write-behind mode, changes are instead collected and written by a
+ * background thread a short time after the first of them, or as soon as
+ * enough of them have built up. The file is always replaced atomically, so a
+ * crash while writing it leaves the old file intact.
+ * 
+ * <p>Settings may be read and changed from any thread. Reads never lock, and
+ * a change only locks for long enough to record it, so neither ever waits
+ * for the file to be written. The file is written from a view of the
+ * settings that may include some changes made while it was being written;
+ * in journal mode, those changes are also in the journal, and replaying it
+ * brings the file up to date.
+ * 
+ * <p>In journal mode, changes are not written by rewriting the whole file.
+ * Instead, each change is appended as a record to a journal file next to it,
+ * and the journal is replayed on top of the file whenever it is read. Once
+ * the journal grows large compared to the file, the two are compacted into a
+ * new file in the background.
  * 
  * @author Rebecca 'TF' Nelson
  */
-class Settings {
+class Settings implements SettingsStore {
+	
+	/**
+	 * Journals smaller than this are never compacted, no matter how small the
+	 * RC file is.
+	 */
+	private static final long MIN_COMPACT_SIZE = 4096;
+	
+	/**
+	 * Size of the buffers used for reading the RC file.
+	 */
+	private static final int READ_BUFFER_SIZE = 8192;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * Builds up a new set of settings from the lines of an RC file. The file
+	 * is read through a single reused buffer and each line is examined one
+	 * character at a time, so reading a large file creates almost nothing
+	 * besides the settings themselves.
+	 */
+	private static class Loader {
+		
+		private ConcurrentMap<String, String> currentModuleSettings;
+		
+		public final List<String> modules = new CopyOnWriteArrayList<String>();
+		
+		public final Set<String> operators = newOperators();
+		
+		private ReadMode section = ReadMode.NONE;
+		
+		public final ConcurrentMap<String, ConcurrentMap<String, String>> sections = newSections();
+		
+		/**
+		 * Reads every line of a file.
+		 * 
+		 * @param file The file to read.
+		 * @throws FileNotFoundException If the file does not exist.
+		 * @throws IOException If the file could not be read.
+		 */
+		public void load(final File file) throws FileNotFoundException,
+				IOException {
+			final FileInputStream in = new FileInputStream(file);
+			try {
+				final FileChannel ch = in.getChannel();
+				final CharsetDecoder decoder = UTF8.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+				final ByteBuffer bytes = ByteBuffer.allocate(READ_BUFFER_SIZE);
+				final CharBuffer chars = CharBuffer.allocate(READ_BUFFER_SIZE);
+				final char[] buf = chars.array();
+				final StringBuilder line = new StringBuilder();
+				boolean afterCr = false;
+				boolean eof = false;
+				while (!eof) {
+					eof = (ch.read(bytes) == -1);
+					bytes.flip();
+					decoder.decode(bytes, chars, eof);
+					if (eof) {
+						decoder.flush(chars);
+					}
+					bytes.compact();
+					final int len = chars.position();
+					int lineStart = 0;
+					for (int i = 0; i < len; i++) {
+						final char c = buf[i];
+						if (c == '\n' || c == '\r') {
+							if (!(c == '\n' && afterCr)) {
+								line.append(buf, lineStart, i - lineStart);
+								processLine(line);
+								line.setLength(0);
+							}
+							lineStart = i + 1;
+						}
+						afterCr = (c == '\r');
+					}
+					line.append(buf, lineStart, len - lineStart);
+					chars.clear();
+				}
+				if (line.length() > 0) {
+					processLine(line);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		
+		private void changeSection(final String header) {
+			if (header.equalsIgnoreCase("OPERATORS")) {
+				section = ReadMode.OPERATORS;
+			} else if (header.equalsIgnoreCase("MODULES")) {
+				section = ReadMode.MODULES;
+			} else if (header.toUpperCase().equalsIgnoreCase("CORE")) {
+				section = ReadMode.CORE;
+				currentModuleSettings = section(sections,
+						SmartBot.CORE_MODULE_NAME);
+			} else if (header.toUpperCase().startsWith("MODULESETTINGS")) {
+				section = ReadMode.MODULE_SETTINGS;
+				final String modName = header.substring("MODULESETTINGS".length())
+						.toUpperCase();
+				currentModuleSettings = section(sections, modName);
+			} else {
+				section = ReadMode.NONE;
+			}
+		}
+		
+		/**
+		 * Processes a single line. Everything from a '#' onwards is a comment,
+		 * and lines that are blank once it is removed are skipped.
+		 * 
+		 * @param line The line, without its line terminator.
+		 */
+		private void processLine(final CharSequence line) {
+			int end = 0;
+			while (end < line.length() && line.charAt(end) != '#') {
+				end++;
+			}
+			int first = 0;
+			while (first < end && line.charAt(first) <= ' ') {
+				first++;
+			}
+			int last = end;
+			while (last > first && line.charAt(last - 1) <= ' ') {
+				last--;
+			}
+			if (first == last) {
+				return;
+			}
+			if (isHeader(line, end)) {
+				changeSection(line.subSequence(1, end - 1).toString());
+				return;
+			}
+			switch (section) {
+				case MODULES:
+					if (isIdentifier(line, first, last)) {
+						modules.add(line.subSequence(first, last).toString());
+					}
+					break;
+				case OPERATORS:
+					operators.add(line.subSequence(first, last).toString());
+					break;
+				case MODULE_SETTINGS:
+				case CORE:
+					final int eq = settingNameEnd(line, end);
+					if (eq != -1) {
+						currentModuleSettings.put(line.subSequence(0, eq)
+								.toString().toUpperCase(), line.subSequence(
+								eq + 1, end).toString());
+					}
+					break;
+				case NONE:
+					break;
+			}
+		}
+		
+		/**
+		 * Checks whether a line is a section header, which is a name in square
+		 * brackets with nothing else around it.
+		 */
+		private static boolean isHeader(final CharSequence line, final int end) {
+			if (end < 3 || line.charAt(0) != '[' || line.charAt(end - 1) != ']') {
+				return false;
+			}
+			for (int i = 1; i < end - 1; i++) {
+				if (line.charAt(i) == ']') {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Checks whether part of a line is a valid module name. The name may
+		 * contain letters, digits and '_', and may also start with '$', though
+		 * it may not start with a digit.
+		 */
+		private static boolean isIdentifier(final CharSequence line,
+				final int start, final int end) {
+			for (int i = start; i < end; i++) {
+				final char c = line.charAt(i);
+				final boolean letter = ((c == '$' && i == start) || c == '_'
+						|| (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z'));
+				if (!letter && (i == start || c < '0' || c > '9')) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Finds the '=' that ends the name of a setting. The name must start
+		 * the line and may contain letters, digits, '_' and '-', and may also
+		 * start with '$', though it may not start with a digit.
+		 * 
+		 * @return The index of the '=', or -1 if the line is not a setting.
+		 */
+		private static int settingNameEnd(final CharSequence line, final int end) {
+			for (int i = 0; i < end; i++) {
+				final char c = line.charAt(i);
+				if (c == '=') {
+					return (i > 0) ? i : -1;
+				}
+				final boolean nameChar = ((c == '$' && i == 0) || c == '_' || c == '-'
+						|| (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z'));
+				if (!nameChar && (i == 0 || c < '0' || c > '9')) {
+					return -1;
+				}
+			}
+			return -1;
+		}
+	}
 	
 	private enum ReadMode {
 		CORE,
@@ -31,44 +278,75 @@ class Settings {
 		OPERATORS
 	}
 	
-	private Map<String, String> currentModuleSettings;
+	private boolean compactScheduled = false;
+	
+	private double compactRatio = 0;
+	
+	private boolean dirty = false;
 	
-	private List<String> enabledModules;
+	private volatile List<String> enabledModules;
 	
-	private Map<String, Map<String, String>> moduleSettings;
+	private volatile ConcurrentMap<String, ConcurrentMap<String, String>> moduleSettings;
 	
-	private Set<String> operators;
+	private final File journalFile;
+	
+	private FileOutputStream journalOut = null;
+	
+	private final List<String> journalPending = new ArrayList<String>();
+	
+	private long journalSize = 0;
+	
+	private boolean journaling = false;
+	
+	private volatile Set<String> operators;
+	
+	private int pendingChanges = 0;
 	
 	private final String rcfile;
 	
-	private ReadMode section = ReadMode.NONE;
+	private long snapshotSize = 0;
 	
 	private boolean successfulLoad;
 	
 	private final boolean writeOnChange;
 	
+	private boolean writeBehind = false;
+	
+	private long writeBehindDelay = 0;
+	
+	private int writeBehindMaxChanges = 0;
+	
+	private ScheduledExecutorService writer = null;
+	
+	private boolean writeScheduled = false;
+	
+	private final Object fileLock = new Object();
+	
 	public Settings(final String rcfile, final boolean writeOnChange) {
-		moduleSettings = new HashMap<String, Map<String, String>>();
-		operators = new HashSet<String>();
-		enabledModules = new ArrayList<String>();
+		moduleSettings = newSections();
+		operators = newOperators();
+		enabledModules = new CopyOnWriteArrayList<String>();
 		this.rcfile = rcfile;
 		this.writeOnChange = writeOnChange;
+		journalFile = new File(rcfile + ".journal");
 	}
 	
 	/**
 	 * Clears all existing settings.
 	 */
-	public void clear() {
-		moduleSettings = new HashMap<String, Map<String, String>>();
-		operators = new HashSet<String>();
-		enabledModules = new ArrayList<String>();
+	public synchronized void clear() {
+		moduleSettings = newSections();
+		operators = newOperators();
+		enabledModules = new CopyOnWriteArrayList<String>();
 	}
 	
 	/**
-	 * Returns all the settings for a module. The view is not editable.
+	 * Returns all the settings for a module. The view is not editable, but
+	 * shows changes made after it is returned.
 	 * 
 	 * @return The settings.
 	 */
+	@Override
 	public Map<String, String> getAllModuleSettings(String name) {
 		Map<String, String> sets = moduleSettings.get(name.toUpperCase());
 		if (sets != null) {
@@ -83,6 +361,7 @@ class Settings {
 	 * The returned list is immutable; attempting to modify will result in an
 	 * exception being thrown.
 	 */
+	@Override
 	public List<String> getEnabledModules() {
 		return Collections.unmodifiableList(enabledModules);
 	}
@@ -95,15 +374,22 @@ class Settings {
 	 * @return The value of the setting, or null if the mod or its setting does
 	 * not exist.
 	 */
+	@Override
 	public String getModuleSetting(final String mod, final String setting) {
-		if (!moduleSettings.containsKey(mod.toUpperCase())) {
+		final Map<String, String> sets = moduleSettings.get(mod.toUpperCase());
+		if (sets == null) {
 			return null;
 		} else {
-			return moduleSettings.get(mod.toUpperCase()).get(
-					setting.toUpperCase());
+			return sets.get(setting.toUpperCase());
 		}
 	}
 	
+	@Override
+	public Set<String> getModuleNames() {
+		return Collections.unmodifiableSet(moduleSettings.keySet());
+	}
+	
+	@Override
 	public char[] getModuleSettingChar(final String mod, final String setting) {
 		return getModuleSetting(mod, setting).toCharArray();
 	}
@@ -112,42 +398,396 @@ class Settings {
 	 * Gets the set of operators for the bot. The returned set is immutable;
 	 * attempting to modify will result in an exception being thrown.
 	 */
+	@Override
 	public Set<String> getOperators() {
 		return Collections.unmodifiableSet(operators);
 	}
 	
 	/**
 	 * Reads the settings in the RC File. The current settings are cleared and
-	 * replaced with those read from the file.
+	 * replaced with those read from the file, followed by any changes recorded
+	 * in the journal.
 	 * 
 	 * @throws FileNotFoundException If the RC file does not exist.
 	 * @throws IOException
 	 */
+	@Override
 	public void read() throws FileNotFoundException, IOException {
-		clear();
-		section = ReadMode.NONE;
-		String line = null;
-		successfulLoad = true;
-		BufferedReader br = null;
+		synchronized (fileLock) {
+			// don't lose changes that are still waiting to be written
+			flush();
+			synchronized (this) {
+				readFile();
+			}
+		}
+	}
+	
+	/**
+	 * Turns on write-behind mode. Changes are written a fixed time after the
+	 * first unwritten change is made, or as soon as a number of them have been
+	 * made, whichever comes first. A shutdown hook is also installed to write
+	 * any remaining changes when the JVM exits. This has no effect if the
+	 * settings were not created to write on change.
+	 * 
+	 * @param delay The number of milliseconds to wait before writing.
+	 * @param maxChanges The number of changes that causes an immediate write.
+	 */
+	public synchronized void enableWriteBehind(final long delay,
+			final int maxChanges) {
+		writeBehindDelay = delay;
+		writeBehindMaxChanges = maxChanges;
+		if (writeOnChange) {
+			writeBehind = true;
+			startWriter();
+		}
+	}
+	
+	/**
+	 * Turns on journal mode. Changes are appended to the journal instead of
+	 * rewriting the RC file, and the RC file is only rewritten when the
+	 * journal becomes larger than the given fraction of it. This has no
+	 * effect if the settings were not created to write on change.
+	 * 
+	 * @param ratio The size of the journal, relative to the size of the RC
+	 * file, at which the two are compacted.
+	 * @throws IOException If changes that were waiting to be written could
+	 * not be written.
+	 */
+	public void enableJournal(final double ratio) throws IOException {
+		if (!writeOnChange) {
+			return;
+		}
+		synchronized (fileLock) {
+			// anything not yet written must go into the file, since there are
+			// no journal records for it
+			flush();
+			synchronized (this) {
+				compactRatio = ratio;
+				journaling = true;
+				startWriter();
+			}
+		}
+	}
+	
+	/**
+	 * Writes any changes that have not been written yet.
+	 * 
+	 * @throws IOException If the file could not be written. The changes are
+	 * kept and written on the next attempt.
+	 */
+	@Override
+	public void flush() throws IOException {
+		synchronized (fileLock) {
+			final boolean journal;
+			synchronized (this) {
+				if (!dirty) {
+					return;
+				}
+				journal = journaling;
+			}
+			if (journal) {
+				appendJournal();
+			} else {
+				writeSnapshot();
+			}
+		}
+	}
+	
+	/**
+	 * Writes any remaining changes and stops the background writer thread.
+	 */
+	@Override
+	public void shutdown() {
+		final ScheduledExecutorService w;
+		synchronized (this) {
+			w = writer;
+			writer = null;
+		}
+		if (w != null) {
+			w.shutdown();
+		}
+		flushQuietly();
+		synchronized (fileLock) {
+			closeJournal();
+		}
+	}
+	
+	/**
+	 * Appends a record of a change to the list of records waiting to be
+	 * written to the journal. Must be called while holding the lock on this
+	 * object.
+	 * 
+	 * @param fields The fields of the record.
+	 */
+	private void journal(final String... fields) {
+		if (journaling) {
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < fields.length; i++) {
+				if (i > 0) {
+					sb.append('\t');
+				}
+				sb.append(fields[i] == null ? "" : fields[i]);
+			}
+			sb.append('\n');
+			journalPending.add(sb.toString());
+		}
+	}
+	
+	/**
+	 * Writes the records that are waiting to the journal and forces them to
+	 * disk. Once the journal has grown large enough, a compaction is
+	 * scheduled. Must be called while holding the file lock.
+	 * 
+	 * @throws IOException If the journal could not be written. The records
+	 * are kept and written on the next attempt.
+	 */
+	private void appendJournal() throws IOException {
+		writeJournal();
+		final long limit = Math.max(MIN_COMPACT_SIZE,
+				(long) (snapshotSize * compactRatio));
+		synchronized (this) {
+			if (journalSize > limit && !compactScheduled && writer != null) {
+				compactScheduled = true;
+				writer.execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						synchronized (Settings.this) {
+							compactScheduled = false;
+						}
+						try {
+							writeSnapshot();
+						} catch (final IOException e) {
+							e.printStackTrace();
+						}
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * Writes the records that are waiting to the journal and forces them to
+	 * disk. A new journal is given the permissions of the RC file, since it
+	 * holds the same settings. Must be called while holding the file lock.
+	 * 
+	 * @throws IOException If the journal could not be written. The records
+	 * are kept and written on the next attempt.
+	 */
+	private void writeJournal() throws IOException {
+		final List<String> records;
+		synchronized (this) {
+			records = new ArrayList<String>(journalPending);
+			journalPending.clear();
+			dirty = false;
+			pendingChanges = 0;
+		}
+		if (records.isEmpty()) {
+			return;
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (final String r : records) {
+			sb.append(r);
+		}
+		final byte[] data = sb.toString().getBytes(UTF8);
 		try {
-			br = new BufferedReader(new FileReader(rcfile));
-			while ((line = br.readLine()) != null) {
-				line = line.replaceAll("#.*", "");
-				if (!line.trim().equals("")) {
-					processLine(line);
+			if (journalOut == null) {
+				if (!journalFile.exists()) {
+					FilePermissions.createPrivate(journalFile);
+					FilePermissions.copy(new File(rcfile), journalFile);
 				}
+				journalOut = new FileOutputStream(journalFile, true);
+			}
+			journalOut.write(data);
+			journalOut.getFD().sync();
+		} catch (final IOException e) {
+			closeJournal();
+			synchronized (this) {
+				journalPending.addAll(0, records);
+				dirty = true;
 			}
-		} catch (final FileNotFoundException e) {
-			successfulLoad = false;
 			throw e;
+		}
+		journalSize += data.length;
+	}
+	
+	/**
+	 * Closes the journal, if it is open.
+	 */
+	private void closeJournal() {
+		if (journalOut != null) {
+			try {
+				journalOut.close();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+			journalOut = null;
+		}
+	}
+	
+	/**
+	 * Applies the records in the journal to the settings that were read from
+	 * the RC file. A record that was only partly written when the bot stopped
+	 * is discarded and cut off the end of the journal, so that it does not
+	 * run into the records appended after it. Must be called while holding
+	 * the file lock and the lock on this object.
+	 * 
+	 * @throws IOException If the journal could not be read.
+	 */
+	private void replayJournal(
+			final ConcurrentMap<String, ConcurrentMap<String, String>> sections,
+			final Set<String> ops, final List<String> modules)
+			throws IOException {
+		journalSize = 0;
+		if (!journalFile.exists()) {
+			return;
+		}
+		closeJournal();
+		final byte[] data = Files.readAllBytes(journalFile.toPath());
+		int end = data.length;
+		while (end > 0 && data[end - 1] != '\n') {
+			end--;
+		}
+		if (end < data.length) {
+			final FileChannel ch = FileChannel.open(journalFile.toPath(),
+					StandardOpenOption.WRITE);
+			try {
+				ch.truncate(end);
+				ch.force(true);
+			} finally {
+				ch.close();
+			}
+		}
+		journalSize = end;
+		for (final String record : new String(data, 0, end, UTF8).split("\n")) {
+			applyRecord(record.split("\t", 4), sections, ops, modules);
+		}
+	}
+	
+	/**
+	 * Applies a single journal record. Applying a record more than once has
+	 * the same result as applying it once, so a journal that was already
+	 * compacted into the RC file can safely be replayed again, as long as it
+	 * holds every flushed change that the RC file does.
+	 * 
+	 * @param fields The fields of the record.
+	 * @param sections The module settings to apply it to.
+	 * @param ops The operators to apply it to.
+	 * @param modules The enabled modules to apply it to.
+	 */
+	private static void applyRecord(final String[] fields,
+			final ConcurrentMap<String, ConcurrentMap<String, String>> sections,
+			final Set<String> ops, final List<String> modules) {
+		final String type = fields[0];
+		if (type.equals("SET") && fields.length == 4) {
+			section(sections, fields[1]).put(fields[2], fields[3]);
+		} else if (type.equals("UNSET") && fields.length == 3) {
+			section(sections, fields[1]).remove(fields[2]);
+		} else if (type.equals("ENABLE") && fields.length == 2) {
+			if (!modules.contains(fields[1])) {
+				modules.add(fields[1]);
+			}
+		} else if (type.equals("DISABLE") && fields.length == 2) {
+			modules.remove(fields[1]);
+		} else if (type.equals("OP") && fields.length == 2) {
+			ops.add(fields[1]);
+		} else if (type.equals("DEOP") && fields.length == 2) {
+			ops.remove(fields[1]);
+		}
+	}
+	
+	/**
+	 * Gets the settings for a module, creating them if they do not exist.
+	 * 
+	 * @param sections The settings of all modules.
+	 * @param mod The name of the module, in upper case.
+	 * @return The settings for the module.
+	 */
+	private static ConcurrentMap<String, String> section(
+			final ConcurrentMap<String, ConcurrentMap<String, String>> sections,
+			final String mod) {
+		ConcurrentMap<String, String> sets = sections.get(mod);
+		if (sets == null) {
+			sets = new OrderedConcurrentMap<String, String>();
+			final ConcurrentMap<String, String> old = sections.putIfAbsent(mod,
+					sets);
+			if (old != null) {
+				sets = old;
+			}
+		}
+		return sets;
+	}
+	
+	private static ConcurrentMap<String, ConcurrentMap<String, String>> newSections() {
+		return new ConcurrentHashMap<String, ConcurrentMap<String, String>>();
+	}
+	
+	private static Set<String> newOperators() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	}
+	
+	private void readFile() throws FileNotFoundException, IOException {
+		final Loader loader = new Loader();
+		successfulLoad = true;
+		try {
+			loader.load(new File(rcfile));
 		} catch (final IOException e) {
 			successfulLoad = false;
 			throw e;
-		} finally {
-			if (br != null) {
-				br.close();
+		}
+		snapshotSize = new File(rcfile).length();
+		replayJournal(loader.sections, loader.operators, loader.modules);
+		// publish everything at once so readers never see a partial load
+		moduleSettings = loader.sections;
+		operators = loader.operators;
+		enabledModules = loader.modules;
+	}
+	
+	/**
+	 * Removes a setting from a module.
+	 * 
+	 * @param mod The name of the module.
+	 * @param setting The setting to remove.
+	 */
+	@Override
+	public void removeModuleSetting(final String mod, final String setting) {
+		synchronized (this) {
+			final Map<String, String> sets = moduleSettings.get(mod.toUpperCase());
+			if (sets == null || sets.remove(setting.toUpperCase()) == null) {
+				return;
 			}
+			journal("UNSET", mod.toUpperCase(), setting.toUpperCase());
 		}
+		changed();
+	}
+	
+	/**
+	 * Removes several settings from a module. The file is only written once
+	 * for all of them.
+	 * 
+	 * @param mod The name of the module.
+	 * @param settings The settings to remove.
+	 */
+	@Override
+	public void removeModuleSettings(final String mod,
+			final Collection<String> settings) {
+		synchronized (this) {
+			final Map<String, String> sets = moduleSettings.get(mod.toUpperCase());
+			if (sets == null) {
+				return;
+			}
+			boolean removed = false;
+			for (final String setting : settings) {
+				if (sets.remove(setting.toUpperCase()) != null) {
+					journal("UNSET", mod.toUpperCase(), setting.toUpperCase());
+					removed = true;
+				}
+			}
+			if (!removed) {
+				return;
+			}
+		}
+		changed();
 	}
 	
 	/**
@@ -157,19 +797,17 @@ class Settings {
 	 * @param module The name of the module to add.
 	 * @param enable Whether it is enabled.
 	 */
+	@Override
 	public void setModuleEnabled(final String module, final boolean enabled) {
-		if (enabled) {
-			enabledModules.add(module);
-		} else {
-			enabledModules.remove(module);
-		}
-		if (writeOnChange) {
-			try {
-				write();
-			} catch (final IOException e) {
-				e.printStackTrace();
+		synchronized (this) {
+			if (enabled) {
+				enabledModules.add(module);
+			} else {
+				enabledModules.remove(module);
 			}
+			journal(enabled ? "ENABLE" : "DISABLE", module);
 		}
+		changed();
 	}
 	
 	/**
@@ -179,22 +817,20 @@ class Settings {
 	 * @param setting The setting to set.
 	 * @param value What to set the value to.
 	 */
+	@Override
 	public void setModuleSetting(final String mod, final String setting,
 			final String value) {
-		if (!moduleSettings.containsKey(mod.toUpperCase())) {
-			moduleSettings
-					.put(mod.toUpperCase(), new LinkedHashMap<String, String>());
-		}
-		moduleSettings.get(mod.toUpperCase()).put(setting.toUpperCase(), value);
-		if (writeOnChange) {
-			try {
-				write();
-			} catch (final IOException e) {
-				e.printStackTrace();
-			}
+		// the setting is stored and recorded under the same lock so that the
+		// journal has changes to it in the same order as the map
+		synchronized (this) {
+			section(moduleSettings, mod.toUpperCase()).put(
+					setting.toUpperCase(), value == null ? "" : value);
+			journal("SET", mod.toUpperCase(), setting.toUpperCase(), value);
 		}
+		changed();
 	}
 	
+	@Override
 	public void setModuleSetting(final String mod, final String setting, final char[] value) {
 		// TODO: insecure. We should not be holding the password in memory
 		setModuleSetting(mod, setting, new String(value));
@@ -207,35 +843,225 @@ class Settings {
 	 * @param nick The nickname of the user whose status is being set.
 	 * @param isOp Whether the nick has op.
 	 */
+	@Override
 	public void setNickOp(final String nick, final boolean isOp) {
-		if (isOp) {
-			operators.add(nick);
-		} else {
-			operators.remove(nick);
-		}
-		if (writeOnChange) {
-			try {
-				write();
-			} catch (final IOException e) {
-				e.printStackTrace();
+		synchronized (this) {
+			if (isOp) {
+				operators.add(nick);
+			} else {
+				operators.remove(nick);
 			}
+			journal(isOp ? "OP" : "DEOP", nick);
 		}
+		changed();
 	}
 	
 	/**
 	 * Checks whether the last load was successful.
 	 */
+	@Override
 	public boolean successfullyLoaded() {
 		return successfulLoad;
 	}
 	
 	/**
-	 * Writes the current settings to the given RC file.
+	 * Writes the current settings to the given RC file. In journal mode, this
+	 * also empties the journal.
 	 * 
 	 * @throws IOException
 	 */
 	public void write() throws IOException {
-		final BufferedWriter bw = new BufferedWriter(new FileWriter(rcfile));
+		writeSnapshot();
+	}
+	
+	/**
+	 * Records that a setting was changed, and writes the settings or schedules
+	 * them to be written as needed.
+	 */
+	private void changed() {
+		if (!writeOnChange) {
+			return;
+		}
+		boolean writeNow = false;
+		synchronized (this) {
+			dirty = true;
+			pendingChanges++;
+			if (!writeBehind || writer == null) {
+				writeNow = true;
+			} else if (pendingChanges >= writeBehindMaxChanges) {
+				writer.execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						flushQuietly();
+					}
+				});
+			} else if (!writeScheduled) {
+				writeScheduled = true;
+				writer.schedule(new Runnable() {
+					
+					@Override
+					public void run() {
+						synchronized (Settings.this) {
+							writeScheduled = false;
+						}
+						flushQuietly();
+					}
+				}, writeBehindDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (writeNow) {
+			flushQuietly();
+		}
+	}
+	
+	/**
+	 * Creates the background writer thread if it does not yet exist, along
+	 * with a shutdown hook that writes any remaining changes. Must be called
+	 * while holding the lock on this object.
+	 */
+	private void startWriter() {
+		if (writer != null) {
+			return;
+		}
+		writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "SettingsWriter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				flushQuietly();
+			}
+		}, "SettingsShutdownFlush"));
+	}
+	
+	/**
+	 * Replaces the RC file with the current settings and removes the journal.
+	 * Records that are waiting are first written to the old journal, so that
+	 * it holds every change in the new file that has been flushed. If the bot
+	 * stops before the old journal is removed, replaying it over the new file
+	 * then only repeats changes in the order that they were made. Records
+	 * that are made while the file is being written are kept for the new
+	 * journal.
+	 * 
+	 * @throws IOException If the file could not be written.
+	 */
+	private void writeSnapshot() throws IOException {
+		synchronized (fileLock) {
+			writeJournal();
+			synchronized (this) {
+				dirty = false;
+				pendingChanges = 0;
+			}
+			// changes made while rendering may or may not be included, so
+			// they are kept for the new journal
+			final String contents = render();
+			try {
+				snapshotSize = writeFile(contents);
+			} catch (final IOException e) {
+				synchronized (this) {
+					dirty = true;
+				}
+				throw e;
+			}
+			// a crash before this point only means the journal is replayed
+			// over a file that already contains it; any setting that it
+			// changes ends up with the last value that was flushed
+			closeJournal();
+			Files.deleteIfExists(journalFile.toPath());
+			journalSize = 0;
+		}
+	}
+	
+	/**
+	 * Writes any changes that have not been written yet, printing any error
+	 * instead of throwing it.
+	 */
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Creates the contents of the RC file from the current settings. Changes
+	 * made while this runs may or may not be included.
+	 * 
+	 * @return The contents.
+	 */
+	private String render() {
+		final StringWriter out = new StringWriter();
+		final BufferedWriter bw = new BufferedWriter(out);
+		try {
+			writeAll(bw);
+			bw.close();
+		} catch (final IOException e) {
+			// cannot happen when writing to a string
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+	
+	/**
+	 * Replaces the RC file with new contents. The contents are written to a
+	 * temporary file and forced to disk, which then replaces the RC file in
+	 * one step, so the RC file is never left partly written. The temporary
+	 * file is only readable by its owner until it is given the permissions of
+	 * the RC file, since the RC file can hold passwords.
+	 * 
+	 * @param contents The new contents.
+	 * @return The size of the new file, in bytes.
+	 * @throws IOException If the file could not be written.
+	 */
+	private long writeFile(final String contents) throws IOException {
+		final File target = new File(rcfile).getAbsoluteFile();
+		final File temp = new File(target.getPath() + ".tmp");
+		final byte[] data = contents.getBytes(UTF8);
+		FilePermissions.createPrivate(temp);
+		final FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			fos.write(data);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		FilePermissions.copy(target, temp);
+		final Path from = temp.toPath();
+		final Path to = target.toPath();
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+		}
+		// make the rename itself durable; not every platform allows this
+		final Path dir = to.getParent();
+		if (dir != null) {
+			try {
+				final FileChannel ch = FileChannel.open(dir,
+						StandardOpenOption.READ);
+				try {
+					ch.force(true);
+				} finally {
+					ch.close();
+				}
+			} catch (final IOException e) {
+				// not supported here; the file itself is already on disk
+			}
+		}
+		return data.length;
+	}
+	
+	private void writeAll(final BufferedWriter bw) throws IOException {
 		bw.write("# SmartBot run control file\n");
 		bw.write("#\n");
 		bw.write("# Warning: do not edit this file while SmartBot is running.\n");
@@ -245,28 +1071,6 @@ class Settings {
 		writeModules(bw);
 		writeOperators(bw);
 		writeSettings(bw);
-		bw.close();
-	}
-	
-	private void changeSection(final String header) {
-		if (header.equalsIgnoreCase("OPERATORS")) {
-			section = ReadMode.OPERATORS;
-		} else if (header.equalsIgnoreCase("MODULES")) {
-			section = ReadMode.MODULES;
-		} else if (header.toUpperCase().equalsIgnoreCase("CORE")) {
-			section = ReadMode.CORE;
-			currentModuleSettings = new LinkedHashMap<String, String>();
-			moduleSettings
-					.put(SmartBot.CORE_MODULE_NAME, currentModuleSettings);
-		} else if (header.toUpperCase().startsWith("MODULESETTINGS")) {
-			section = ReadMode.MODULE_SETTINGS;
-			final String modName = header.substring("MODULESETTINGS".length())
-					.toUpperCase();
-			currentModuleSettings = new HashMap<String, String>();
-			moduleSettings.put(modName, currentModuleSettings);
-		} else {
-			section = ReadMode.NONE;
-		}
 	}
 	
 	private String compose(final String setting, String value) {
@@ -276,41 +1080,6 @@ class Settings {
 		return setting + "=" + value;
 	}
 	
-	private String[] parse(final String settingLine) {
-		final String[] parts = settingLine.split("=", 2);
-		parts[0] = parts[0].toUpperCase();
-		return parts;
-	}
-	
-	private void processLine(String line) {
-		if (line.matches("\\[[^]]+]")) {
-			changeSection(line.substring(1, line.length() - 1));
-		} else {
-			switch (section) {
-				case MODULES:
-					line = line.trim();
-					if (line.matches("[\\$A-Za-z_][0-9A-Za-z_]*")) {
-						enabledModules.add(line);
-					}
-					break;
-				case OPERATORS:
-					line = line.trim();
-					operators.add(line);
-					break;
-				case MODULE_SETTINGS:
-				case CORE:
-					if (line.matches("[\\$A-Za-z_-][0-9A-Za-z_-]*=.*")) {
-						final String[] setting = parse(line.replaceAll("^\\s+",
-								""));
-						currentModuleSettings.put(setting[0], setting[1]);
-					}
-					break;
-				case NONE:
-					break;
-			}
-		}
-	}
-	
 	private void writeCore(final BufferedWriter bw) throws IOException {
 		bw.write("[Core]");
 		bw.newLine();
@@ -0,0 +1,147 @@
+package com.dekarrin.bots;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores the persistent settings of a bot and its modules. Module and setting
+ * names are not case-sensitive. Implementations must allow settings to be
+ * read and changed from any thread.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+public interface SettingsStore {
+	
+	/**
+	 * Writes any changes that have not been written yet.
+	 * 
+	 * @throws IOException If the changes could not be written.
+	 */
+	public void flush() throws IOException;
+	
+	/**
+	 * Returns all the settings for a module. The map is not editable.
+	 * 
+	 * @param name The name of the module.
+	 * @return The settings, or null if the module has none.
+	 */
+	public Map<String, String> getAllModuleSettings(String name);
+	
+	/**
+	 * Gets the list of enabled modules, in the order that they were enabled.
+	 * The list is not editable.
+	 * 
+	 * @return The names of the enabled modules.
+	 */
+	public List<String> getEnabledModules();
+	
+	/**
+	 * Gets the names of all modules that have settings, in upper case.
+	 * 
+	 * @return The names.
+	 */
+	public Set<String> getModuleNames();
+	
+	/**
+	 * Gets a setting for a module.
+	 * 
+	 * @param mod The name of the module.
+	 * @param setting The setting to get.
+	 * @return The value of the setting, or null if the mod or its setting does
+	 * not exist.
+	 */
+	public String getModuleSetting(String mod, String setting);
+	
+	/**
+	 * Gets a setting for a module as an array of characters.
+	 * 
+	 * @param mod The name of the module.
+	 * @param setting The setting to get.
+	 * @return The value of the setting.
+	 */
+	public char[] getModuleSettingChar(String mod, String setting);
+	
+	/**
+	 * Gets the set of operators for the bot. The set is not editable.
+	 * 
+	 * @return The nicks of the operators.
+	 */
+	public Set<String> getOperators();
+	
+	/**
+	 * Loads the settings from wherever they are kept, replacing those that
+	 * are currently loaded.
+	 * 
+	 * @throws IOException If the settings could not be loaded.
+	 */
+	public void read() throws IOException;
+	
+	/**
+	 * Removes a setting from a module. Nothing happens if the setting does not
+	 * exist.
+	 * 
+	 * @param mod The name of the module.
+	 * @param setting The setting to remove.
+	 */
+	public void removeModuleSetting(String mod, String setting);
+	
+	/**
+	 * Removes several settings from a module as a single change, so that the
+	 * store is only written once. Settings that do not exist are skipped.
+	 * 
+	 * @param mod The name of the module.
+	 * @param settings The settings to remove.
+	 */
+	public void removeModuleSettings(String mod, Collection<String> settings);
+	
+	/**
+	 * Sets whether a module is enabled. If it is, it is added to the end of the
+	 * enabled list. If it is not, it is removed from the list.
+	 * 
+	 * @param module The name of the module.
+	 * @param enabled Whether it is enabled.
+	 */
+	public void setModuleEnabled(String module, boolean enabled);
+	
+	/**
+	 * Sets a value for a module setting.
+	 * 
+	 * @param mod The name of the module.
+	 * @param setting The setting to set.
+	 * @param value What to set the value to.
+	 */
+	public void setModuleSetting(String mod, String setting, String value);
+	
+	/**
+	 * Sets a value for a module setting from an array of characters.
+	 * 
+	 * @param mod The name of the module.
+	 * @param setting The setting to set.
+	 * @param value What to set the value to.
+	 */
+	public void setModuleSetting(String mod, String setting, char[] value);
+	
+	/**
+	 * Sets whether a nick has operator status.
+	 * 
+	 * @param nick The nickname of the user whose status is being set.
+	 * @param isOp Whether the nick has op.
+	 */
+	public void setNickOp(String nick, boolean isOp);
+	
+	/**
+	 * Writes any remaining changes and releases any resources held by the
+	 * store. The store must not be used afterwards.
+	 */
+	public void shutdown();
+	
+	/**
+	 * Checks whether the last load found existing settings.
+	 * 
+	 * @return Whether it did.
+	 */
+	public boolean successfullyLoaded();
+}
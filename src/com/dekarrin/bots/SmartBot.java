@@ -1,18 +1,29 @@
 package com.dekarrin.bots;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jibble.pircbot.DccChat;
 import org.jibble.pircbot.DccFileTransfer;
@@ -49,25 +60,153 @@ public class SmartBot extends PircBot {
 	 */
 	public static final String VERSION = "NDSU ACM SmartBot %s - PircBot v1.5.0";
 	
-	private volatile boolean awaitingNickChange = false;
+	/**
+	 * Default number of worker threads kept alive for executing commands.
+	 */
+	public static final int DEFAULT_WORKER_CORE_SIZE = 2;
 	
-	private volatile boolean awaitingNickServGhost = false;
+	/**
+	 * Default maximum number of worker threads for executing commands.
+	 */
+	public static final int DEFAULT_WORKER_MAX_SIZE = 8;
 	
-	private volatile int awaitingResponseEnd = -1;
+	/**
+	 * Default number of commands that may wait for a free worker thread
+	 * before new commands are rejected.
+	 */
+	public static final int DEFAULT_WORKER_QUEUE_SIZE = 64;
 	
-	private volatile int awaitingResponseStart = -1;
+	/**
+	 * Default number of threads that deliver events to modules.
+	 */
+	public static final int DEFAULT_EVENT_THREADS = 1;
 	
-	private volatile boolean awaitingResponseXfer = false;
+	/**
+	 * Default number of events that may wait for delivery to modules before
+	 * new events are dropped.
+	 */
+	public static final int DEFAULT_EVENT_QUEUE_SIZE = 1000;
 	
-	private volatile boolean awaitingServerResponse = false;
+	/**
+	 * Default number of seconds that a user's NickServ account is remembered.
+	 */
+	public static final int DEFAULT_ACCOUNT_CACHE_TTL = 300;
+	
+	/**
+	 * Default number of responses that may be sent at once before they are
+	 * spread out by the message delay.
+	 */
+	public static final int DEFAULT_FLOOD_BURST = 5;
+	
+	/**
+	 * Default number of milliseconds it takes to earn back the right to send
+	 * one more line once a burst has been used up.
+	 */
+	public static final int DEFAULT_MESSAGE_DELAY = 1000;
+	
+	/**
+	 * Default number of seconds that a message sent by a module on its own,
+	 * rather than in reply to a command, may wait to be sent before it is
+	 * thrown away.
+	 */
+	public static final int DEFAULT_AMBIENT_MAX_AGE = 30;
+	
+	/**
+	 * Default number of milliseconds to wait for the server to answer a query.
+	 */
+	public static final int DEFAULT_SERVER_QUERY_TIMEOUT = 10000;
+	
+	/**
+	 * Default number of milliseconds that a change to the settings may wait
+	 * before it is written to the run control file. The default of 0 writes
+	 * every change before the call that made it returns; write-behind must be
+	 * asked for with the settings_write_delay setting.
+	 */
+	public static final int DEFAULT_SETTINGS_WRITE_DELAY = 0;
+	
+	/**
+	 * Default number of unwritten changes to the settings that cause them to
+	 * be written immediately.
+	 */
+	public static final int DEFAULT_SETTINGS_WRITE_BATCH = 100;
+	
+	/**
+	 * Default size of the settings journal, as a percentage of the size of the
+	 * run control file, at which the two are compacted.
+	 */
+	public static final int DEFAULT_SETTINGS_COMPACT_PERCENT = 100;
+	
+	/**
+	 * Number of bytes left free in each response for the hostname in the
+	 * prefix that the server adds when relaying it. This is the longest
+	 * hostname allowed.
+	 */
+	private static final int HOSTNAME_RESERVE = 63;
+	
+	/**
+	 * Largest number of nicks that are put in a single WHOIS when filling the
+	 * account cache on a server without WHOX.
+	 */
+	private static final int WHOIS_BATCH_SIZE = 10;
+	
+	/**
+	 * Largest number of WHOIS commands that are sent to fill the account
+	 * cache on a server without WHOX. Channels that would need more are not
+	 * filled at all, since the WHOIS commands would hold up everything else
+	 * that the bot sends.
+	 */
+	private static final int WHOIS_PREFILL_LIMIT = 10;
+	
+	/**
+	 * Query type sent with WHOX requests so that the replies to them can be
+	 * told apart from replies to WHOX requests made by modules.
+	 */
+	private static final String WHOX_TOKEN = "613";
+	
+	/**
+	 * Number of seconds that an idle worker thread is kept alive.
+	 */
+	private static final long WORKER_KEEP_ALIVE = 60;
+	
+	private final AccountCache accountCache = new AccountCache(
+			SmartBot.DEFAULT_ACCOUNT_CACHE_TTL * 1000L);
+	
+	private volatile boolean awaitingNickChange = false;
+	
+	private volatile boolean awaitingNickServGhost = false;
+	
+	private volatile boolean awaitingUserList = false;
+	
+	private volatile ExecutorService virtualExecutor = null;
 	
 	private String welcomeMsg;
 	
 	private String chan;
 	
+	private final CapNegotiator capNegotiator = new CapNegotiator();
+	
+	private volatile File dataDirectory = new File(System.getProperty("user.home"));
+	
 	private volatile boolean cleanDc = false;
 	
-	private Map<String, Module> enabledModules;
+	private EventDispatcher eventDispatcher;
+	
+	private final TokenBucket floodControl = new TokenBucket(
+			SmartBot.DEFAULT_FLOOD_BURST, SmartBot.DEFAULT_MESSAGE_DELAY);
+	
+	private int eventQueueSize = SmartBot.DEFAULT_EVENT_QUEUE_SIZE;
+	
+	private int eventThreads = SmartBot.DEFAULT_EVENT_THREADS;
+	
+	private final EventDispatcher.SubscriberSource eventSource = new EventDispatcher.SubscriberSource() {
+		
+		@Override
+		public Module[] getSubscribers(final ModuleEvent event) {
+			return registry.getSubscribers().get(event);
+		}
+	};
+	
+	private volatile ThreadPoolExecutor commandExecutor;
 	
 	private volatile boolean loggedIn = false;
 	
@@ -79,8 +218,6 @@ public class SmartBot extends PircBot {
 	
 	private String moduleClassPath;
 	
-	private Map<String, Module> modules;
-	
 	private char[] nickPass = null;
 	
 	private volatile String oldNick = null;
@@ -91,20 +228,60 @@ public class SmartBot extends PircBot {
 	
 	private char prependChar;
 	
-	private volatile List<Integer> serverResponseCodes = null;
+	private volatile RandomSource random = new RandomSource();
+	
+	/**
+	 * Whether the server has welcomed the bot on the current connection.
+	 */
+	private volatile boolean registered = false;
+	
+	private volatile ModuleRegistry registry;
+	
+	private final ThreadLocal<OutboundQueue.Priority> responsePriority = new ThreadLocal<OutboundQueue.Priority>() {
+		
+		@Override
+		protected OutboundQueue.Priority initialValue() {
+			if (EventDispatcher.isDispatchThread()) {
+				return OutboundQueue.Priority.AMBIENT;
+			} else {
+				return OutboundQueue.Priority.REPLY;
+			}
+		}
+	};
+	
+	private final OutboundQueue responses = new OutboundQueue(
+			SmartBot.DEFAULT_AMBIENT_MAX_AGE * 1000L);
+	
+	private Thread responseSender;
+	
+	private final Object registryLock = new Object();
+	
+	private final ServerQueryCorrelator serverQueries = new ServerQueryCorrelator();
 	
-	private volatile List<String> serverResponseData = null;
+	private volatile int serverQueryTimeout = SmartBot.DEFAULT_SERVER_QUERY_TIMEOUT;
 	
 	private String server;
 	
-	private final Settings settings;
+	private final SettingsStore settings;
 	
 	private int timeBetweenReconnects = 15;
 	
 	private boolean trustNickServ = false;
 	
+	private volatile boolean useCapabilities = false;
+	
 	private boolean usePrependChar = false;
 	
+	private volatile int whoisBatchSize = SmartBot.WHOIS_BATCH_SIZE;
+	
+	private volatile boolean whoxSupported = false;
+	
+	private int workerCoreSize = SmartBot.DEFAULT_WORKER_CORE_SIZE;
+	
+	private int workerMaxSize = SmartBot.DEFAULT_WORKER_MAX_SIZE;
+	
+	private int workerQueueSize = SmartBot.DEFAULT_WORKER_QUEUE_SIZE;
+	
 	/**
 	 * Creates a new ACM Bot.
 	 * 
@@ -116,10 +293,26 @@ public class SmartBot extends PircBot {
 	 * none.
 	 */
 	public SmartBot(final String RCFilePath, final Module[] modules) {
+		this(new Settings(RCFilePath, true), modules);
+	}
+	
+	/**
+	 * Creates a new ACM Bot that keeps its settings in the given store.
+	 * 
+	 * @param store The store containing settings for this bot.
+	 * @param modules The modules to initialize this bot with. May be null for
+	 * none.
+	 */
+	public SmartBot(final SettingsStore store, final Module[] modules) {
 		setAutoNickChange(true);
-		settings = new Settings(RCFilePath, true);
+		// everything is paced by the flood control instead
+		setMessageDelay(0);
+		settings = store;
 		ops = new HashSet<String>();
 		initialize(modules);
+		commandExecutor = createCommandExecutor();
+		eventDispatcher = new EventDispatcher(eventThreads, eventQueueSize);
+		startResponseSender();
 	}
 	
 	public void startConsole() {
@@ -172,6 +365,16 @@ public class SmartBot extends PircBot {
 				return SmartBot.this.getIntendedChannel();
 			}
 			
+			@Override
+			public File getDataFile(String name) {
+				return SmartBot.this.getDataFile(name);
+			}
+			
+			@Override
+			public RandomSource getRandom() {
+				return SmartBot.this.getRandom();
+			}
+			
 			@Override
 			public String getNick() {
 				return SmartBot.this.getNick();
@@ -202,7 +405,10 @@ public class SmartBot extends PircBot {
 				SmartBot.this.sendNotAuthorized(recipient, user);
 			}
 		}, settings);
-		modules.put(module.getName().toUpperCase(), module);
+		ModuleEvent.handledBy(module);
+		synchronized (registryLock) {
+			registry = registry.withModule(module, false);
+		}
 	}
 	
 	public void setStartupMessage(String msg) {
@@ -239,6 +445,11 @@ public class SmartBot extends PircBot {
 	 */
 	public void cleanDisconnect(final String reason) {
 		cleanDc = true;
+		try {
+			settings.flush();
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
 		partChannel(getIntendedChannel(), reason);
 	}
 	
@@ -247,14 +458,63 @@ public class SmartBot extends PircBot {
 	 * that are listed but are not currently added to this bot are skipped.
 	 */
 	public void enableModulesFromSettings() {
-		enabledModules = new LinkedHashMap<String, Module>();
-		for (final String module : settings.getEnabledModules()) {
-			if (hasModule(module)) {
-				enabledModules.put(module, getModule(module));
-			}
+		synchronized (registryLock) {
+			registry = registry.withEnabledOnly(settings.getEnabledModules());
 		}
 	}
 	
+	/**
+	 * Gets the number of NickServ account lookups that were answered without
+	 * asking the server.
+	 */
+	public long getAccountCacheHits() {
+		return accountCache.getHits();
+	}
+	
+	/**
+	 * Gets the number of NickServ account lookups that had to ask the server.
+	 */
+	public long getAccountCacheMisses() {
+		return accountCache.getMisses();
+	}
+	
+	/**
+	 * Gets the number of responses that may be sent at once before they are
+	 * spread out by the message delay.
+	 */
+	public int getFloodBurst() {
+		return floodControl.getCapacity();
+	}
+	
+	/**
+	 * Gets the number of responses that could be sent right now without
+	 * waiting. This may be fractional.
+	 */
+	public double getFloodTokens() {
+		return floodControl.getTokens();
+	}
+	
+	/**
+	 * Gets a file in the directory where modules keep their own data. This is
+	 * the user's home directory unless the data_directory setting says
+	 * otherwise.
+	 * 
+	 * @param name The name of the file.
+	 * @return The file.
+	 */
+	public File getDataFile(final String name) {
+		return new File(dataDirectory, name);
+	}
+	
+	/**
+	 * Gets the source of random numbers that modules use.
+	 * 
+	 * @return The random source.
+	 */
+	public RandomSource getRandom() {
+		return random;
+	}
+	
 	/**
 	 * Gets the channel that this bot was designed for.
 	 * 
@@ -306,6 +566,28 @@ public class SmartBot extends PircBot {
 		return timeBetweenReconnects;
 	}
 	
+	/**
+	 * Gets the number of worker threads that are kept alive for executing
+	 * commands.
+	 */
+	public int getWorkerCoreSize() {
+		return workerCoreSize;
+	}
+	
+	/**
+	 * Gets the maximum number of worker threads used for executing commands.
+	 */
+	public int getWorkerMaxSize() {
+		return workerMaxSize;
+	}
+	
+	/**
+	 * Gets the number of commands that may wait for a free worker thread.
+	 */
+	public int getWorkerQueueSize() {
+		return workerQueueSize;
+	}
+	
 	public void setServer(String server) {
 		this.server = server;
 		settings.setModuleSetting(CORE_MODULE_NAME, "server", server);
@@ -355,7 +637,9 @@ public class SmartBot extends PircBot {
 	public void removeModule(final String name) {
 		if (!name.equalsIgnoreCase(SmartBot.CORE_MODULE_NAME)) {
 			setModuleEnabled(name, false);
-			modules.remove(name.toUpperCase());
+			synchronized (registryLock) {
+				registry = registry.withoutModule(name);
+			}
 		}
 	}
 	
@@ -370,9 +654,39 @@ public class SmartBot extends PircBot {
 	}
 	
 	/**
-	 * Sends a command to the server and waits for the result. WARNING: Running
-	 * on the InputThread will cause blocking. WARNING: Not very thread-safe.
-	 * Near-consecutive calls to this method may cause race conditions.
+	 * Sends a query to the server and collects the numeric replies to it. Any
+	 * number of queries may be waiting for replies at once. Replies are matched
+	 * to a query by its target, which the server echoes back as the first
+	 * parameter of each reply. Capture begins with the first reply for the
+	 * target that has the start code or an error code, and ends with the
+	 * first reply that has the end code.
+	 * 
+	 * <p>The returned future fails with a TimeoutException if the end code is
+	 * not received within the time set by the <code>server_query_timeout</code>
+	 * setting, and is cancelled if the bot disconnects first.
+	 * 
+	 * @param cmd The raw command to send.
+	 * @param target The nick or channel that the command is about.
+	 * @param startCode The first expected response code.
+	 * @param endCode The last expected response code. This may be the same as
+	 * startCode to capture only one response.
+	 * @return A future that is completed with the replies.
+	 */
+	public CompletableFuture<ServerResponse> queryServer(final String cmd,
+			final String target, final int startCode, final int endCode) {
+		final CompletableFuture<ServerResponse> future = serverQueries.submit(
+				target, startCode, endCode, serverQueryTimeout);
+		if (!responses.addRaw(cmd, OutboundQueue.Priority.QUERY)) {
+			System.err.println("Warning: response queue is full. Dropping "
+					+ "query " + cmd);
+			future.cancel(false);
+		}
+		return future;
+	}
+	
+	/**
+	 * Sends a command to the server and waits for the result. The target of
+	 * the command is taken to be its last parameter.
 	 * 
 	 * @param cmd The command to execute.
 	 * @param startCode The first expected response code. Responses are captured
@@ -382,73 +696,54 @@ public class SmartBot extends PircBot {
 	 * startCode to capture only one response.
 	 * @param codes A list to store the codes in.
 	 * @param responses A list to store the responses in.
+	 * @deprecated Use {@link #queryServer(String, String, int, int)}, which
+	 * does not block.
 	 */
+	@Deprecated
 	public void sendServerCommand(final String cmd, final int startCode,
 			final int endCode, final List<Integer> codes,
 			final List<String> responses) {
-		try {
-			// EXTREMELY UNSAFE! we should really be setting up a queue if we
-			// want to correctly handle this.
-			// DO NOT RUN ON INPUT THREAD!
-			while (awaitingServerResponse) {
-				Thread.sleep(10);
-			}
-			while (awaitingResponseXfer) {
-				Thread.sleep(10);
-			}
-			awaitingServerResponse = true;
-			awaitingResponseXfer = false;
-			awaitingResponseStart = startCode;
-			awaitingResponseEnd = endCode;
-			serverResponseData = new ArrayList<String>();
-			serverResponseCodes = new ArrayList<Integer>();
-			sendRawLineViaQueue(cmd);
-			// sendRawLineViaQueue will set awaitingServerResponse to false
-			// and awaitingResponseXfer to true when ready to continue
-			while (awaitingServerResponse) {
-				Thread.sleep(10);
-			}
-			for (final Integer i : serverResponseCodes) {
-				codes.add(i);
-			}
-			for (final String s : serverResponseData) {
-				responses.add(s);
-			}
-			awaitingResponseXfer = false;
-		} catch (final InterruptedException e) {
-			e.printStackTrace();
-		} finally {
-			awaitingResponseStart = -1;
-			awaitingResponseEnd = -1;
-			serverResponseData = null;
-			serverResponseCodes = null;
-			awaitingServerResponse = false;
-			awaitingResponseXfer = false;
+		String target = cmd.trim();
+		target = target.substring(target.lastIndexOf(' ') + 1);
+		if (target.startsWith(":")) {
+			target = target.substring(1);
+		}
+		final ServerResponse resp = awaitServerResponse(queryServer(cmd,
+				target, startCode, endCode));
+		if (resp != null) {
+			codes.addAll(resp.getCodes());
+			responses.addAll(resp.getLines());
 		}
 	}
 	
 	/**
-	 * Sets whether a module is enabled.
+	 * Sets whether a module is enabled. The change is atomic; events and
+	 * commands see the module either fully enabled or fully disabled. Nothing
+	 * happens if the module is already in the requested state. The core module
+	 * cannot be disabled.
 	 * 
 	 * @param module The name of the module to disable/enable.
 	 * @param enable Whether to enable the module.
 	 */
 	public void setModuleEnabled(final String module, final boolean enable) {
-		if (enable) {
-			final Module mod = getModule(module);
-			if (mod != null) {
-				enabledModules.put(module.toUpperCase(), mod);
+		final ModuleRegistry old;
+		final ModuleRegistry updated;
+		synchronized (registryLock) {
+			old = registry;
+			updated = old.withEnabled(module, enable);
+			registry = updated;
+			if (updated != old) {
+				settings.setModuleEnabled(module, enable);
+			}
+		}
+		if (updated != old) {
+			final Module mod = old.getModule(module);
+			if (enable) {
 				mod.onModuleEnabled();
-			}
-		} else {
-			if (!module.equalsIgnoreCase(SmartBot.CORE_MODULE_NAME)) {
-				final Module m = enabledModules.remove(module.toUpperCase());
-				if (m != null) {
-					m.onModuleDisabled();
-				}
+			} else {
+				mod.onModuleDisabled();
 			}
 		}
-		settings.setModuleEnabled(module, enable);
 	}
 	
 	public void setModulePath(final String path) {
@@ -471,11 +766,28 @@ public class SmartBot extends PircBot {
 		settings.setModuleSetting(CORE_MODULE_NAME, "nickserv_pass", pass);
 	}
 	
+	/**
+	 * Sets the number of milliseconds it takes to earn back the right to send
+	 * one more line once a burst has been used up.
+	 * 
+	 * @param ms The delay.
+	 */
 	public void setBotMessageDelay(long ms) {
-		setMessageDelay(ms);
+		floodControl.setInterval(ms);
 		settings.setModuleSetting(CORE_MODULE_NAME, "message_delay", ms + "");
 	}
 	
+	/**
+	 * Sets the number of responses that may be sent at once before they are
+	 * spread out by the message delay.
+	 * 
+	 * @param burst The number of responses. Must be at least 1.
+	 */
+	public void setFloodBurst(final int burst) {
+		floodControl.setCapacity(burst);
+		settings.setModuleSetting(CORE_MODULE_NAME, "flood_burst", burst + "");
+	}
+	
 	public void setBotNick(final String nick) {
 		setName(nick);
 		loginNick = nick;
@@ -511,6 +823,17 @@ public class SmartBot extends PircBot {
 		settings.setModuleSetting(SmartBot.CORE_MODULE_NAME, "prepend_char", c + "");
 	}
 	
+	/**
+	 * Makes the random numbers that modules use repeatable. Each thread gets
+	 * its own stream from the seed, so a run with the same seed and the same
+	 * work on the same threads gives the same numbers.
+	 * 
+	 * @param seed The seed.
+	 */
+	public void setRandomSeed(final long seed) {
+		random = new RandomSource(seed);
+	}
+	
 	/**
 	 * Sets number of reconnection attempts after an unexpected disconnect. Set
 	 * to 0 to disable reconnection.
@@ -529,6 +852,81 @@ public class SmartBot extends PircBot {
 		settings.setModuleSetting(SmartBot.CORE_MODULE_NAME, "time_between_reconnects", t + "");
 	}
 	
+	/**
+	 * Sets the number of worker threads used to execute commands. Commands
+	 * that arrive while all core threads are busy wait in the command queue;
+	 * additional threads up to the maximum are only started once that queue
+	 * is full.
+	 * 
+	 * @param core The number of threads kept alive for executing commands.
+	 * @param max The maximum number of threads executing commands at once.
+	 */
+	public void setWorkerPoolSize(final int core, final int max) {
+		if (core < 1 || max < core) {
+			throw new IllegalArgumentException("Worker pool sizes must satisfy 1 <= core <= max");
+		}
+		workerCoreSize = core;
+		workerMaxSize = max;
+		final ThreadPoolExecutor exec = commandExecutor;
+		if (max >= exec.getMaximumPoolSize()) {
+			exec.setMaximumPoolSize(max);
+			exec.setCorePoolSize(core);
+		} else {
+			exec.setCorePoolSize(core);
+			exec.setMaximumPoolSize(max);
+		}
+		settings.setModuleSetting(CORE_MODULE_NAME, "worker_core_size", core + "");
+		settings.setModuleSetting(CORE_MODULE_NAME, "worker_max_size", max + "");
+	}
+	
+	/**
+	 * Sets the number of commands that may wait for a free worker thread.
+	 * Once this many commands are waiting and no more threads may be started,
+	 * new commands are rejected and the sender is told that the bot is busy.
+	 * Commands already waiting when this is changed are still executed.
+	 * 
+	 * @param size The capacity of the command queue.
+	 */
+	public void setWorkerQueueSize(final int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Worker queue size must be at least 1");
+		}
+		workerQueueSize = size;
+		final ThreadPoolExecutor old = commandExecutor;
+		commandExecutor = createCommandExecutor();
+		old.shutdown();
+		settings.setModuleSetting(CORE_MODULE_NAME, "worker_queue_size", size + "");
+	}
+	
+	/**
+	 * Sets whether commands are executed on virtual threads instead of the
+	 * bounded worker pool. Each command then gets its own virtual thread, so
+	 * commands that block waiting on the server do not tie up a platform
+	 * thread and are never rejected for being busy. Virtual threads require
+	 * Java 21 or later; on older runtimes the worker pool continues to be
+	 * used.
+	 * 
+	 * @param use Whether to use virtual threads.
+	 * @return Whether commands will now be executed on virtual threads.
+	 */
+	public boolean setUseVirtualThreads(final boolean use) {
+		final ExecutorService old = virtualExecutor;
+		if (use) {
+			if (old == null) {
+				virtualExecutor = createVirtualExecutor();
+				if (virtualExecutor == null) {
+					System.err.println("Warning: virtual threads are not supported by this JVM. Using worker pool");
+				}
+			}
+		} else {
+			virtualExecutor = null;
+			if (old != null) {
+				old.shutdown();
+			}
+		}
+		return (virtualExecutor != null);
+	}
+	
 	/**
 	 * Sets whether NickServ is trusted.
 	 * 
@@ -538,6 +936,20 @@ public class SmartBot extends PircBot {
 		trustNickServ = t;
 	}
 	
+	/**
+	 * Sets whether IRCv3 capabilities are negotiated with the server when
+	 * connecting. This is off by default, and must only be turned on for
+	 * servers that understand the CAP command, since the others reject it
+	 * before registration.
+	 * 
+	 * @param use Whether to negotiate capabilities.
+	 */
+	public void setUseCapabilities(final boolean use) {
+		useCapabilities = use;
+		settings.setModuleSetting(SmartBot.CORE_MODULE_NAME,
+				"use_capabilities", Boolean.toString(use));
+	}
+	
 	/**
 	 * Sets whether the prepend character is used in this bot.
 	 */
@@ -547,42 +959,180 @@ public class SmartBot extends PircBot {
 	}
 	
 	/**
-	 * Executes a command.
+	 * Queues an event for delivery to the modules that handle it. Modules are
+	 * called on an event dispatch thread rather than the thread that reads
+	 * from the server, so that a module that blocks cannot hold up the
+	 * connection.
 	 * 
+	 * @param event The type of event.
+	 * @param channel The channel that the event occurred on, or the user that
+	 * it came from if it did not occur on a channel. Events with the same
+	 * channel are delivered in the order that they were received. May be
+	 * null.
+	 * @param delivery Calls the module's handler for the event.
+	 */
+	private void dispatch(final ModuleEvent event, final String channel,
+			final EventDispatcher.Delivery delivery) {
+		if (registry.getSubscribers().get(event).length > 0) {
+			eventDispatcher.dispatch(event, channel, eventSource, delivery);
+		}
+	}
+	
+	/**
+	 * Queues an event about a user that is not tied to a single channel, such
+	 * as a quit or a nick change. It is delivered in order with the events
+	 * for every channel.
+	 * 
+	 * @param event The type of event.
+	 * @param nick The nick of the user that the event is about.
+	 * @param delivery Calls the module's handler for the event.
+	 */
+	private void dispatchUser(final ModuleEvent event, final String nick,
+			final EventDispatcher.Delivery delivery) {
+		if (registry.getSubscribers().get(event).length > 0) {
+			eventDispatcher.dispatchUser(event, nick, eventSource, delivery);
+		}
+	}
+	
+	/**
+	 * Waits for a query to the server to complete.
+	 * 
+	 * @param query The query.
+	 * @return The response, or null if the query timed out, was cancelled, or
+	 * the thread was interrupted.
+	 */
+	private ServerResponse awaitServerResponse(
+			final CompletableFuture<ServerResponse> query) {
+		try {
+			return query.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (final ExecutionException e) {
+			return null;
+		} catch (final CancellationException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Executes a command. The command is split into words by the worker
+	 * thread that runs it rather than by the calling thread.
+	 * 
+	 * @param line The line that contains the command.
+	 * @param offset The index in the line that the command starts at.
 	 * @param user User that sent the command.
-	 * @param argv The words that make up the command.
 	 */
-	private void execute(final String[] argv, final String user,
-			final boolean isPm) {
+	private void execute(final String line, final int offset,
+			final String user, final boolean isPm) {
 		String recipient = null;
 		if (!user.equals(SmartBot.CONSOLE_USER)) {
 			recipient = (isPm) ? user : getIntendedChannel();
 		}
-		class Execution implements Runnable {
-			
-			private final String[] argv;
-			
-			private final String recipient;
+		final Execution exec = new Execution(line, offset, user, recipient);
+		final ExecutorService virtual = virtualExecutor;
+		if (virtual != null) {
+			try {
+				virtual.execute(exec);
+			} catch (final RejectedExecutionException e) {
+				// only happens when shutting down
+			}
+		} else {
+			commandExecutor.execute(exec);
+		}
+	}
+	
+	/**
+	 * A single command waiting to be run by a worker thread.
+	 */
+	private class Execution implements Runnable {
+		
+		private final String line;
+		
+		private final int offset;
+		
+		private final String recipient;
+		
+		private final String user;
+		
+		public Execution(final String line, final int offset,
+				final String user, final String recipient) {
+			this.line = line;
+			this.offset = offset;
+			this.user = user;
+			this.recipient = recipient;
+		}
+		
+		@Override
+		public void run() {
+			final String[] argv = CommandTokenizer.tokenize(line, offset);
+			try {
+				if (!executeCommand(argv, user, recipient)) {
+					sendResponse(recipient, user + ": Unknown command/module '"
+							+ argv[0] + "'");
+				}
+			} finally {
+				responsePriority.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Creates the bounded pool that commands are executed on. When the pool
+	 * and its queue are both full, the command is dropped and its sender is
+	 * told that the bot is busy.
+	 * 
+	 * @return The executor.
+	 */
+	private ThreadPoolExecutor createCommandExecutor() {
+		final ThreadFactory factory = new ThreadFactory() {
 			
-			private final String user;
+			private final AtomicInteger count = new AtomicInteger();
 			
-			public Execution(final String[] argv, final String user,
-					final String recipient) {
-				this.argv = argv;
-				this.user = user;
-				this.recipient = recipient;
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(r, "WorkerThread-" + count.incrementAndGet());
 			}
+		};
+		final RejectedExecutionHandler busy = new RejectedExecutionHandler() {
 			
 			@Override
-			public void run() {
-				if (!executeCommand(argv, user, recipient)) {
-					sendResponse(recipient, user + ": Unknown command/module '"
-							+ argv[0] + "'");
+			public void rejectedExecution(final Runnable r,
+					final ThreadPoolExecutor executor) {
+				if (!executor.isShutdown() && (r instanceof Execution)) {
+					final Execution e = (Execution) r;
+					sendResponse(e.recipient, e.user
+							+ ": bot busy, try again later");
 				}
 			}
 		};
-		final Execution runme = new Execution(argv, user, recipient);
-		(new Thread(runme, "WorkerThread")).start();
+		final ThreadPoolExecutor exec = new ThreadPoolExecutor(workerCoreSize,
+				workerMaxSize, SmartBot.WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(workerQueueSize), factory, busy);
+		exec.allowCoreThreadTimeOut(true);
+		return exec;
+	}
+	
+	/**
+	 * Creates an executor that starts a new virtual thread for each command.
+	 * This is looked up reflectively so that SmartBot still runs on JVMs
+	 * without virtual thread support.
+	 * 
+	 * @return The executor, or null if virtual threads are not supported.
+	 */
+	private ExecutorService createVirtualExecutor() {
+		try {
+			final Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (final NoSuchMethodException e) {
+			return null;
+		} catch (final IllegalAccessException e) {
+			return null;
+		} catch (final InvocationTargetException e) {
+			// virtual threads exist but are a disabled preview feature
+			return null;
+		}
 	}
 	
 	/**
@@ -594,17 +1144,23 @@ public class SmartBot extends PircBot {
 	 */
 	private boolean executeCommand(final String[] argv, final String sender,
 			final String recipient) {
-		final Module core = getCoreModule();
+		final ModuleRegistry reg = registry;
+		final Module core = reg.getModule(SmartBot.CORE_MODULE_NAME);
+		final Module named = reg.getEnabledModule(argv[0]);
 		if (core.hasCommand(argv[0])) {
 			// first priority is assume core module.
+			responsePriority.set(OutboundQueue.Priority.CORE);
 			final String[] params = Arrays.copyOfRange(argv, 1, argv.length);
 			return core.execute(argv[0], params, sender, recipient);
-		} else if (getModuleEnabled(argv[0])) {
+		} else if (named != null) {
 			// next priority is assume named module
+			if (named == core) {
+				responsePriority.set(OutboundQueue.Priority.CORE);
+			}
 			if (argv.length > 1) {
 				final String[] params = Arrays
 						.copyOfRange(argv, 2, argv.length);
-				return getModule(argv[0]).execute(argv[1], params, sender,
+				return named.execute(argv[1], params, sender,
 						recipient);
 			} else {
 				sendResponse(recipient, sender + ": '" + argv[0]
@@ -612,33 +1168,21 @@ public class SmartBot extends PircBot {
 				return true;
 			}
 		} else {
-			// finally, search all modules for the command
-			final List<Module> candidates = new ArrayList<Module>();
-			for (final Module mod : enabledModules.values()) {
-				if (mod.hasCommand(argv[0])) {
-					candidates.add(mod);
-				}
-			}
-			if (candidates.size() == 1) {
+			// finally, look up which modules have the command
+			final CommandIndex.Route route = reg.getCommandIndex().get(argv[0]);
+			if (route == null) {
+				return false;
+			} else if (!route.isAmbiguous()) {
 				final String[] params = Arrays
 						.copyOfRange(argv, 1, argv.length);
-				return candidates.get(0).execute(argv[0], params, sender,
+				return route.getModule().execute(argv[0], params, sender,
 						recipient);
-			} else if (candidates.size() > 1) {
+			} else {
 				sendResponse(recipient, sender + ": ambiguous command.");
 				sendResponse(recipient, sender + ": '" + argv[0]
 						+ "' exists in the following modules:");
-				String msg = "";
-				for (int i = 0; i < candidates.size(); i++) {
-					msg += candidates.get(i).getName();
-					if ((i + 1) < candidates.size()) {
-						msg += ", ";
-					}
-				}
-				sendResponse(recipient, msg);
+				sendResponse(recipient, route.getModuleList());
 				return true;
-			} else {
-				return false;
 			}
 		}
 	}
@@ -652,7 +1196,7 @@ public class SmartBot extends PircBot {
 	 * @return The default module.
 	 */
 	private Module getCoreModule() {
-		return modules.get(SmartBot.CORE_MODULE_NAME);
+		return registry.getModule(SmartBot.CORE_MODULE_NAME);
 	}
 	
 	/**
@@ -664,7 +1208,7 @@ public class SmartBot extends PircBot {
 	 */
 	private Module getModule(final String name) {
 		if (!name.equalsIgnoreCase(SmartBot.CORE_MODULE_NAME)) {
-			return modules.get(name.toUpperCase());
+			return registry.getModule(name);
 		} else {
 			return null;
 		}
@@ -676,7 +1220,7 @@ public class SmartBot extends PircBot {
 	 * @param module The name of the module to check.
 	 */
 	private boolean getModuleEnabled(final String module) {
-		return enabledModules.containsKey(module.toUpperCase());
+		return registry.isEnabled(module);
 	}
 	
 	/**
@@ -686,7 +1230,16 @@ public class SmartBot extends PircBot {
 	 * same as the order that they were loaded into this bot.
 	 */
 	private Set<String> getModuleNames() {
-		return Collections.unmodifiableSet(modules.keySet());
+		return registry.getModuleNames();
+	}
+	
+	/**
+	 * Gets the number of bytes that the server adds to the front of a line
+	 * from this bot when relaying it to other clients.
+	 */
+	private int getPrefixReserve() {
+		return getNick().length() + getLogin().length()
+				+ SmartBot.HOSTNAME_RESERVE + 5;
 	}
 	
 	/**
@@ -699,19 +1252,23 @@ public class SmartBot extends PircBot {
 	 */
 	private String getRegisteredNick(final String user) {
 		if (trustNickServ) {
-			final List<Integer> codes = new ArrayList<Integer>();
-			final List<String> data = new ArrayList<String>();
-			sendServerCommand("WHOIS :" + user, 311, 318, codes, data);
+			final String cached = accountCache.get(user);
+			if (cached != null || accountCache.isTracked(user)) {
+				return cached;
+			}
+			final long generation = accountCache.getGeneration();
+			final ServerResponse resp = awaitServerResponse(queryServer(
+					"WHOIS :" + user, user, 311, 318));
 			String line = null;
-			for (int i = 0; i < codes.size(); i++) {
-				if (codes.get(i) == 330) {
-					line = data.get(i);
-					break;
-				}
+			if (resp != null) {
+				line = resp.find(330);
 			}
 			if (line != null) {
 				line = line.trim();
 				final String[] parts = line.split(" ", 4);
+				if (isInChannel(user)) {
+					accountCache.put(user, parts[2], generation);
+				}
 				return parts[2];
 			} else {
 				return null;
@@ -727,7 +1284,27 @@ public class SmartBot extends PircBot {
 	 * @param name The name to check for.
 	 */
 	private boolean hasModule(final String name) {
-		return modules.containsKey(name.toUpperCase());
+		return registry.hasModule(name);
+	}
+	
+	/**
+	 * Checks whether a nick is in any of the channels that the bot is in. The
+	 * bot only sees the quits and nick changes of such users, so only their
+	 * accounts may be cached; anyone else could hand their nick to another
+	 * user without the bot knowing.
+	 * 
+	 * @param nick The nick to check.
+	 * @return Whether it is.
+	 */
+	private boolean isInChannel(final String nick) {
+		for (final String channel : getChannels()) {
+			for (final User u : getUsers(channel)) {
+				if (u.getNick().equalsIgnoreCase(nick)) {
+					return true;
+				}
+			}
+		}
+		return false;
 	}
 	
 	/**
@@ -746,9 +1323,8 @@ public class SmartBot extends PircBot {
 	}
 	
 	private void loadModules(final Module[] modulesToAdd) {
-		enabledModules = new LinkedHashMap<String, Module>();
-		modules = new HashMap<String, Module>();
-		if (modules != null) {
+		registry = new ModuleRegistry();
+		if (modulesToAdd != null) {
 			for (final Module m : modulesToAdd) {
 				addModule(m);
 			}
@@ -776,6 +1352,16 @@ public class SmartBot extends PircBot {
 				return SmartBot.this.getIntendedChannel();
 			}
 			
+			@Override
+			public File getDataFile(String name) {
+				return SmartBot.this.getDataFile(name);
+			}
+			
+			@Override
+			public RandomSource getRandom() {
+				return SmartBot.this.getRandom();
+			}
+			
 			@Override
 			public Module getModule(String name) {
 				return SmartBot.this.getModule(name);
@@ -857,9 +1443,9 @@ public class SmartBot extends PircBot {
 				SmartBot.this.setModuleEnabled(name, enabled);
 			}
 		}, settings);
-		modules.put(SmartBot.CORE_MODULE_NAME, core);
-		enabledModules.put(SmartBot.CORE_MODULE_NAME,
-				modules.get(SmartBot.CORE_MODULE_NAME));
+		synchronized (registryLock) {
+			registry = registry.withModule(core, true);
+		}
 		setVersion(String
 				.format(SmartBot.VERSION, getCoreModule().getVersion()));
 	}
@@ -891,6 +1477,10 @@ public class SmartBot extends PircBot {
 			moduleClassPath = settings.getModuleSetting(
 					SmartBot.CORE_MODULE_NAME, "modulePath");
 			if (moduleClassPath == null) {}
+			final String dataDir = settings.getModuleSetting(CORE_MODULE_NAME, "data_directory");
+			if (dataDir != null && !dataDir.trim().equals("")) {
+				dataDirectory = new File(dataDir.trim());
+			}
 			server = settings.getModuleSetting(CORE_MODULE_NAME, "server");
 			setFinger(settings.getModuleSetting(SmartBot.CORE_MODULE_NAME, "finger"));
 			setLogin(settings.getModuleSetting(SmartBot.CORE_MODULE_NAME, "login"));
@@ -899,11 +1489,30 @@ public class SmartBot extends PircBot {
 			setChannel('#' + settings.getModuleSetting(SmartBot.CORE_MODULE_NAME, "channel"));
 			setPrependChar(settings.getModuleSetting(SmartBot.CORE_MODULE_NAME, "prepend_char").charAt(0));
 			setUsePrepend(settings.getModuleSetting(SmartBot.CORE_MODULE_NAME, "use_prepend_char").equalsIgnoreCase("true"));
+			useCapabilities = "true".equalsIgnoreCase(settings.getModuleSetting(SmartBot.CORE_MODULE_NAME, "use_capabilities"));
 			try {
-				setMessageDelay(Integer.parseInt(settings.getModuleSetting(SmartBot.CORE_MODULE_NAME, "message_delay")));
+				floodControl.setInterval(Integer.parseInt(settings.getModuleSetting(SmartBot.CORE_MODULE_NAME, "message_delay")));
 			} catch (NumberFormatException e) {
 				// do nothing
-				System.err.println("Warning: config value for message_delay is malformed. Defaulting to 1000");
+				System.err.println("Warning: config value for message_delay is malformed. Defaulting to "
+						+ SmartBot.DEFAULT_MESSAGE_DELAY);
+			}
+			final int ambientMaxAge = readCoreInt("ambient_max_age", SmartBot.DEFAULT_AMBIENT_MAX_AGE);
+			if (ambientMaxAge < 0) {
+				System.err.println("Warning: config value for ambient_max_age is invalid. Defaulting to "
+						+ SmartBot.DEFAULT_AMBIENT_MAX_AGE);
+			} else {
+				responses.setMaxAmbientAge(ambientMaxAge * 1000L);
+			}
+			final int floodBurst = readCoreInt("flood_burst", SmartBot.DEFAULT_FLOOD_BURST);
+			if (floodBurst < 1) {
+				System.err.println("Warning: config value for flood_burst is invalid. Defaulting to "
+						+ SmartBot.DEFAULT_FLOOD_BURST);
+			} else {
+				floodControl.setCapacity(floodBurst);
+			}
+			if (settings instanceof Settings) {
+				configureRunControlFile((Settings) settings);
 			}
 			try {
 				setTimeBetweenReconnects(Integer.parseInt(settings.getModuleSetting(SmartBot.CORE_MODULE_NAME, "time_between_reconnects")));
@@ -917,53 +1526,296 @@ public class SmartBot extends PircBot {
 				System.err.println("Warning: config value for reconnection_limit is malformed. Defaulting to 3");
 				setReconnectionLimit(3);
 			}
+			workerCoreSize = readCoreInt("worker_core_size", SmartBot.DEFAULT_WORKER_CORE_SIZE);
+			workerMaxSize = readCoreInt("worker_max_size", SmartBot.DEFAULT_WORKER_MAX_SIZE);
+			workerQueueSize = readCoreInt("worker_queue_size", SmartBot.DEFAULT_WORKER_QUEUE_SIZE);
+			if (workerCoreSize < 1 || workerMaxSize < workerCoreSize) {
+				System.err.println("Warning: config values for worker_core_size and worker_max_size are invalid. Defaulting to "
+						+ SmartBot.DEFAULT_WORKER_CORE_SIZE + " and " + SmartBot.DEFAULT_WORKER_MAX_SIZE);
+				workerCoreSize = SmartBot.DEFAULT_WORKER_CORE_SIZE;
+				workerMaxSize = SmartBot.DEFAULT_WORKER_MAX_SIZE;
+			}
+			eventThreads = readCoreInt("event_threads", SmartBot.DEFAULT_EVENT_THREADS);
+			eventQueueSize = readCoreInt("event_queue_size", SmartBot.DEFAULT_EVENT_QUEUE_SIZE);
+			if (eventThreads < 1) {
+				System.err.println("Warning: config value for event_threads is invalid. Defaulting to "
+						+ SmartBot.DEFAULT_EVENT_THREADS);
+				eventThreads = SmartBot.DEFAULT_EVENT_THREADS;
+			}
+			final int accountCacheTtl = readCoreInt("account_cache_ttl", SmartBot.DEFAULT_ACCOUNT_CACHE_TTL);
+			if (accountCacheTtl < 0) {
+				System.err.println("Warning: config value for account_cache_ttl is invalid. Defaulting to "
+						+ SmartBot.DEFAULT_ACCOUNT_CACHE_TTL);
+			} else {
+				accountCache.setTtl(accountCacheTtl * 1000L);
+			}
+			serverQueryTimeout = readCoreInt("server_query_timeout", SmartBot.DEFAULT_SERVER_QUERY_TIMEOUT);
+			if (serverQueryTimeout < 1) {
+				System.err.println("Warning: config value for server_query_timeout is invalid. Defaulting to "
+						+ SmartBot.DEFAULT_SERVER_QUERY_TIMEOUT);
+				serverQueryTimeout = SmartBot.DEFAULT_SERVER_QUERY_TIMEOUT;
+			}
+			if (eventQueueSize < 1) {
+				System.err.println("Warning: config value for event_queue_size is invalid. Defaulting to "
+						+ SmartBot.DEFAULT_EVENT_QUEUE_SIZE);
+				eventQueueSize = SmartBot.DEFAULT_EVENT_QUEUE_SIZE;
+			}
+			if (workerQueueSize < 1) {
+				System.err.println("Warning: config value for worker_queue_size is invalid. Defaulting to "
+						+ SmartBot.DEFAULT_WORKER_QUEUE_SIZE);
+				workerQueueSize = SmartBot.DEFAULT_WORKER_QUEUE_SIZE;
+			}
+		}
+	}
+	
+	/**
+	 * Informs the user that they made a syntax error.
+	 * 
+	 * @param recipient
+	 * @param user
+	 */
+	private void sendBadSyntax(final String recipient, final String user) {
+		sendResponse(recipient, user + ": bad syntax");
+	}
+	
+	/**
+	 * Informs the user that the module that they specified does not exist.
+	 */
+	private void sendNoSuchModule(final String recipient, final String sender,
+			final String mod) {
+		sendResponse(recipient, sender + ": module '" + mod
+				+ "' does not exist");
+	}
+	
+	/**
+	 * Informs a user that they have attempted to perform an unauthorized
+	 * operation.
+	 * 
+	 * @param user The user to send it to.
+	 * @param recipient The place to send it to.
+	 */
+	private void sendNotAuthorized(final String recipient, final String user) {
+		String msg = user + ": You don't have permission to do that.";
+		if (trustNickServ) {
+			msg += " If you believe that you should have permission, ";
+			msg += "identify with NickServ and try again.";
+		}
+		sendResponse(recipient, msg);
+	}
+	
+	/**
+	 * Sends a response to the appropriate location. DO NOT USE sendMessage()
+	 * FROM MODULES! Use this method only. Responses that are waiting to be sent
+	 * to the same recipient are packed together into as few lines as possible.
+	 * Replies from the core module are sent first, then replies to other
+	 * commands, and then messages that modules send in response to events.
+	 */
+	private void sendResponse(String recipient, String msg) {
+		if (recipient == null) {
+			System.out.println(msg);
+		} else if (!responses.add(recipient, msg, responsePriority.get())) {
+			System.err.println("Warning: response queue is full. Dropping "
+					+ "response to " + recipient);
+		}
+	}
+	
+	/**
+	 * Adds the account from a WHOIS account reply (330) or from a reply to
+	 * the bot's own WHOX request (354) to the account cache.
+	 * 
+	 * @param code The code of the reply.
+	 * @param resp The reply.
+	 */
+	private void parseAccountReply(final int code, final String resp) {
+		final String[] parts = resp.split(" ", 5);
+		String nick = null;
+		String account = null;
+		if (code == 330 && parts.length >= 3) {
+			nick = parts[1];
+			account = parts[2];
+		} else if (parts.length >= 4 && parts[1].equals(SmartBot.WHOX_TOKEN)) {
+			nick = parts[2];
+			account = parts[3];
+			if (account.equals("0")) {
+				// WHOX uses 0 for users that are not logged in
+				account = null;
+			}
+		}
+		if (nick != null) {
+			if (code == 354) {
+				recordAccount(nick, account);
+			} else if (isInChannel(nick)) {
+				accountCache.put(nick, account, accountCache.getGeneration());
+			}
 		}
 	}
 	
 	/**
-	 * Informs the user that they made a syntax error.
+	 * Reads the features that the server supports from an RPL_ISUPPORT (005)
+	 * reply. Only the ones that SmartBot makes use of are recorded.
 	 * 
-	 * @param recipient
-	 * @param user
+	 * @param resp The reply.
 	 */
-	private void sendBadSyntax(final String recipient, final String user) {
-		sendResponse(recipient, user + ": bad syntax");
+	private void parseServerSupport(final String resp) {
+		final String[] tokens = resp.split(" ");
+		for (int i = 1; i < tokens.length && !tokens[i].startsWith(":"); i++) {
+			if (tokens[i].equals("WHOX")) {
+				whoxSupported = true;
+			} else if (tokens[i].startsWith("TARGMAX=")) {
+				for (final String limit : tokens[i].substring(8).split(",")) {
+					if (limit.toUpperCase().startsWith("WHOIS:")) {
+						try {
+							final int max = Integer.parseInt(limit.substring(6));
+							whoisBatchSize = Math.max(1,
+									Math.min(max, SmartBot.WHOIS_BATCH_SIZE));
+						} catch (final NumberFormatException e) {
+							// no limit given; keep the default
+						}
+					}
+				}
+			}
+		}
 	}
 	
 	/**
-	 * Informs the user that the module that they specified does not exist.
+	 * Gets the nick from a message prefix.
+	 * 
+	 * @param prefix The prefix, in the form nick!login@host.
+	 * @return The nick, or null if the prefix is not from a user.
 	 */
-	private void sendNoSuchModule(final String recipient, final String sender,
-			final String mod) {
-		sendResponse(recipient, sender + ": module '" + mod
-				+ "' does not exist");
+	private String prefixNick(final String prefix) {
+		final int bang = prefix.indexOf('!');
+		return (bang > 0) ? prefix.substring(0, bang) : null;
 	}
 	
 	/**
-	 * Informs a user that they have attempted to perform an unauthorized
-	 * operation.
+	 * Records the account that a nick is logged in as, as reported by the
+	 * server for a user in the channel. If the server notifies the bot of
+	 * account changes, the account is tracked until the user leaves;
+	 * otherwise it is only cached.
 	 * 
-	 * @param user The user to send it to.
-	 * @param recipient The place to send it to.
+	 * @param nick The nick.
+	 * @param account The account, or null if the nick is not logged in.
 	 */
-	private void sendNotAuthorized(final String recipient, final String user) {
-		String msg = user + ": You don't have permission to do that.";
-		if (trustNickServ) {
-			msg += " If you believe that you should have permission, ";
-			msg += "identify with NickServ and try again.";
+	private void recordAccount(final String nick, final String account) {
+		if (capNegotiator.isEnabled("account-notify")) {
+			accountCache.track(nick, account);
+		} else {
+			accountCache.put(nick, account, accountCache.getGeneration());
 		}
-		sendResponse(recipient, msg);
 	}
 	
 	/**
-	 * Sends a response to the appropriate location. DO NOT USE sendMessage()
-	 * FROM MODULES! Use this method only.
+	 * Reads an integer setting from the core section of the settings. A
+	 * missing setting silently results in the default value.
+	 * 
+	 * @param setting The name of the setting.
+	 * @param defaultValue The value to use if the setting is missing or
+	 * malformed.
+	 * @return The value of the setting.
 	 */
-	private void sendResponse(String recipient, String msg) {
-		if (recipient == null) {
-			System.out.println(msg);
+	private int readCoreInt(final String setting, final int defaultValue) {
+		final String value = settings.getModuleSetting(CORE_MODULE_NAME, setting);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				System.err.println("Warning: config value for " + setting
+						+ " is malformed. Defaulting to " + defaultValue);
+			}
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * Sets how changes to the settings are written when they are kept in a
+	 * run control file.
+	 * 
+	 * @param rc The run control file settings.
+	 */
+	private void configureRunControlFile(final Settings rc) {
+		int writeDelay = readCoreInt("settings_write_delay", SmartBot.DEFAULT_SETTINGS_WRITE_DELAY);
+		if (writeDelay < 0) {
+			System.err.println("Warning: config value for settings_write_delay is invalid. Defaulting to "
+					+ SmartBot.DEFAULT_SETTINGS_WRITE_DELAY);
+			writeDelay = SmartBot.DEFAULT_SETTINGS_WRITE_DELAY;
+		}
+		int writeBatch = readCoreInt("settings_write_batch", SmartBot.DEFAULT_SETTINGS_WRITE_BATCH);
+		if (writeBatch < 1) {
+			System.err.println("Warning: config value for settings_write_batch is invalid. Defaulting to "
+					+ SmartBot.DEFAULT_SETTINGS_WRITE_BATCH);
+			writeBatch = SmartBot.DEFAULT_SETTINGS_WRITE_BATCH;
+		}
+		if (writeDelay > 0) {
+			rc.enableWriteBehind(writeDelay, writeBatch);
+		}
+		int compactPercent = readCoreInt("settings_compact_percent", SmartBot.DEFAULT_SETTINGS_COMPACT_PERCENT);
+		if (compactPercent < 0) {
+			System.err.println("Warning: config value for settings_compact_percent is invalid. Defaulting to "
+					+ SmartBot.DEFAULT_SETTINGS_COMPACT_PERCENT);
+			compactPercent = SmartBot.DEFAULT_SETTINGS_COMPACT_PERCENT;
+		}
+		if (compactPercent > 0) {
+			try {
+				rc.enableJournal(compactPercent / 100.0);
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Looks up the NickServ accounts of everyone in a channel at once, so that
+	 * the first command from each user does not have to wait for a WHOIS. If
+	 * the server supports WHOX, the whole channel is queried with a single
+	 * WHO; otherwise the users are looked up with as few WHOIS commands as the
+	 * server allows, unless that would take more than a few commands, in which
+	 * case each user is instead looked up when they first give a command. The
+	 * replies are added to the account cache as they arrive.
+	 * 
+	 * @param channel The channel.
+	 * @param users The users in the channel.
+	 */
+	private void resolveAccounts(final String channel, final User[] users) {
+		if (whoxSupported) {
+			sendBackgroundLine("WHO " + channel + " %tna," + SmartBot.WHOX_TOKEN);
 		} else {
-			sendMessage(recipient, msg);
+			final int batchSize = whoisBatchSize;
+			if ((users.length + batchSize - 1) / batchSize > SmartBot.WHOIS_PREFILL_LIMIT) {
+				return;
+			}
+			final StringBuilder batch = new StringBuilder();
+			int count = 0;
+			for (final User u : users) {
+				if (!u.getNick().equalsIgnoreCase(getNick())) {
+					if (count > 0) {
+						batch.append(',');
+					}
+					batch.append(u.getNick());
+					count++;
+				}
+				if (count == batchSize) {
+					sendBackgroundLine("WHOIS " + batch);
+					batch.setLength(0);
+					count = 0;
+				}
+			}
+			if (count > 0) {
+				sendBackgroundLine("WHOIS " + batch);
+			}
+		}
+	}
+	
+	/**
+	 * Queues a command that nothing is waiting on. It is sent once there are
+	 * no replies or queries waiting.
+	 * 
+	 * @param command The command.
+	 */
+	private void sendBackgroundLine(final String command) {
+		if (!responses.addRaw(command, OutboundQueue.Priority.BACKGROUND)) {
+			System.err.println("Warning: response queue is full. Dropping "
+					+ command);
 		}
 	}
 	
@@ -977,7 +1829,7 @@ public class SmartBot extends PircBot {
 					while (true) {
 						String line = br.readLine();
 						if (!line.trim().equals("")) {
-							execute(line.trim().split(" "), SmartBot.CONSOLE_USER, false);
+							execute(line, 0, SmartBot.CONSOLE_USER, false);
 						}
 					}
 				} catch (IOException e) {
@@ -993,6 +1845,92 @@ public class SmartBot extends PircBot {
 		}, "ConsoleInput")).start();
 	}
 	
+	/**
+	 * Starts the thread that sends responses and queued commands to the
+	 * server. They are sent as soon as they are made as long as the flood
+	 * control allows it. Nothing else that the bot sends is queued, so the
+	 * flood control paces everything that could add up to a flood.
+	 */
+	private void startResponseSender() {
+		responseSender = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						if (isConnected()) {
+							// take the token first; responses that arrive in
+							// the meantime can then be packed into the line
+							floodControl.acquire();
+							final OutboundQueue.Line line = responses
+									.take(getPrefixReserve());
+							sendRawLine(line.toCommand());
+						} else {
+							Thread.sleep(1000);
+						}
+					}
+				} catch (final InterruptedException e) {
+					// the bot has been disposed
+				}
+			}
+		}, "ResponseSender");
+		responseSender.setDaemon(true);
+		responseSender.start();
+	}
+	
+	/**
+	 * Records account information from a line sent by a user in the channel.
+	 * With extended-join, a JOIN carries the account of the joining user; with
+	 * account-tag, every message carries the account of its sender, and a
+	 * message without the tag means the sender is not logged in.
+	 * 
+	 * @param tags The message tags of the line, or null if it had none.
+	 * @param line The line, without its tags.
+	 */
+	private void trackAccount(final String tags, final String line) {
+		final boolean extendedJoin = capNegotiator.isEnabled("extended-join");
+		final boolean accountTag = capNegotiator.isEnabled("account-tag");
+		if (!extendedJoin && !accountTag) {
+			return;
+		}
+		final IRCMessage msg = new IRCMessage(line);
+		final String nick = prefixNick(msg.getPrefix());
+		final List<String> params = msg.getParams();
+		if (nick == null || params.isEmpty()
+				|| !params.get(0).equalsIgnoreCase(getIntendedChannel())) {
+			return;
+		}
+		if (extendedJoin && msg.getCommand().equalsIgnoreCase("JOIN")) {
+			if (params.size() > 1) {
+				final String account = params.get(1);
+				recordAccount(nick, account.equals("*") ? null : account);
+			}
+		} else if (accountTag) {
+			String account = null;
+			if (tags != null) {
+				for (final String tag : tags.split(";")) {
+					if (tag.startsWith("account=")) {
+						account = tag.substring(8);
+					}
+				}
+			}
+			recordAccount(nick, account);
+		}
+	}
+	
+	@Override
+	public synchronized void dispose() {
+		eventDispatcher.shutdown();
+		serverQueries.shutdown();
+		responseSender.interrupt();
+		settings.shutdown();
+		commandExecutor.shutdown();
+		if (virtualExecutor != null) {
+			virtualExecutor.shutdown();
+		}
+		super.dispose();
+	}
+	
 	/**
 	 * Logs in with the nick given at construction. If the nick is not
 	 * available, this method attempts to reclaim it.
@@ -1001,8 +1939,9 @@ public class SmartBot extends PircBot {
 		if (!getNick().equals(loginNick)) {
 			awaitingNickServGhost = true;
 			loggingIn = true;
-			sendMessage("NickServ",
-					String.format("GHOST %s %s", loginNick, nickPass));
+			responses.addRaw("PRIVMSG NickServ :"
+					+ String.format("GHOST %s %s", loginNick, nickPass),
+					OutboundQueue.Priority.QUERY);
 		} else {
 			setVerbose(false);
 			String pass = new String(nickPass);
@@ -1017,24 +1956,70 @@ public class SmartBot extends PircBot {
 		}
 	}
 	
+	/**
+	 * Removes IRCv3 message tags from a line before PircBot parses it, and
+	 * records any account information that capabilities add to the line.
+	 * Capability negotiation is also started here, as this is the earliest
+	 * point at which lines can be sent on a new connection, and SASL
+	 * AUTHENTICATE messages are handled here because PircBot cannot parse
+	 * them.
+	 */
+	@Override
+	protected void handleLine(final String line) {
+		if (useCapabilities && !capNegotiator.isStarted()) {
+			if (trustNickServ && nickPass != null && nickPass.length > 0) {
+				capNegotiator.setCredentials(loginNick, nickPass);
+			}
+			sendRawLine(capNegotiator.begin());
+		}
+		String tags = null;
+		String untagged = line;
+		if (line.startsWith("@")) {
+			final int space = line.indexOf(' ');
+			if (space > 0) {
+				tags = line.substring(1, space);
+				untagged = line.substring(space + 1).trim();
+			}
+		}
+		if (capNegotiator.isAuthenticating()) {
+			final IRCMessage msg = new IRCMessage(untagged);
+			if ("AUTHENTICATE".equalsIgnoreCase(msg.getCommand())) {
+				setVerbose(false);
+				for (final String reply : capNegotiator.handleAuthenticate(msg)) {
+					sendRawLine(reply);
+				}
+				setVerbose(true);
+				return;
+			}
+		}
+		if (trustNickServ && untagged.startsWith(":")) {
+			trackAccount(tags, untagged);
+		}
+		super.handleLine(untagged);
+	}
+	
 	@Override
 	protected void onAction(final String sender, final String login,
 			final String hostname, final String target, final String action) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onAction(sender, login, hostname, target, action)) {
-				break;
+		dispatch(ModuleEvent.ACTION, target, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onAction(sender, login, hostname, target, action);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onChannelInfo(final String channel, final int userCount,
 			final String topic) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onChannelInfo(channel, userCount, topic)) {
-				break;
+		dispatch(ModuleEvent.CHANNEL_INFO, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onChannelInfo(channel, userCount, topic);
 			}
-		}
+		});
 	}
 	
 	/**
@@ -1042,37 +2027,48 @@ public class SmartBot extends PircBot {
 	 */
 	@Override
 	protected void onConnect() {
-		loggedIn = false;
+		loggedIn = capNegotiator.isAuthenticated();
+		if (loggedIn && getNick().equals(loginNick) && nickPass != null) {
+			// logged in with SASL, so the password will not be needed again
+			Arrays.fill(nickPass, '\0');
+			nickPass = null;
+		}
 		joinChannel(getIntendedChannel());
-		for (final Module m : enabledModules.values()) {
-			if (m.onConnect()) {
-				break;
+		dispatch(ModuleEvent.CONNECT, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onConnect();
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onDeop(final String channel, final String sourceNick,
 			final String sourceLogin, final String sourceHostname,
 			final String recipient) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onDeop(channel, sourceNick, sourceLogin, sourceHostname,
-					recipient)) {
-				break;
+		dispatch(ModuleEvent.DEOP, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onDeop(channel, sourceNick, sourceLogin,
+						sourceHostname, recipient);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onDeVoice(final String channel, final String sourceNick,
 			final String sourceLogin, final String sourceHostname,
 			final String recipient) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onDeVoice(channel, sourceNick, sourceLogin, sourceHostname,
-					recipient)) {
-				break;
+		dispatch(ModuleEvent.DE_VOICE, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onDeVoice(channel, sourceNick, sourceLogin,
+						sourceHostname, recipient);
 			}
-		}
+		});
 	}
 	
 	/**
@@ -1081,11 +2077,19 @@ public class SmartBot extends PircBot {
 	 */
 	@Override
 	protected void onDisconnect() {
-		for (final Module m : enabledModules.values()) {
-			if (m.onDisconnect()) {
-				break;
+		registered = false;
+		capNegotiator.reset();
+		serverQueries.cancelAll();
+		accountCache.clear();
+		whoxSupported = false;
+		whoisBatchSize = SmartBot.WHOIS_BATCH_SIZE;
+		dispatch(ModuleEvent.DISCONNECT, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onDisconnect();
 			}
-		}
+		});
 		if (cleanDc) {
 			dispose();
 		} else {
@@ -1095,9 +2099,10 @@ public class SmartBot extends PircBot {
 				while (!connected && (attempts < maxReconnects)) {
 					Thread.sleep(1000 * timeBetweenReconnects);
 					try {
-						reconnect();
+						// the password is needed during registration for SASL
 						settings.read();
 						nickPass = settings.getModuleSettingChar(CORE_MODULE_NAME, "nickserv_pass");
+						reconnect();
 						connected = true;
 					} catch (final Exception e) {
 						e.printStackTrace();
@@ -1117,70 +2122,89 @@ public class SmartBot extends PircBot {
 	@Override
 	protected void onFileTransferFinished(final DccFileTransfer transfer,
 			final Exception e) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onFileTransferFinished(transfer, e)) {
-				break;
+		dispatch(ModuleEvent.FILE_TRANSFER_FINISHED, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onFileTransferFinished(transfer, e);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onFinger(final String sourceNick, final String sourceLogin,
 			final String sourceHostname, final String target) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onFinger(sourceNick, sourceLogin, sourceHostname, target)) {
-				break;
+		dispatch(ModuleEvent.FINGER, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onFinger(sourceNick, sourceLogin, sourceHostname,
+						target);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onIncomingChatRequest(final DccChat chat) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onIncomingChatRequest(chat)) {
-				break;
+		dispatch(ModuleEvent.INCOMING_CHAT_REQUEST, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onIncomingChatRequest(chat);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onIncomingFileTransfer(final DccFileTransfer transfer) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onIncomingFileTransfer(transfer)) {
-				break;
+		dispatch(ModuleEvent.INCOMING_FILE_TRANSFER, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onIncomingFileTransfer(transfer);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onInvite(final String targetNick, final String sourceNick,
 			final String sourceLogin, final String sourceHostname,
 			final String channel) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onInvite(targetNick, sourceNick, sourceLogin, sourceHostname,
-					channel)) {
-				break;
+		dispatch(ModuleEvent.INVITE, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onInvite(targetNick, sourceNick, sourceLogin,
+						sourceHostname, channel);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onJoin(final String channel, final String sender,
 			final String login, final String hostname) {
 		if (sender.equals(getNick())) {
-			if (trustNickServ && (nickPass != null) && !loggedIn) {
+			awaitingUserList = channel.equals(getIntendedChannel());
+			if (trustNickServ && (nickPass != null)
+					&& (!loggedIn || !getNick().equals(loginNick))) {
+				// still have to reclaim the nick if it was taken, even when
+				// SASL already logged us in
 				attemptIdentify();
 			}
-			sendMessage(getIntendedChannel(), "Initialized - " + getVersion());
+			responses.add(getIntendedChannel(), "Initialized - " + getVersion(),
+					OutboundQueue.Priority.CORE);
 			if (welcomeMsg != null && !welcomeMsg.equalsIgnoreCase("")) {
-				sendMessage(getIntendedChannel(), welcomeMsg);
+				responses.add(getIntendedChannel(), welcomeMsg,
+						OutboundQueue.Priority.CORE);
 			}
 		}
-		for (final Module m : enabledModules.values()) {
-			if (m.onJoin(channel, sender, login, hostname)) {
-				break;
+		dispatch(ModuleEvent.JOIN, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onJoin(channel, sender, login, hostname);
 			}
-		}
+		});
 	}
 	
 	/**
@@ -1190,12 +2214,20 @@ public class SmartBot extends PircBot {
 	protected void onKick(final String channel, final String kickerNick,
 			final String kickerLogin, final String kickerHost,
 			final String recipient, final String reason) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onKick(channel, kickerNick, kickerLogin, kickerHost,
-					recipient, reason)) {
-				break;
-			}
+		if (recipient.equalsIgnoreCase(getNick())) {
+			// users that were only in that channel can no longer be seen
+			accountCache.clear();
+		} else {
+			accountCache.invalidate(recipient);
 		}
+		dispatch(ModuleEvent.KICK, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onKick(channel, kickerNick, kickerLogin, kickerHost,
+						recipient, reason);
+			}
+		});
 		if (channel.equals(getIntendedChannel()) && recipient.equals(getNick())) {
 			// we've been kicked from the chan; be well-behaved and shutdown.
 			cleanDisconnect("kicked from active channel by '" + kickerNick
@@ -1210,40 +2242,39 @@ public class SmartBot extends PircBot {
 	 * @param nick The nickname of the user being killed.
 	 * @param reason The reason for the killing. May be blank.
 	 */
-	protected void onKill(String nick, String reason) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onKill(nick, reason)) {
-				break;
+	protected void onKill(final String nick, final String reason) {
+		dispatch(ModuleEvent.KILL, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onKill(nick, reason);
 			}
-		}
+		});
 		// we have been directly dc'd; be nice and stay dc'd.
 		cleanDc = true;
 	}
 	
 	@Override
 	protected void onMessage(final String channel, final String sender,
-			final String login, final String hostname, String message) {
+			final String login, final String hostname, final String message) {
 		boolean consume = false;
 		if (channel.equals(getIntendedChannel())) {
-			int cmdPre = 0;
-			if (message.toUpperCase().startsWith(getNick().toUpperCase() + ":")) {
-				cmdPre = (getNick() + ":").length();
-			} else if (usePrependChar && message.startsWith(prependChar + "")) {
-				cmdPre = 1;
-			}
+			final int cmdPre = CommandTokenizer.commandStart(message,
+					getNick(), usePrependChar, prependChar);
 			if (cmdPre > 0) {
-				message = message.substring(cmdPre).trim()
-						.replaceAll(" +", " ");
-				execute(message.split(" "), sender, false);
+				execute(message, cmdPre, sender, false);
 				consume = true;
 			}
 		}
 		if (!consume) {
-			for (final Module m : enabledModules.values()) {
-				if (m.onMessage(channel, sender, login, hostname, message)) {
-					break;
+			dispatch(ModuleEvent.MESSAGE, channel, new EventDispatcher.Delivery() {
+				
+				@Override
+				public boolean deliver(final Module m) {
+					return m.onMessage(channel, sender, login, hostname,
+							message);
 				}
-			}
+			});
 		}
 	}
 	
@@ -1251,16 +2282,20 @@ public class SmartBot extends PircBot {
 	protected void onMode(final String channel, final String sourceNick,
 			final String sourceLogin, final String sourceHostname,
 			final String mode) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onMode(channel, sourceNick, sourceLogin, sourceHostname, mode)) {
-				break;
+		dispatch(ModuleEvent.MODE, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onMode(channel, sourceNick, sourceLogin,
+						sourceHostname, mode);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onNickChange(final String oldNick, final String login,
 			final String hostname, final String newNick) {
+		accountCache.rename(oldNick, newNick);
 		if (awaitingNickChange && loggingIn
 				&& oldNick.equalsIgnoreCase(this.oldNick)
 				&& newNick.equalsIgnoreCase(loginNick)) {
@@ -1276,40 +2311,59 @@ public class SmartBot extends PircBot {
 			setVerbose(true);
 			loggedIn = true;
 		}
-		for (final Module m : enabledModules.values()) {
-			if (m.onNickChange(oldNick, login, hostname, newNick)) {
-				break;
+		dispatchUser(ModuleEvent.NICK_CHANGE, oldNick, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onNickChange(oldNick, login, hostname, newNick);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onNotice(final String sourceNick, final String sourceLogin,
 			final String sourceHostname, final String target,
 			final String notice) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onNotice(sourceNick, sourceLogin, sourceHostname, target,
-					notice)) {
-				break;
+		if (sourceLogin.length() == 0) {
+			// notices from the server itself
+			final String lower = notice.toLowerCase();
+			if (lower.contains("flood") || lower.contains("too fast")) {
+				floodControl.penalize();
 			}
 		}
+		dispatch(ModuleEvent.NOTICE, target, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onNotice(sourceNick, sourceLogin, sourceHostname,
+						target, notice);
+			}
+		});
 	}
 	
 	@Override
 	protected void onOp(final String channel, final String sourceNick,
 			final String sourceLogin, final String sourceHostname,
 			final String recipient) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onOp(channel, sourceNick, sourceLogin, sourceHostname,
-					recipient)) {
-				break;
+		dispatch(ModuleEvent.OP, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onOp(channel, sourceNick, sourceLogin, sourceHostname,
+						recipient);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onPart(final String channel, final String sender,
 			final String login, final String hostname) {
+		if (sender.equalsIgnoreCase(getNick())) {
+			// users that were only in that channel can no longer be seen
+			accountCache.clear();
+		} else {
+			accountCache.invalidate(sender);
+		}
 		if (channel.equals(getIntendedChannel()) && sender.equals(getNick())) {
 			quitServer();
 			try {
@@ -1318,11 +2372,13 @@ public class SmartBot extends PircBot {
 				e.printStackTrace();
 			}
 		} else {
-			for (final Module m : enabledModules.values()) {
-				if (m.onPart(channel, sender, login, hostname)) {
-					break;
+			dispatch(ModuleEvent.PART, channel, new EventDispatcher.Delivery() {
+				
+				@Override
+				public boolean deliver(final Module m) {
+					return m.onPart(channel, sender, login, hostname);
 				}
-			}
+			});
 		}
 	}
 	
@@ -1330,312 +2386,374 @@ public class SmartBot extends PircBot {
 	protected void onPing(final String sourceNick, final String sourceLogin,
 			final String sourceHostname, final String target,
 			final String pingValue) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onPing(sourceNick, sourceLogin, sourceHostname, target,
-					pingValue)) {
-				break;
+		dispatch(ModuleEvent.PING, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onPing(sourceNick, sourceLogin, sourceHostname, target,
+						pingValue);
 			}
-		}
+		});
 		super.onPing(sourceNick, sourceLogin, sourceHostname, target, pingValue);
 	}
 	
 	@Override
 	protected void onPrivateMessage(final String sender, final String login,
-			final String host, String message) {
-		message = message.trim().replaceAll(" +", " ");
-		execute(message.split(" "), sender, true);
-		for (final Module m : enabledModules.values()) {
-			if (m.onPrivateMessage(sender, login, host, message)) {
-				break;
-			}
+			final String host, final String message) {
+		execute(message, 0, sender, true);
+		if (registry.getSubscribers().get(ModuleEvent.PRIVATE_MESSAGE).length == 0) {
+			return;
 		}
+		final String normalized = CommandTokenizer.normalize(message);
+		dispatch(ModuleEvent.PRIVATE_MESSAGE, sender, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onPrivateMessage(sender, login, host, normalized);
+			}
+		});
 	}
 	
 	@Override
 	protected void onQuit(final String sourceNick, final String sourceLogin,
 			final String sourceHostname, final String reason) {
+		accountCache.invalidate(sourceNick);
 		if (awaitingNickServGhost && sourceNick.equalsIgnoreCase(loginNick)) {
 			awaitingNickServGhost = false;
 			awaitingNickChange = true;
 			oldNick = getNick();
 			changeNick(loginNick);
 		}
-		for (final Module m : enabledModules.values()) {
-			if (m.onQuit(sourceNick, sourceLogin, sourceHostname, reason)) {
-				break;
+		dispatchUser(ModuleEvent.QUIT, sourceNick, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onQuit(sourceNick, sourceLogin, sourceHostname,
+						reason);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onRemoveChannelBan(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname, final String hostmask) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onRemoveChannelBan(channel, sourceNick, sourceLogin,
-					sourceHostname, hostmask)) {
-				break;
+		dispatch(ModuleEvent.REMOVE_CHANNEL_BAN, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onRemoveChannelBan(channel, sourceNick, sourceLogin,
+						sourceHostname, hostmask);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onRemoveChannelKey(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname, final String key) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onRemoveChannelKey(channel, sourceNick, sourceLogin,
-					sourceHostname, key)) {
-				break;
+		dispatch(ModuleEvent.REMOVE_CHANNEL_KEY, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onRemoveChannelKey(channel, sourceNick, sourceLogin,
+						sourceHostname, key);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onRemoveChannelLimit(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onRemoveChannelLimit(channel, sourceNick, sourceLogin,
-					sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.REMOVE_CHANNEL_LIMIT, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onRemoveChannelLimit(channel, sourceNick, sourceLogin,
+						sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onRemoveInviteOnly(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onRemoveInviteOnly(channel, sourceNick, sourceLogin,
-					sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.REMOVE_INVITE_ONLY, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onRemoveInviteOnly(channel, sourceNick, sourceLogin,
+						sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onRemoveModerated(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onRemoveModerated(channel, sourceNick, sourceLogin,
-					sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.REMOVE_MODERATED, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onRemoveModerated(channel, sourceNick, sourceLogin,
+						sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onRemoveNoExternalMessages(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onRemoveNoExternalMessages(channel, sourceNick, sourceLogin,
-					sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.REMOVE_NO_EXTERNAL_MESSAGES, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onRemoveNoExternalMessages(channel, sourceNick,
+						sourceLogin, sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onRemovePrivate(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onRemovePrivate(channel, sourceNick, sourceLogin,
-					sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.REMOVE_PRIVATE, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onRemovePrivate(channel, sourceNick, sourceLogin,
+						sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onRemoveSecret(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onRemoveSecret(channel, sourceNick, sourceLogin,
-					sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.REMOVE_SECRET, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onRemoveSecret(channel, sourceNick, sourceLogin,
+						sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onRemoveTopicProtection(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onRemoveTopicProtection(channel, sourceNick, sourceLogin,
-					sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.REMOVE_TOPIC_PROTECTION, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onRemoveTopicProtection(channel, sourceNick,
+						sourceLogin, sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onServerPing(final String response) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onServerPing(response)) {
-				break;
+		dispatch(ModuleEvent.SERVER_PING, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onServerPing(response);
 			}
-		}
+		});
 		super.onServerPing(response);
 	}
 	
 	@Override
 	protected void onServerResponse(final int code, final String resp) {
-		if (awaitingServerResponse) {
-			if ((code == awaitingResponseStart)
-					|| (awaitingResponseStart == -1)) {
-				awaitingResponseStart = -1;
-				serverResponseCodes.add(code);
-				serverResponseData.add(resp);
-				if (code == awaitingResponseEnd) {
-					awaitingResponseEnd = -1;
-					awaitingResponseXfer = true;
-					awaitingServerResponse = false;
-				}
-			}
-		}
-		for (final Module m : enabledModules.values()) {
-			if (m.onServerResponse(code, resp)) {
-				break;
+		if (code == 1) {
+			registered = true;
+			capNegotiator.setRegistered();
+		} else if (code == 5) {
+			parseServerSupport(resp);
+		} else if (code == 263 || code == 707 || (code == 439 && registered)) {
+			// RPL_TRYAGAIN, ERR_TARGCHANGE, ERR_TARGETTOOFAST; some servers
+			// also send 439 during registration to say it will take a while
+			floodControl.penalize();
+		} else if (code >= 900 && code <= 908) {
+			for (final String reply : capNegotiator.handleSaslReply(code)) {
+				sendRawLine(reply);
+			}
+		} else if (trustNickServ && (code == 330 || code == 354)) {
+			parseAccountReply(code, resp);
+		}
+		serverQueries.handle(code, resp);
+		dispatch(ModuleEvent.SERVER_RESPONSE, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onServerResponse(code, resp);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onSetChannelBan(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname, final String hostmask) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onSetChannelBan(channel, sourceNick, sourceLogin,
-					sourceHostname, hostmask)) {
-				break;
+		dispatch(ModuleEvent.SET_CHANNEL_BAN, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onSetChannelBan(channel, sourceNick, sourceLogin,
+						sourceHostname, hostmask);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onSetChannelKey(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname, final String key) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onSetChannelKey(channel, sourceNick, sourceLogin,
-					sourceHostname, key)) {
-				break;
+		dispatch(ModuleEvent.SET_CHANNEL_KEY, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onSetChannelKey(channel, sourceNick, sourceLogin,
+						sourceHostname, key);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onSetChannelLimit(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname, final int limit) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onSetChannelLimit(channel, sourceNick, sourceLogin,
-					sourceHostname, limit)) {
-				break;
+		dispatch(ModuleEvent.SET_CHANNEL_LIMIT, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onSetChannelLimit(channel, sourceNick, sourceLogin,
+						sourceHostname, limit);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onSetInviteOnly(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onSetInviteOnly(channel, sourceNick, sourceLogin,
-					sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.SET_INVITE_ONLY, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onSetInviteOnly(channel, sourceNick, sourceLogin,
+						sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onSetModerated(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onSetModerated(channel, sourceNick, sourceLogin,
-					sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.SET_MODERATED, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onSetModerated(channel, sourceNick, sourceLogin,
+						sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onSetNoExternalMessages(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onSetNoExternalMessages(channel, sourceNick, sourceLogin,
-					sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.SET_NO_EXTERNAL_MESSAGES, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onSetNoExternalMessages(channel, sourceNick,
+						sourceLogin, sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onSetPrivate(final String channel, final String sourceNick,
 			final String sourceLogin, final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onSetPrivate(channel, sourceNick, sourceLogin, sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.SET_PRIVATE, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onSetPrivate(channel, sourceNick, sourceLogin,
+						sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onSetSecret(final String channel, final String sourceNick,
 			final String sourceLogin, final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onSetSecret(channel, sourceNick, sourceLogin, sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.SET_SECRET, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onSetSecret(channel, sourceNick, sourceLogin,
+						sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onSetTopicProtection(final String channel,
 			final String sourceNick, final String sourceLogin,
 			final String sourceHostname) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onSetTopicProtection(channel, sourceNick, sourceLogin,
-					sourceHostname)) {
-				break;
+		dispatch(ModuleEvent.SET_TOPIC_PROTECTION, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onSetTopicProtection(channel, sourceNick, sourceLogin,
+						sourceHostname);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onTime(final String sourceNick, final String sourceLogin,
 			final String sourceHostname, final String target) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onTime(sourceNick, sourceLogin, sourceHostname, target)) {
-				break;
+		dispatch(ModuleEvent.TIME, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onTime(sourceNick, sourceLogin, sourceHostname,
+						target);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onTopic(final String channel, final String topic,
 			final String setBy, final long date, final boolean changed) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onTopic(channel, topic, setBy, date, changed)) {
-				break;
+		dispatch(ModuleEvent.TOPIC, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onTopic(channel, topic, setBy, date, changed);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onUnknown(final String line) {
 		// try to detect additional types of commands before passing it off as
 		// unknown
-		IRCMessage msg = new IRCMessage(line);
+		final IRCMessage msg = new IRCMessage(line);
 		if (msg.getCommand().equalsIgnoreCase("KILL")) {
 			String userkilled = msg.getParams().get(0);
 			String reason = "";
@@ -1643,55 +2761,82 @@ public class SmartBot extends PircBot {
 				reason = msg.getParams().get(1);
 			}
 			onKill(userkilled, reason);
+		} else if (msg.getCommand().equalsIgnoreCase("CAP")) {
+			for (final String reply : capNegotiator.handle(msg)) {
+				sendRawLine(reply);
+			}
+		} else if (msg.getCommand().equalsIgnoreCase("ACCOUNT")) {
+			final String nick = prefixNick(msg.getPrefix());
+			if (trustNickServ && nick != null && msg.getParams().size() > 0) {
+				final String account = msg.getParams().get(0);
+				recordAccount(nick, account.equals("*") ? null : account);
+			}
 		} else {
-			for (final Module m : enabledModules.values()) {
-				if (m.onUnknown(msg)) {
-					break;
+			dispatch(ModuleEvent.UNKNOWN, null, new EventDispatcher.Delivery() {
+				
+				@Override
+				public boolean deliver(final Module m) {
+					return m.onUnknown(msg);
 				}
-			}
+			});
 		}
 	}
 	
 	@Override
 	protected void onUserList(final String channel, final User[] users) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onUserList(channel, users)) {
-				break;
+		if (awaitingUserList && channel.equals(getIntendedChannel())) {
+			awaitingUserList = false;
+			if (trustNickServ) {
+				resolveAccounts(channel, users);
 			}
 		}
+		dispatch(ModuleEvent.USER_LIST, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onUserList(channel, users);
+			}
+		});
 	}
 	
 	@Override
 	protected void onUserMode(final String targetNick, final String sourceNick,
 			final String sourceLogin, final String sourceHostname,
 			final String mode) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onUserMode(targetNick, sourceNick, sourceLogin,
-					sourceHostname, mode)) {
-				break;
+		dispatch(ModuleEvent.USER_MODE, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onUserMode(targetNick, sourceNick, sourceLogin,
+						sourceHostname, mode);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onVersion(final String sourceNick, final String sourceLogin,
 			final String sourceHostname, final String target) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onVersion(sourceNick, sourceLogin, sourceHostname, target)) {
-				break;
+		dispatch(ModuleEvent.VERSION, null, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onVersion(sourceNick, sourceLogin, sourceHostname,
+						target);
 			}
-		}
+		});
 	}
 	
 	@Override
 	protected void onVoice(final String channel, final String sourceNick,
 			final String sourceLogin, final String sourceHostname,
 			final String recipient) {
-		for (final Module m : enabledModules.values()) {
-			if (m.onVoice(channel, sourceNick, sourceLogin, sourceHostname,
-					recipient)) {
-				break;
+		dispatch(ModuleEvent.VOICE, channel, new EventDispatcher.Delivery() {
+			
+			@Override
+			public boolean deliver(final Module m) {
+				return m.onVoice(channel, sourceNick, sourceLogin,
+						sourceHostname, recipient);
 			}
-		}
+		});
 	}
 }
@@ -1,5 +1,7 @@
 package com.dekarrin.bots;
 
+import java.io.File;
+
 /**
  * Passed to modules for interacting with SmartBot.
  */
@@ -12,6 +14,15 @@ public interface SmartBotInterface {
 	 */
 	public void disconnect(String reason);
 	
+	/**
+	 * Gets a file that a module can keep its own data in. The file is in the
+	 * bot's data directory, and may not exist yet.
+	 * 
+	 * @param name The name of the file.
+	 * @return The file.
+	 */
+	public File getDataFile(String name);
+	
 	/**
 	 * Gets the version of the bot.
 	 */
@@ -32,6 +43,14 @@ public interface SmartBotInterface {
 	 */
 	public String getChannel();
 	
+	/**
+	 * Gets the source of random numbers for modules. It may be used from any
+	 * thread, and should be used instead of creating generators.
+	 * 
+	 * @return The random source.
+	 */
+	public RandomSource getRandom();
+	
 	/**
 	 * Checks whether a user is authorized to perform privileged operations on
 	 * this bot.
@@ -0,0 +1,163 @@
+package com.dekarrin.bots;
+
+/**
+ * Limits the rate at which lines are sent to the server. Each line uses up a
+ * token, and tokens are added back at a fixed rate up to a maximum, so a short
+ * burst of lines can go out at once while a long stream of them is spread out
+ * to the refill rate. When the server complains that the bot is sending too
+ * fast, the refill rate is halved; it then creeps back up to the configured
+ * rate with each line that is sent without complaint.
+ * 
+ * @author Rebecca 'TF' Nelson
+ */
+class TokenBucket {
+	
+	/**
+	 * The most that penalties can slow the refill interval down by, as a
+	 * multiple of the configured interval.
+	 */
+	private static final int MAX_BACKOFF = 8;
+	
+	/**
+	 * The shortest refill interval used after a penalty, in milliseconds. This
+	 * keeps penalties meaningful when the configured interval is very short.
+	 */
+	private static final long MIN_PENALTY_INTERVAL = 500;
+	
+	/**
+	 * The number of lines that must be sent after a single penalty for the
+	 * refill interval to return to normal.
+	 */
+	private static final int RECOVERY_STEPS = 10;
+	
+	private long baseInterval;
+	
+	private int capacity;
+	
+	private long interval;
+	
+	private long lastRefill;
+	
+	private double tokens;
+	
+	/**
+	 * Creates a new TokenBucket that starts out full.
+	 * 
+	 * @param capacity The most tokens that the bucket can hold. This is the
+	 * largest burst of lines that can be sent at once.
+	 * @param interval The number of milliseconds it takes to add one token.
+	 */
+	public TokenBucket(final int capacity, final long interval) {
+		this.capacity = capacity;
+		this.baseInterval = interval;
+		this.interval = interval;
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+	
+	/**
+	 * Takes a token, waiting until one is available.
+	 * 
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		refill();
+		while (tokens < 1) {
+			final long wait = (long) Math.ceil((1 - tokens) * interval);
+			wait(Math.max(1, wait));
+			refill();
+		}
+		tokens -= 1;
+		if (interval > baseInterval) {
+			final long step = Math.max(1, penaltyInterval() / RECOVERY_STEPS);
+			interval = Math.max(baseInterval, interval - step);
+		}
+	}
+	
+	/**
+	 * Gets the most tokens that the bucket can hold.
+	 * 
+	 * @return The capacity.
+	 */
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Gets the current refill interval. This is longer than the configured
+	 * interval while the bucket is recovering from a penalty.
+	 * 
+	 * @return The number of milliseconds it takes to add one token.
+	 */
+	public synchronized long getInterval() {
+		return interval;
+	}
+	
+	/**
+	 * Gets the number of tokens currently in the bucket.
+	 * 
+	 * @return The number of tokens. This may be fractional.
+	 */
+	public synchronized double getTokens() {
+		refill();
+		return tokens;
+	}
+	
+	/**
+	 * Slows sending down after the server has complained about it. The bucket
+	 * is emptied and the refill interval is doubled.
+	 */
+	public synchronized void penalize() {
+		refill();
+		tokens = 0;
+		interval = Math.min(Math.max(interval * 2, penaltyInterval()),
+				penaltyInterval() * MAX_BACKOFF);
+	}
+	
+	/**
+	 * Sets the most tokens that the bucket can hold.
+	 * 
+	 * @param capacity The capacity. Must be at least 1.
+	 */
+	public synchronized void setCapacity(final int capacity) {
+		refill();
+		this.capacity = capacity;
+		tokens = Math.min(tokens, capacity);
+		notifyAll();
+	}
+	
+	/**
+	 * Sets the configured refill interval. Any penalty in effect is cleared.
+	 * 
+	 * @param interval The number of milliseconds it takes to add one token.
+	 */
+	public synchronized void setInterval(final long interval) {
+		refill();
+		baseInterval = interval;
+		this.interval = interval;
+		notifyAll();
+	}
+	
+	/**
+	 * Gets the interval that a penalty slows sending down to at least.
+	 * 
+	 * @return The interval in milliseconds.
+	 */
+	private long penaltyInterval() {
+		return Math.max(baseInterval, MIN_PENALTY_INTERVAL);
+	}
+	
+	/**
+	 * Adds the tokens that have accumulated since the last refill.
+	 */
+	private void refill() {
+		final long now = System.nanoTime();
+		if (interval <= 0) {
+			tokens = capacity;
+		} else {
+			final double elapsed = (now - lastRefill) / 1000000.0;
+			tokens = Math.min(capacity, tokens + (elapsed / interval));
+		}
+		lastRefill = now;
+	}
+}
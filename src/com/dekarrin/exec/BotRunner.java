@@ -8,6 +8,7 @@ import java.io.InputStreamReader;
 import java.net.ConnectException;
 
 import com.dekarrin.bots.*;
+import com.dekarrin.bots.Module;
 
 public class BotRunner {
 	
@@ -17,18 +18,41 @@ public class BotRunner {
 			System.exit(1);
 		}
 		File rc = new File(System.getProperty("user.home"), ".acmbotrc");
-		boolean firstTime = !rc.exists();
-		SmartBot bot = new SmartBot(rc.getAbsolutePath(),
-			new Module[]{
+		Module[] modules = new Module[]{
 				new DiceModule(),
 				new SarcasmModule(),
 				new CatfactsModule(),
 				new GreetModule(),
 				new DateTimeModule(),
 				new GamblerModule()
-		});
+		};
+		boolean firstTime;
+		String settingsFile;
+		SmartBot bot;
+		// the store must be chosen before the bot is created, since the bot
+		// reads its settings right away
+		if (hasOption(args, 'k', "kv-store")) {
+			File db = new File(System.getProperty("user.home"), ".acmbotdb");
+			PagedSettingsStore store = new PagedSettingsStore(db.getAbsolutePath());
+			firstTime = !db.exists() && !rc.exists();
+			if (!db.exists() && rc.exists()) {
+				try {
+					store.importFrom(rc.getAbsolutePath());
+					System.out.println("Imported settings from " + rc + " into " + db);
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+			}
+			settingsFile = db.getName();
+			bot = new SmartBot(store, modules);
+		} else {
+			firstTime = !rc.exists();
+			settingsFile = rc.getName();
+			bot = new SmartBot(rc.getAbsolutePath(), modules);
+		}
 		if (firstTime) {
-			firstTimeSetup(bot);
+			firstTimeSetup(bot, settingsFile);
 		}
 		String extraMsg = "";
 		for (String s : args) {
@@ -54,6 +78,18 @@ public class BotRunner {
 		}
 	}
 	
+	private static boolean hasOption(String[] args, char shortOp, String longOp) {
+		for (String s : args) {
+			if (s.equals("--" + longOp)) {
+				return true;
+			} else if (s.length() > 1 && s.charAt(0) == '-' && s.charAt(1) != '-'
+					&& s.indexOf(shortOp) != -1) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	private static boolean parseOption(String opStr, SmartBot bot) {
 		if (opStr.length() > 1 && opStr.charAt(0) == '-') {
 			if (opStr.charAt(1) == '-' && opStr.length() > 2) {
@@ -74,6 +110,16 @@ public class BotRunner {
 			execOption('h', bot);
 		} else if (op.equals("console")) {
 			execOption('c', bot);
+		} else if (op.equals("virtual-threads")) {
+			execOption('t', bot);
+		} else if (op.equals("kv-store")) {
+			execOption('k', bot);
+		} else if (op.startsWith("seed=")) {
+			try {
+				bot.setRandomSeed(Long.parseLong(op.substring(5)));
+			} catch (NumberFormatException e) {
+				System.err.println("Warning: bad seed '" + op.substring(5) + "'. Random numbers will not be repeatable");
+			}
 		}
 	}
 	
@@ -83,10 +129,18 @@ public class BotRunner {
 			printHelp();
 			System.exit(0);
 			break;
-			
+		
 		case 'c':
 			bot.startConsole();
 			break;
+		
+		case 't':
+			bot.setUseVirtualThreads(true);
+			break;
+		
+		case 'k':
+			// already handled when the bot was created
+			break;
 		}
 	}
 	
@@ -96,10 +150,16 @@ public class BotRunner {
 		System.out.println("Options:");
 		System.out.println("-h, --help      Show this help");
 		System.out.println("-c, --console   Start with interactive command console");
+		System.out.println("-t, --virtual-threads");
+		System.out.println("                Execute commands on virtual threads (Java 21+)");
+		System.out.println("-k, --kv-store  Keep settings in the paged store .acmbotdb instead of");
+		System.out.println("                .acmbotrc, importing .acmbotrc the first time");
+		System.out.println("--seed=<n>      Seed the random numbers used by modules, so that a run");
+		System.out.println("                can be repeated");
 	}
 	
 	// returns sha-256 hash of password
-	private static void firstTimeSetup(SmartBot bot) {
+	private static void firstTimeSetup(SmartBot bot, String settingsFile) {
 		Console console = System.console();
 		System.out.println("It looks like this is the first time you've run SmartBot on this system.");
 		System.out.println("Let's go ahead and set up your bot!");
@@ -160,7 +220,7 @@ public class BotRunner {
 		bot.setPrependChar(prependChar);
 		bot.setOwner(owner);
 		System.out.println("Setup complete!");
-		System.out.println("Settings are saved in the file .acmbotrc in your home directory.");
+		System.out.println("Settings are saved in the file " + settingsFile + " in your home directory.");
 		readString("(press enter to continue)");
 	}
 	